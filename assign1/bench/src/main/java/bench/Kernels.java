@@ -0,0 +1,91 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Method handles for the matrixproduct kernels.
+ *
+ * The kernels are in the default package (so they can still be built with a plain
+ * "javac matrixproduct.java"), which cannot be imported from a named package, and JMH
+ * does not accept benchmarks in the default package. Static final method handles are
+ * constants to the JIT, so calling through them costs the same as a direct call.
+ */
+final class Kernels {
+    static final MethodType KERNEL = MethodType.methodType(void.class,
+            double[].class, double[].class, double[].class, int.class);
+    static final MethodType BLOCK_KERNEL = KERNEL.appendParameterTypes(int.class);
+    // Kernels bound to an instance that already knows the size
+    static final MethodType MATRICES = MethodType.methodType(void.class,
+            double[].class, double[].class, double[].class);
+    // Gemm.gemm(transA, transB, m, n, k, alpha, a, aOff, lda, b, bOff, ldb, beta, c, cOff, ldc)
+    static final MethodType GEMM = MethodType.methodType(void.class,
+            boolean.class, boolean.class, int.class, int.class, int.class, double.class,
+            double[].class, int.class, int.class,
+            double[].class, int.class, int.class,
+            double.class, double[].class, int.class, int.class);
+
+    static final MethodHandle MULT = findStatic("matrixproduct", "mult", KERNEL);
+    static final MethodHandle MULT_LINE = findStatic("matrixproduct", "multLine", KERNEL);
+    static final MethodHandle MULT_BLOCK = findStatic("matrixproduct", "multBlock", BLOCK_KERNEL);
+    static final MethodHandle PACKED = findStatic("PackedGemm", "multPacked", KERNEL);
+    static final MethodHandle CACHE_OBLIVIOUS = findStatic("CacheOblivious", "mult", KERNEL);
+    static final MethodHandle MORTON = findStatic("CacheOblivious", "multMorton", KERNEL);
+    static final MethodHandle TO_MORTON = findStatic("CacheOblivious", "toMorton",
+            MethodType.methodType(double[].class, double[].class, int.class));
+    static final MethodHandle MORTON_SIDE = findStatic("CacheOblivious", "mortonSide",
+            MethodType.methodType(int.class, int.class));
+    static final MethodHandle STRASSEN_BYTES = findStatic("Strassen", "bufferBytes",
+            MethodType.methodType(long.class, int.class, int.class, int.class));
+
+    private Kernels() {
+    }
+
+    // Separate holder so VectorMult (and jdk.incubator.vector) is only loaded by the vector benchmarks
+    static final class Vector {
+        static final MethodHandle LINE = findStatic("VectorMult", "multLine", KERNEL);
+
+        private Vector() {
+        }
+    }
+
+    static Class<?> kernelClass(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Kernel class " + name + " was not compiled into the benchmarks", e);
+        }
+    }
+
+    static MethodHandle findStatic(String className, String method, MethodType type) {
+        try {
+            return MethodHandles.publicLookup().findStatic(kernelClass(className), method, type);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("No kernel " + className + "." + method + type, e);
+        }
+    }
+
+    static MethodHandle findVirtual(String className, String method, MethodType type) {
+        try {
+            return MethodHandles.publicLookup().findVirtual(kernelClass(className), method, type);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("No kernel " + className + "." + method + type, e);
+        }
+    }
+
+    // Creates an instance of a kernel class through its public constructor taking only ints
+    static Object newInstance(String className, int... args) {
+        Class<?>[] types = new Class<?>[args.length];
+        Object[] values = new Object[args.length];
+        for (int i = 0; i < args.length; i++) {
+            types[i] = int.class;
+            values[i] = args[i];
+        }
+        try {
+            return kernelClass(className).getConstructor(types).newInstance(values);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create " + className + java.util.Arrays.toString(args), e);
+        }
+    }
+}
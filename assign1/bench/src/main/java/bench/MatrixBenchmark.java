@@ -0,0 +1,249 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks for every matrixproduct kernel.
+ *
+ * Besides the ops/s score, each benchmark reports a "gflop" secondary result, which is
+ * the GFLOP/s rate (2 * n^3 floating point operations per multiplication).
+ * The matrices are allocated and filled once per trial, with the same values as the
+ * interactive driver. The accumulating kernels keep adding into phc between invocations,
+ * which does not change their speed.
+ *
+ * The forks get three quarters of the machine's memory as heap. A trial whose arrays would
+ * not fit (Morton pads each operand to a power of two, the parallel Strassen keeps eleven
+ * half-size temporaries) fails in its setup with the heap it needs, and JMH goes on with
+ * the next one.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector", "-XX:InitialRAMPercentage=75", "-XX:MaxRAMPercentage=75"})
+public class MatrixBenchmark {
+    static final MethodType SHUTDOWN = MethodType.methodType(void.class);
+
+    static long matrixBytes(long side) {
+        return side * side * Double.BYTES;
+    }
+
+    // Stops the trial before allocating when its arrays would not fit in the fork's heap
+    static void requireHeap(long bytes, String what) {
+        long needed = bytes + bytes / 8; // Headroom for JMH and the collector
+        long max = Runtime.getRuntime().maxMemory();
+        if (needed > max) {
+            throw new IllegalStateException(what + " needs about " + (needed >> 20) + " MB of heap, the fork has "
+                    + (max >> 20) + " MB: run it with -jvmArgsAppend \"--add-modules jdk.incubator.vector -Xmx"
+                    + ((needed >> 30) + 1) + "g\"");
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Matrices {
+        // Same sizes as the C++ measurements
+        @Param({"600", "1000", "1400", "1800", "2200", "2600", "3000", "4096", "6144", "8192", "10240"})
+        public int size;
+
+        @Param({"128"})
+        public int blockSize;
+
+        // 0 uses every available core
+        @Param({"0"})
+        public int threads;
+
+        // Strassen recursion stops at this size
+        @Param({"256"})
+        public int crossover;
+
+        public double[] pha;
+        public double[] phb;
+        public double[] phc;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            requireHeap(3 * matrixBytes(size), "size=" + size);
+            pha = new double[size * size];
+            phb = new double[size * size];
+            phc = new double[size * size];
+
+            for (int i = 0; i < size; i++) {
+                for (int j = 0; j < size; j++) {
+                    pha[i * size + j] = 1.0;
+                    phb[i * size + j] = i + 1;
+                }
+            }
+        }
+    }
+
+    // Engines with thread pools or workspaces get their own state, so only the benchmarks
+    // that use them pay for their memory
+
+    @State(Scope.Benchmark)
+    public static class Parallel {
+        Object engine;
+        MethodHandle line;
+        MethodHandle block;
+
+        @Setup(Level.Trial)
+        public void setUp(Matrices m) {
+            engine = Kernels.newInstance("ParallelMult", m.threads);
+            line = Kernels.findVirtual("ParallelMult", "multLine", Kernels.KERNEL).bindTo(engine);
+            block = Kernels.findVirtual("ParallelMult", "multBlock", Kernels.BLOCK_KERNEL).bindTo(engine);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Throwable {
+            Kernels.findVirtual("ParallelMult", "shutdown", SHUTDOWN).invoke(engine);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class StrassenEngine {
+        Object engine;
+        MethodHandle mult;
+
+        @Setup(Level.Trial)
+        public void setUp(Matrices m) throws Throwable {
+            long buffers = (long) Kernels.STRASSEN_BYTES.invokeExact(m.size, m.crossover, m.threads);
+            requireHeap(3 * matrixBytes(m.size) + buffers, "strassen with size=" + m.size + " and threads=" + m.threads);
+            engine = Kernels.newInstance("Strassen", m.size, m.crossover, m.threads);
+            mult = Kernels.findVirtual("Strassen", "mult", Kernels.MATRICES).bindTo(engine);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Throwable {
+            Kernels.findVirtual("Strassen", "shutdown", SHUTDOWN).invoke(engine);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class GemmEngine {
+        Object engine;
+        MethodHandle gemm;
+
+        @Setup(Level.Trial)
+        public void setUp(Matrices m) {
+            engine = Kernels.newInstance("Gemm", m.threads);
+            gemm = Kernels.findVirtual("Gemm", "gemm", Kernels.GEMM).bindTo(engine);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Throwable {
+            Kernels.findVirtual("Gemm", "shutdown", SHUTDOWN).invoke(engine);
+        }
+    }
+
+    // Copies of the matrices in the Z-order layout of CacheOblivious.multMorton
+    @State(Scope.Benchmark)
+    public static class MortonMatrices {
+        double[] za;
+        double[] zb;
+        double[] zc;
+
+        @Setup(Level.Trial)
+        public void setUp(Matrices m) throws Throwable {
+            int side = (int) Kernels.MORTON_SIDE.invokeExact(m.size);
+            requireHeap(3 * matrixBytes(m.size) + 3 * matrixBytes(side), "morton with size=" + m.size);
+            za = (double[]) Kernels.TO_MORTON.invokeExact(m.pha, m.size);
+            zb = (double[]) Kernels.TO_MORTON.invokeExact(m.phb, m.size);
+            zc = new double[za.length];
+        }
+    }
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Flops {
+        public double gflop;
+
+        void add(int n) {
+            gflop += 2.0 * n * n * n / 1e9;
+        }
+    }
+
+    @Benchmark
+    public void mult(Matrices m, Flops flops) throws Throwable {
+        Kernels.MULT.invokeExact(m.pha, m.phb, m.phc, m.size);
+        flops.add(m.size);
+    }
+
+    @Benchmark
+    public void multLine(Matrices m, Flops flops) throws Throwable {
+        Kernels.MULT_LINE.invokeExact(m.pha, m.phb, m.phc, m.size);
+        flops.add(m.size);
+    }
+
+    @Benchmark
+    public void multBlock(Matrices m, Flops flops) throws Throwable {
+        Kernels.MULT_BLOCK.invokeExact(m.pha, m.phb, m.phc, m.size, m.blockSize);
+        flops.add(m.size);
+    }
+
+    @Benchmark
+    public void parallelLine(Matrices m, Parallel p, Flops flops) throws Throwable {
+        p.line.invokeExact(m.pha, m.phb, m.phc, m.size);
+        flops.add(m.size);
+    }
+
+    @Benchmark
+    public void parallelBlock(Matrices m, Parallel p, Flops flops) throws Throwable {
+        p.block.invokeExact(m.pha, m.phb, m.phc, m.size, m.blockSize);
+        flops.add(m.size);
+    }
+
+    @Benchmark
+    public void vectorLine(Matrices m, Flops flops) throws Throwable {
+        Kernels.Vector.LINE.invokeExact(m.pha, m.phb, m.phc, m.size);
+        flops.add(m.size);
+    }
+
+    @Benchmark
+    public void packed(Matrices m, Flops flops) throws Throwable {
+        Kernels.PACKED.invokeExact(m.pha, m.phb, m.phc, m.size);
+        flops.add(m.size);
+    }
+
+    @Benchmark
+    public void cacheOblivious(Matrices m, Flops flops) throws Throwable {
+        Kernels.CACHE_OBLIVIOUS.invokeExact(m.pha, m.phb, m.phc, m.size);
+        flops.add(m.size);
+    }
+
+    // Multiplication only, the layout conversion is done once in the setup
+    @Benchmark
+    public void morton(Matrices m, MortonMatrices z, Flops flops) throws Throwable {
+        Kernels.MORTON.invokeExact(z.za, z.zb, z.zc, m.size);
+        flops.add(m.size);
+    }
+
+    @Benchmark
+    public void strassen(Matrices m, StrassenEngine s, Flops flops) throws Throwable {
+        s.mult.invokeExact(m.pha, m.phb, m.phc);
+        flops.add(m.size);
+    }
+
+    // Gemm with the kernel its dispatcher picks for a square C = A * B
+    @Benchmark
+    public void gemm(Matrices m, GemmEngine g, Flops flops) throws Throwable {
+        int n = m.size;
+        g.gemm.invokeExact(false, false, n, n, n, 1.0, m.pha, 0, n, m.phb, 0, n, 0.0, m.phc, 0, n);
+        flops.add(n);
+    }
+}
@@ -0,0 +1,253 @@
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.stream.IntStream;
+
+/**
+ * Non-interactive sweep over algorithms x sizes x thread counts, each repeated several times.
+ *
+ * The sweep is given as key=value arguments or a properties file with the same keys:
+ *   algorithms  comma-separated names (see ALGORITHMS), default line,block
+ *   sizes       comma-separated sizes or ranges first:last:step, default 600:3000:400
+ *   threads     thread counts for the parallel algorithms, default 1 (0 = every core)
+ *   reps        measured repetitions of each configuration, default 5
+ *   warmup      repetitions run first and not measured, default 1
+ *   blockSize   block size of block and parallel-block, default 128
+ *   output      CSV file for the summary rows, optional
+ *
+ * The three matrices are allocated once for the largest size and reused by every run,
+ * smaller sizes using the start of the arrays. Java zeroes a new array on the thread that
+ * allocates it, so which cores' memory its pages land on cannot be chosen from here.
+ * Filling and clearing happen outside the timed part, so runs measure the kernels, not
+ * page faults or GC. Every run checks a sum of C, each row weighted by its number, against its
+ * known value (A = 1 and B = row + 1 give n(n+1)/2 in every element, while B * A would give
+ * the same plain sum), and each configuration prints the median time, the 95th percentile and
+ * the GFLOP/s of the median.
+ */
+public class BatchSweep {
+	public static final String[] ALGORITHMS = {
+		"mult", "line", "block", "parallel-line", "parallel-block", "packed",
+		"strassen", "cache-oblivious", "gemm"
+	};
+
+	// Multiplies the n x n matrices at the start of the buffers
+	private interface Kernel {
+		void run(double[] pha, double[] phb, double[] phc, int n);
+	}
+
+	// A kernel with whatever engine it needs for one size and thread count
+	private static class Prepared {
+		final Kernel kernel;
+		final Runnable close;
+		final int threads;
+
+		Prepared(Kernel kernel, Runnable close, int threads) {
+			this.kernel = kernel;
+			this.close = close;
+			this.threads = threads;
+		}
+	}
+
+	private final String[] algorithms;
+	private final int[] sizes;
+	private final int[] threads;
+	private final int reps, warmup, blockSize;
+	private final String output;
+
+	private double[] pha, phb, phc;
+
+	public BatchSweep(Properties spec) {
+		algorithms = spec.getProperty("algorithms", "line,block").split(",");
+		sizes = parseSizes(spec.getProperty("sizes", "600:3000:400"));
+		threads = parseInts(spec.getProperty("threads", "1"));
+		reps = Integer.parseInt(spec.getProperty("reps", "5").trim());
+		warmup = Integer.parseInt(spec.getProperty("warmup", "1").trim());
+		blockSize = Integer.parseInt(spec.getProperty("blockSize", "128").trim());
+		output = spec.getProperty("output");
+
+		for (int i = 0; i < algorithms.length; i++) {
+			algorithms[i] = algorithms[i].trim();
+			if (!Arrays.asList(ALGORITHMS).contains(algorithms[i]))
+				throw new IllegalArgumentException("Unknown algorithm " + algorithms[i] + ", expected one of " + String.join(", ", ALGORITHMS));
+		}
+		if (sizes.length == 0 || reps <= 0)
+			throw new IllegalArgumentException("The sweep needs at least one size and one repetition");
+	}
+
+	// "600,1000" or "600:3000:400" (first:last:step), or a mix of both
+	static int[] parseSizes(String text) {
+		List<Integer> sizes = new ArrayList<>();
+		for (String part : text.split(",")) {
+			String[] range = part.trim().split(":");
+			if (range.length == 1) {
+				sizes.add(Integer.parseInt(range[0]));
+			} else {
+				int first = Integer.parseInt(range[0]);
+				int last = Integer.parseInt(range[1]);
+				int step = range.length > 2 ? Integer.parseInt(range[2]) : 1;
+				if (step <= 0 || first > last)
+					throw new IllegalArgumentException("Bad size range " + part.trim() + ", expected first:last:step with first <= last and step > 0");
+				for (long n = first; n <= last; n += step) sizes.add((int)n);
+			}
+		}
+		return sizes.stream().mapToInt(Integer::intValue).toArray();
+	}
+
+	private static int[] parseInts(String text) {
+		return Arrays.stream(text.split(",")).map(String::trim).mapToInt(Integer::parseInt).toArray();
+	}
+
+	public void run() throws IOException {
+		int max = Arrays.stream(sizes).max().getAsInt();
+		int length = Math.multiplyExact(max, max);
+
+		pha = new double[length];
+		phb = new double[length];
+		phc = new double[length];
+
+		PrintWriter csv = null;
+		if (output != null) {
+			csv = new PrintWriter(new FileWriter(output));
+			csv.println("algorithm,size,block_size,threads,reps,median_s,p95_s,gflops,checksum");
+		}
+
+		System.out.println("Algorithm         Size  Threads   Median      p95         GFLOP/s   Checksum");
+		try {
+			for (int n : sizes) {
+				fill(n);
+				for (String algorithm : algorithms) {
+					// Sequential algorithms run once per size, not once per thread count
+					int[] counts = isParallel(algorithm) ? threads : new int[] {1};
+					for (int t : counts) {
+						Prepared prepared = prepare(algorithm, n, t);
+						try {
+							measure(algorithm, n, prepared, csv);
+						} finally {
+							prepared.close.run();
+						}
+					}
+				}
+			}
+		} finally {
+			if (csv != null) csv.close();
+		}
+	}
+
+	private void measure(String algorithm, int n, Prepared prepared, PrintWriter csv) {
+		double[] times = new double[reps];
+		boolean ok = true;
+		int bk = algorithm.endsWith("block") ? blockSize : 0;
+
+		for (int rep = -warmup; rep < reps; rep++) {
+			clear(n);
+			MatrixRun run = MatrixRun.start(algorithm, n, bk, prepared.threads);
+			prepared.kernel.run(pha, phb, phc, n);
+			double seconds = run.stop();
+			if (rep < 0) continue;
+
+			times[rep] = seconds;
+			ok &= checksum(n);
+		}
+
+		Arrays.sort(times);
+		double median = reps % 2 == 1 ? times[reps / 2] : (times[reps/2 - 1] + times[reps/2]) / 2;
+		double p95 = times[Math.max(0, (int)Math.ceil(0.95 * reps) - 1)];
+		double gflops = 2.0 * n * n * n / median / 1e9;
+
+		System.out.printf("%-16s %5d  %7d   %7.3f s  %7.3f s  %8.3f   %s\n",
+				algorithm, n, prepared.threads, median, p95, gflops, ok ? "ok" : "WRONG");
+		if (csv != null) {
+			csv.printf(java.util.Locale.ROOT, "%s,%d,%d,%d,%d,%.6f,%.6f,%.4f,%s\n",
+					algorithm, n, bk, prepared.threads, reps, median, p95, gflops, ok ? "ok" : "wrong");
+			csv.flush();
+		}
+	}
+
+	private static boolean isParallel(String algorithm) {
+		return algorithm.startsWith("parallel") || algorithm.equals("strassen") || algorithm.equals("gemm");
+	}
+
+	private Prepared prepare(String algorithm, int n, int threads) {
+		switch (algorithm) {
+			case "mult":
+				return new Prepared(matrixproduct::mult, () -> {}, 1);
+			case "line":
+				return new Prepared(matrixproduct::multLine, () -> {}, 1);
+			case "block":
+				return new Prepared((a, b, c, size) -> matrixproduct.multBlock(a, b, c, size, blockSize), () -> {}, 1);
+			case "packed":
+				return new Prepared(PackedGemm::multPacked, () -> {}, 1);
+			case "cache-oblivious":
+				return new Prepared(CacheOblivious::mult, () -> {}, 1);
+			case "parallel-line": {
+				ParallelMult engine = new ParallelMult(threads);
+				return new Prepared(engine::multLine, engine::shutdown, engine.getParallelism());
+			}
+			case "parallel-block": {
+				ParallelMult engine = new ParallelMult(threads);
+				return new Prepared((a, b, c, size) -> engine.multBlock(a, b, c, size, blockSize), engine::shutdown, engine.getParallelism());
+			}
+			case "strassen": {
+				int parallelism = threads <= 0 ? Runtime.getRuntime().availableProcessors() : threads;
+				Strassen engine = new Strassen(n, Strassen.crossover(), parallelism);
+				return new Prepared((a, b, c, size) -> engine.mult(a, b, c), engine::shutdown, parallelism);
+			}
+			case "gemm": {
+				int parallelism = threads <= 0 ? Runtime.getRuntime().availableProcessors() : threads;
+				Gemm engine = new Gemm(parallelism);
+				return new Prepared((a, b, c, size) -> engine.gemm(false, false, size, size, size, 1.0, a, 0, size, b, 0, size, 0.0, c, 0, size),
+						engine::shutdown, parallelism);
+			}
+			default:
+				throw new IllegalArgumentException("Unknown algorithm " + algorithm);
+		}
+	}
+
+	// Same values as the interactive driver (A = 1, B = row + 1), one row per task
+	private void fill(int n) {
+		IntStream.range(0, n).parallel().forEach(i -> {
+			Arrays.fill(pha, i*n, (i+1)*n, 1.0);
+			Arrays.fill(phb, i*n, (i+1)*n, (double)(i+1));
+		});
+	}
+
+	private void clear(int n) {
+		IntStream.range(0, n).parallel().forEach(i -> Arrays.fill(phc, i*n, (i+1)*n, 0));
+	}
+
+	// Every element of C is 1 + 2 + ... + n, so with row i weighted by i + 1 the sum is
+	// n * (n(n+1)/2)^2; row i of B * A is (i+1) * n everywhere, which gives another value
+	private boolean checksum(int n) {
+		double triangle = n * (n + 1.0) / 2;
+		double expected = n * triangle * triangle;
+		double sum = IntStream.range(0, n).parallel().mapToDouble(i -> {
+			double row = 0;
+			for (int j = 0; j < n; j++) row += phc[i*n + j];
+			return (i + 1) * row;
+		}).sum();
+		return Math.abs(sum - expected) <= 1e-9 * expected;
+	}
+
+	// java BatchSweep sweep.properties
+	// java BatchSweep algorithms=line,packed sizes=600:3000:400 reps=5 threads=1,4
+	public static void main(String[] args) throws IOException {
+		Properties spec = new Properties();
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			if (equals > 0) {
+				spec.setProperty(arg.substring(0, equals), arg.substring(equals + 1));
+			} else {
+				try (Reader reader = new FileReader(arg)) {
+					spec.load(reader);
+				}
+			}
+		}
+		new BatchSweep(spec).run();
+	}
+}
@@ -0,0 +1,110 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * Finds the fastest block size for matrixproduct.multBlock on the current machine.
+ *
+ * Candidate block sizes are timed on a probe matrix of at most PROBE_MAX x PROBE_MAX
+ * (the block working set does not depend on n, so a smaller probe is enough) and the
+ * winner for each probe size is saved in CACHE_FILE, so later runs reuse it without probing
+ * again. Every n from PROBE_MAX up shares the entry of PROBE_MAX.
+ */
+public class BlockTuner {
+	public static final String CACHE_FILE = "blocksize.properties";
+	public static final int[] CANDIDATES = {16, 32, 64, 128, 256, 512};
+	public static final int PROBE_MAX = 1024;
+	public static final int PROBE_RUNS = 2;
+
+	private static Properties cache = null;
+
+	public static synchronized int bestBlockSize(int n) {
+		loadCache();
+
+		String key = String.valueOf(probeSize(n));
+		String cached = cache.getProperty(key);
+		if (cached != null) {
+			try {
+				int bkSize = Integer.parseInt(cached.trim());
+				if (bkSize > 0) return bkSize;
+			} catch (NumberFormatException e) {
+				// Probed again below
+			}
+			System.out.println("Ignoring invalid cached block size for n=" + key + ": " + cached);
+		}
+
+		int best = probe(n);
+		cache.setProperty(key, String.valueOf(best));
+		saveCache();
+		return best;
+	}
+
+	// Times every candidate block size that fits in n and returns the fastest one
+	public static int probe(int n) {
+		int size = probeSize(n);
+
+		double[] pha = new double[size*size];
+		double[] phb = new double[size*size];
+		double[] phc = new double[size*size];
+
+		for (int i = 0; i < size; i++)
+			for (int j = 0; j < size; j++) {
+				pha[i*size + j] = (double)1.0;
+				phb[i*size + j] = (double)(i+1);
+			}
+
+		// Warm up the JIT so the first candidate is not timed in the interpreter
+		int warm = Math.min(size, 128);
+		for (int r = 0; r < 3; r++)
+			matrixproduct.blockKernel(pha, phb, phc, warm, 0, warm, 0, warm, 32);
+
+		int best = CANDIDATES[0];
+		long bestTime = Long.MAX_VALUE;
+
+		for (int bkSize : CANDIDATES) {
+			if (bkSize > size && bkSize != CANDIDATES[0]) break;
+
+			long time = Long.MAX_VALUE;
+			for (int r = 0; r < PROBE_RUNS; r++) {
+				Arrays.fill(phc, 0);
+				long time1 = System.nanoTime();
+				matrixproduct.multBlock(pha, phb, phc, size, bkSize);
+				long time2 = System.nanoTime();
+				time = Math.min(time, time2 - time1);
+			}
+
+			System.out.printf("Probe n=%d block=%d: %3.3f seconds\n", size, bkSize, (double)time/1e9);
+			if (time < bestTime) {
+				bestTime = time;
+				best = bkSize;
+			}
+		}
+
+		return best;
+	}
+
+	public static int probeSize(int n) {
+		return Math.min(n, PROBE_MAX);
+	}
+
+	private static void loadCache() {
+		if (cache != null) return;
+
+		cache = new Properties();
+		File file = new File(CACHE_FILE);
+		if (!file.exists()) return;
+
+		try (FileInputStream input = new FileInputStream(file)) {
+			cache.load(input);
+		} catch (IOException e) {
+			System.out.println("Could not read " + CACHE_FILE + ": " + e.getMessage());
+		}
+	}
+
+	private static void saveCache() {
+		try (FileOutputStream output = new FileOutputStream(CACHE_FILE)) {
+			cache.store(output, "Best block size per probe size (n=block, n at most " + PROBE_MAX + ")");
+		} catch (IOException e) {
+			System.out.println("Could not write " + CACHE_FILE + ": " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,217 @@
+/**
+ * Cache-oblivious matrix multiplication.
+ *
+ * Instead of a block size chosen for one cache, the product is split recursively in two
+ * along its largest dimension (m, n or k) until every dimension is at most LEAF. Some level
+ * of the recursion fits each cache, whatever its size, so every level is used well without
+ * tuning. LEAF only stops the recursion overhead and is far smaller than any L1.
+ *
+ * The Morton variant also stores the matrices in Z-order: LEAF x LEAF tiles, row-major
+ * inside, laid out so that every quadrant of every level of the recursion is one contiguous
+ * range of the array. toMorton and fromMorton convert from and to the row-major layout of
+ * pha/phb/phc; the matrix is padded with zeros to a power-of-two number of tiles, and the
+ * products of quadrants that are entirely padding are skipped. The padding costs memory: a
+ * Morton copy takes between 1 and nearly 4 times the elements of the matrix (n just above
+ * LEAF times a power of two is the worst case), for each of A, B and C. Its side squared
+ * must fit in an array, so n is at most MAX_MORTON_N.
+ */
+public class CacheOblivious {
+	public static final int LEAF = 32;
+	// The padded side of larger matrices is 65536, whose square does not fit in an array
+	public static final int MAX_MORTON_N = 32768;
+
+	// phc += pha * phb for n x n row-major matrices
+	public static void mult(double[] pha, double[] phb, double[] phc, int n) {
+		mult(n, n, n, pha, 0, n, phb, 0, n, phc, 0, n);
+	}
+
+	// C += A * B, where A is m x k, B is k x n and C is m x n, all row-major with
+	// consecutive rows ld elements apart
+	public static void mult(int m, int n, int k,
+			double[] a, int aOff, int lda,
+			double[] b, int bOff, int ldb,
+			double[] c, int cOff, int ldc) {
+		if (m <= LEAF && n <= LEAF && k <= LEAF) {
+			leaf(m, n, k, a, aOff, lda, b, bOff, ldb, c, cOff, ldc);
+		} else if (m >= n && m >= k) {
+			int h = m / 2;
+			mult(h, n, k, a, aOff, lda, b, bOff, ldb, c, cOff, ldc);
+			mult(m - h, n, k, a, aOff + h*lda, lda, b, bOff, ldb, c, cOff + h*ldc, ldc);
+		} else if (n >= k) {
+			int h = n / 2;
+			mult(m, h, k, a, aOff, lda, b, bOff, ldb, c, cOff, ldc);
+			mult(m, n - h, k, a, aOff, lda, b, bOff + h, ldb, c, cOff + h, ldc);
+		} else {
+			int h = k / 2;
+			mult(m, n, h, a, aOff, lda, b, bOff, ldb, c, cOff, ldc);
+			mult(m, n, k - h, a, aOff + h, lda, b, bOff + h*ldb, ldb, c, cOff, ldc);
+		}
+	}
+
+	// Line algorithm (i-k-j) on one small block
+	private static void leaf(int m, int n, int k,
+			double[] a, int aOff, int lda,
+			double[] b, int bOff, int ldb,
+			double[] c, int cOff, int ldc) {
+		for (int i = 0; i < m; i++) {
+			int rowA = aOff + i*lda;
+			int rowC = cOff + i*ldc;
+			for (int p = 0; p < k; p++) {
+				double v = a[rowA + p];
+				int rowB = bOff + p*ldb;
+				for (int j = 0; j < n; j++)
+					c[rowC + j] += v * b[rowB + j];
+			}
+		}
+	}
+
+	// ---------------------------------------------------------------- Morton layout
+
+	// Side of the padded Morton matrix for an n x n matrix: a power-of-two number of tiles
+	public static int mortonSide(int n) {
+		if (n > MAX_MORTON_N)
+			throw new IllegalArgumentException("A " + n + " x " + n + " matrix is too large for the Morton layout, whose side would be "
+					+ mortonSideLong(n) + " (at most " + MAX_MORTON_N + ")");
+		return (int) mortonSideLong(n);
+	}
+
+	private static long mortonSideLong(int n) {
+		long tiles = Math.max(1, (n + (long) LEAF - 1) / LEAF);
+		long power = 1;
+		while (power < tiles) power <<= 1;
+		return power * LEAF;
+	}
+
+	// Position of tile (ti, tj) in Z-order: the bits of ti and tj interleaved
+	private static int tileIndex(int ti, int tj) {
+		return (spread(ti) << 1) | spread(tj);
+	}
+
+	private static int spread(int x) {
+		x &= 0xffff;
+		x = (x | (x << 8)) & 0x00ff00ff;
+		x = (x | (x << 4)) & 0x0f0f0f0f;
+		x = (x | (x << 2)) & 0x33333333;
+		x = (x | (x << 1)) & 0x55555555;
+		return x;
+	}
+
+	// Morton copy of an n x n row-major matrix
+	public static double[] toMorton(double[] m, int n) {
+		int side = mortonSide(n);
+		double[] z = new double[side * side];
+		for (int i = 0; i < n; i++) {
+			for (int tj = 0; tj*LEAF < n; tj++) {
+				int start = tileIndex(i / LEAF, tj) * LEAF*LEAF + (i % LEAF) * LEAF;
+				System.arraycopy(m, i*n + tj*LEAF, z, start, Math.min(LEAF, n - tj*LEAF));
+			}
+		}
+		return z;
+	}
+
+	// Copies a Morton matrix back into an n x n row-major matrix
+	public static void fromMorton(double[] z, double[] m, int n) {
+		for (int i = 0; i < n; i++) {
+			for (int tj = 0; tj*LEAF < n; tj++) {
+				int start = tileIndex(i / LEAF, tj) * LEAF*LEAF + (i % LEAF) * LEAF;
+				System.arraycopy(z, start, m, i*n + tj*LEAF, Math.min(LEAF, n - tj*LEAF));
+			}
+		}
+	}
+
+	// zc += za * zb for Morton matrices made by toMorton from n x n matrices
+	public static void multMorton(double[] za, double[] zb, double[] zc, int n) {
+		morton(za, 0, zb, 0, zc, 0, mortonSide(n), 0, 0, 0, n);
+	}
+
+	// Multiplies the size x size quadrants at the given offsets. (row, col, depth) is the
+	// position of the quadrant of C and the common dimension, to skip pure padding.
+	private static void morton(double[] a, int aOff, double[] b, int bOff, double[] c, int cOff,
+			int size, int row, int col, int depth, int n) {
+		if (row >= n || col >= n || depth >= n) return;
+		if (size == LEAF) {
+			leaf(LEAF, LEAF, LEAF, a, aOff, LEAF, b, bOff, LEAF, c, cOff, LEAF);
+			return;
+		}
+
+		int h = size / 2;
+		int q = h * h;
+		// Quadrants 0 1 / 2 3 are stored one after the other
+		morton(a, aOff,       b, bOff,       c, cOff,       h, row,     col,     depth,     n);
+		morton(a, aOff + q,   b, bOff + 2*q, c, cOff,       h, row,     col,     depth + h, n);
+		morton(a, aOff,       b, bOff + q,   c, cOff + q,   h, row,     col + h, depth,     n);
+		morton(a, aOff + q,   b, bOff + 3*q, c, cOff + q,   h, row,     col + h, depth + h, n);
+		morton(a, aOff + 2*q, b, bOff,       c, cOff + 2*q, h, row + h, col,     depth,     n);
+		morton(a, aOff + 3*q, b, bOff + 2*q, c, cOff + 2*q, h, row + h, col,     depth + h, n);
+		morton(a, aOff + 2*q, b, bOff + q,   c, cOff + 3*q, h, row + h, col + h, depth,     n);
+		morton(a, aOff + 3*q, b, bOff + 3*q, c, cOff + 3*q, h, row + h, col + h, depth + h, n);
+	}
+
+	// ---------------------------------------------------------------- driver
+
+	// Times the tiled version with the given block size against the recursive one, on the
+	// row-major layout and on the Morton layout (conversions timed separately)
+	public static void OnMultCacheOblivious(int m_ar, int m_br, int bkSize) {
+		int i, j;
+
+		double[] pha = new double[m_ar*m_ar];
+		double[] phb = new double[m_ar*m_ar];
+		double[] phc = new double[m_ar*m_ar];
+
+		for(i=0; i<m_ar; i++)
+			for(j=0; j<m_ar; j++)
+				pha[i*m_ar + j] = (double)1.0;
+
+		for(i=0; i<m_br; i++)
+			for(j=0; j<m_br; j++)
+				phb[i*m_br + j] = (double)(i+1);
+
+		MatrixRun tiled = MatrixRun.start("OnMultBlock", m_ar, bkSize, 1);
+		matrixproduct.multBlock(pha, phb, phc, m_ar, bkSize);
+		tiled.stop();
+		double[] reference = phc.clone();
+
+		java.util.Arrays.fill(phc, 0);
+		MatrixRun recursive = MatrixRun.start("OnMultCacheOblivious", m_ar, LEAF, 1);
+		mult(pha, phb, phc, m_ar);
+		recursive.stop();
+		double recursiveError = maxDifference(phc, reference);
+
+		if (m_ar > MAX_MORTON_N) {
+			tiled.print("tiled, block " + bkSize);
+			recursive.print("recursive");
+			System.out.printf("Difference: %.3e\n", recursiveError);
+			System.out.println("Morton layout skipped: n is above " + MAX_MORTON_N);
+			return;
+		}
+
+		long time1 = System.nanoTime();
+		double[] za = toMorton(pha, m_ar);
+		double[] zb = toMorton(phb, m_ar);
+		double[] zc = new double[za.length];
+		long time2 = System.nanoTime();
+
+		MatrixRun morton = MatrixRun.start("OnMultMorton", m_ar, LEAF, 1);
+		multMorton(za, zb, zc, m_ar);
+		morton.stop();
+
+		long time3 = System.nanoTime();
+		fromMorton(zc, phc, m_ar);
+		long time4 = System.nanoTime();
+		double mortonError = maxDifference(phc, reference);
+
+		tiled.print("tiled, block " + bkSize);
+		recursive.print("recursive");
+		System.out.printf("Difference: %.3e\n", recursiveError);
+		morton.print("recursive, Morton layout");
+		System.out.printf("Conversion to and from Morton: %3.3f seconds\n", ((time2 - time1) + (time4 - time3)) / 1e9);
+		System.out.printf("Difference: %.3e\n", mortonError);
+	}
+
+	private static double maxDifference(double[] x, double[] y) {
+		double difference = 0;
+		for (int i = 0; i < x.length; i++)
+			difference = Math.max(difference, Math.abs(x[i] - y[i]));
+		return difference;
+	}
+}
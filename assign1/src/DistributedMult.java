@@ -0,0 +1,409 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Matrix multiplication over a q x q grid of worker processes with Cannon's algorithm.
+ *
+ * The coordinator cuts A and B into q x q tiles (zero-padded when q does not divide n) and
+ * sends worker (i, j) the tiles A(i, i+j) and B(i+j, j), which is the initial skew of Cannon's
+ * algorithm. In each of the q steps a worker multiplies its current tiles into its tile of C
+ * with PackedGemm, while two background threads already send the current A tile to its left
+ * neighbour and the B tile to its upper neighbour, and receive the next ones from the right
+ * and lower neighbours. At the end every worker returns its C tile, the time spent computing,
+ * the time spent sending/receiving and the time the computation had to wait for tiles.
+ * Transfers are wall time per step, from when both neighbours' tiles start arriving until the
+ * last of the four transfers is done, so the concurrent transfers are not added up and the
+ * time a neighbour is still busy with its own step does not count. Waiting is the part of each
+ * step's exchange that computing did not hide.
+ *
+ * Workers are started with "java DistributedMult worker <port>" (on any host) and serve jobs
+ * until they are killed; each worker connection starts with one byte that says what it is.
+ */
+public class DistributedMult {
+	private static final byte JOB = 1;
+	private static final byte A_TILES = 2;
+	private static final byte B_TILES = 3;
+
+	public static final int CONNECT_ATTEMPTS = 50;
+	// A worker waits this long for its neighbours to connect (-DpeerTimeout, in seconds), plus
+	// the time the coordinator takes to send every worker its tiles at MIN_BYTES_PER_SECOND
+	public static final int PEER_TIMEOUT_SECONDS = Integer.getInteger("peerTimeout", 30);
+	public static final long MIN_BYTES_PER_SECOND = 10L << 20;
+
+	// Time of one worker, in nanoseconds
+	public static class WorkerStats {
+		public final String address;
+		public final long compute, communication, wait;
+
+		WorkerStats(String address, long compute, long communication, long wait) {
+			this.address = address;
+			this.compute = compute;
+			this.communication = communication;
+			this.wait = wait;
+		}
+	}
+
+	// ---------------------------------------------------------------- coordinator
+
+	// phc = pha * phb (n x n) on the q x q workers given as host:port, row by row
+	public static List<WorkerStats> mult(String[] workers, int q, double[] pha, double[] phb, double[] phc, int n)
+			throws IOException {
+		if (workers.length != q*q)
+			throw new IllegalArgumentException("A " + q + " x " + q + " grid needs " + q*q + " workers, got " + workers.length);
+
+		int b = (n + q - 1) / q;
+		Socket[] sockets = new Socket[q*q];
+		try {
+			for (int r = 0; r < q*q; r++) {
+				int i = r / q, j = r % q, k = (i + j) % q;
+				sockets[r] = connect(workers[r]);
+				DataOutputStream output = new DataOutputStream(new BufferedOutputStream(sockets[r].getOutputStream()));
+				output.writeByte(JOB);
+				output.writeInt(q);
+				output.writeInt(i);
+				output.writeInt(j);
+				output.writeInt(b);
+				for (String worker : workers) output.writeUTF(worker);
+				writeTile(output, tile(pha, n, i, k, b), null);
+				writeTile(output, tile(phb, n, k, j, b), null);
+				output.flush();
+			}
+
+			List<WorkerStats> stats = new ArrayList<>();
+			double[] c = new double[b*b];
+			for (int r = 0; r < q*q; r++) {
+				DataInputStream input = new DataInputStream(new BufferedInputStream(sockets[r].getInputStream()));
+				readTile(input, c, null);
+				stats.add(new WorkerStats(workers[r], input.readLong(), input.readLong(), input.readLong()));
+				untile(c, phc, n, r / q, r % q, b);
+			}
+			return stats;
+		} finally {
+			for (Socket socket : sockets)
+				if (socket != null) socket.close();
+		}
+	}
+
+	// Tile (ti, tj) of an n x n matrix, zero-padded to b x b
+	private static double[] tile(double[] m, int n, int ti, int tj, int b) {
+		double[] t = new double[b*b];
+		for (int i = 0; i < b && ti*b + i < n; i++) {
+			int row = (ti*b + i) * n + tj*b;
+			int cols = Math.min(b, n - tj*b);
+			if (cols > 0) System.arraycopy(m, row, t, i*b, cols);
+		}
+		return t;
+	}
+
+	private static void untile(double[] t, double[] m, int n, int ti, int tj, int b) {
+		for (int i = 0; i < b && ti*b + i < n; i++) {
+			int cols = Math.min(b, n - tj*b);
+			if (cols > 0) System.arraycopy(t, i*b, m, (ti*b + i) * n + tj*b, cols);
+		}
+	}
+
+	// ---------------------------------------------------------------- worker
+
+	public static void worker(int port) throws IOException {
+		BlockingQueue<Socket> jobs = new LinkedBlockingQueue<>();
+		BlockingQueue<Socket> aPeers = new LinkedBlockingQueue<>();
+		BlockingQueue<Socket> bPeers = new LinkedBlockingQueue<>();
+
+		ServerSocket server = new ServerSocket(port);
+		System.out.println("Worker listening on port " + port);
+
+		// Sorts incoming connections by their first byte
+		Thread acceptor = new Thread(() -> {
+			while (!server.isClosed()) {
+				try {
+					Socket socket = server.accept();
+					socket.setTcpNoDelay(true);
+					int kind = socket.getInputStream().read();
+					if (kind == JOB) jobs.add(socket);
+					else if (kind == A_TILES) aPeers.add(socket);
+					else if (kind == B_TILES) bPeers.add(socket);
+					else socket.close();
+				} catch (IOException e) {
+					if (!server.isClosed()) System.out.println("Worker accept failed: " + e.getMessage());
+				}
+			}
+		}, "acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		while (true) {
+			Socket job;
+			try {
+				job = jobs.take();
+			} catch (InterruptedException e) {
+				server.close();
+				return;
+			}
+			try (Socket socket = job) {
+				runJob(socket, aPeers, bPeers);
+			} catch (IOException e) {
+				System.out.println("Job failed: " + e.getMessage());
+			}
+		}
+	}
+
+	private static void runJob(Socket job, BlockingQueue<Socket> aPeers, BlockingQueue<Socket> bPeers)
+			throws IOException {
+		DataInputStream input = new DataInputStream(new BufferedInputStream(job.getInputStream()));
+		int q = input.readInt();
+		int row = input.readInt();
+		int col = input.readInt();
+		int b = input.readInt();
+		String[] workers = new String[q*q];
+		for (int r = 0; r < q*q; r++) workers[r] = input.readUTF();
+
+		ByteBuffer buffer = ByteBuffer.allocate(8*b*b).order(ByteOrder.BIG_ENDIAN);
+		double[][] a = {new double[b*b], new double[b*b]};
+		double[][] bt = {new double[b*b], new double[b*b]};
+		double[] c = new double[b*b];
+		readTile(input, a[0], buffer);
+		readTile(input, bt[0], buffer);
+
+		long compute = 0, communication = 0, wait = 0;
+		ExecutorService io = Executors.newFixedThreadPool(4);
+		Socket toLeft = null, toUp = null, fromRight = null, fromDown = null;
+		try {
+			if (q > 1) {
+				// A moves left along the row, B moves up along the column
+				toLeft = connect(workers[row*q + (col + q - 1) % q]);
+				toLeft.getOutputStream().write(A_TILES);
+				toUp = connect(workers[((row + q - 1) % q)*q + col]);
+				toUp.getOutputStream().write(B_TILES);
+				// The neighbours get their jobs one after the other, each with two tiles
+				long timeout = PEER_TIMEOUT_SECONDS + 2L*q*q * 8*b*b / MIN_BYTES_PER_SECOND;
+				fromRight = take(aPeers, timeout);
+				fromDown = take(bPeers, timeout);
+			}
+			DataOutputStream leftOut = q > 1 ? new DataOutputStream(new BufferedOutputStream(toLeft.getOutputStream())) : null;
+			DataOutputStream upOut = q > 1 ? new DataOutputStream(new BufferedOutputStream(toUp.getOutputStream())) : null;
+			DataInputStream rightIn = q > 1 ? new DataInputStream(new BufferedInputStream(fromRight.getInputStream())) : null;
+			DataInputStream downIn = q > 1 ? new DataInputStream(new BufferedInputStream(fromDown.getInputStream())) : null;
+			ByteBuffer[] buffers = new ByteBuffer[4];
+			for (int i = 0; i < 4; i++) buffers[i] = ByteBuffer.allocate(8*b*b);
+
+			PackedGemm gemm = PackedGemm.forThread();
+			for (int step = 0, cur = 0; step < q; step++, cur ^= 1) {
+				List<Future<?>> transfers = new ArrayList<>();
+				// When the neighbours' first bytes came, and when the last transfer was done
+				AtomicLong arrived = new AtomicLong(), finished = new AtomicLong();
+				long time1 = System.nanoTime();
+				if (step < q - 1) {
+					double[] aCur = a[cur], bCur = bt[cur], aNext = a[cur ^ 1], bNext = bt[cur ^ 1];
+					transfers.add(io.submit(stamped(finished, () -> writeTile(leftOut, aCur, buffers[0]))));
+					transfers.add(io.submit(stamped(finished, () -> writeTile(upOut, bCur, buffers[1]))));
+					transfers.add(io.submit(stamped(finished, () -> readTile(rightIn, aNext, buffers[2], arrived))));
+					transfers.add(io.submit(stamped(finished, () -> readTile(downIn, bNext, buffers[3], arrived))));
+				}
+
+				gemm.gemm(b, b, b, a[cur], 0, b, bt[cur], 0, b, c, 0, b);
+				long time2 = System.nanoTime();
+				for (Future<?> transfer : transfers) await(transfer);
+				long time3 = System.nanoTime();
+
+				compute += time2 - time1;
+				wait += time3 - time2;
+				if (!transfers.isEmpty()) communication += finished.get() - Math.max(time1, arrived.get());
+			}
+		} finally {
+			io.shutdownNow();
+			for (Socket socket : new Socket[] {toLeft, toUp, fromRight, fromDown})
+				if (socket != null) socket.close();
+		}
+
+		DataOutputStream output = new DataOutputStream(new BufferedOutputStream(job.getOutputStream()));
+		writeTile(output, c, buffer);
+		output.writeLong(compute);
+		output.writeLong(communication);
+		output.writeLong(wait);
+		output.flush();
+	}
+
+	// ---------------------------------------------------------------- helpers
+
+	private interface IoAction {
+		void run() throws IOException;
+	}
+
+	// Runs the action and keeps the latest time any such action finished
+	private static Callable<Void> stamped(AtomicLong finished, IoAction action) {
+		return () -> {
+			action.run();
+			finished.accumulateAndGet(System.nanoTime(), Math::max);
+			return null;
+		};
+	}
+
+	private static void await(Future<?> future) throws IOException {
+		try {
+			future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while exchanging tiles", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Tile exchange failed: " + e.getCause(), e.getCause());
+		}
+	}
+
+	private static Socket take(BlockingQueue<Socket> peers, long timeoutSeconds) throws IOException {
+		try {
+			Socket socket = peers.poll(timeoutSeconds, TimeUnit.SECONDS);
+			if (socket == null) throw new IOException("A neighbour did not connect");
+			return socket;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for a neighbour", e);
+		}
+	}
+
+	// Connects to host:port, retrying while the worker is still starting
+	private static Socket connect(String address) throws IOException {
+		int colon = address.lastIndexOf(':');
+		InetSocketAddress target = new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+		IOException last = null;
+		for (int attempt = 0; attempt < CONNECT_ATTEMPTS; attempt++) {
+			Socket socket = new Socket();
+			try {
+				socket.connect(target);
+				socket.setTcpNoDelay(true);
+				return socket;
+			} catch (IOException e) {
+				socket.close();
+				last = e;
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+		throw new IOException("Could not connect to " + address, last);
+	}
+
+	// Tiles are sent as raw big-endian doubles through a reusable byte buffer
+	private static void writeTile(DataOutputStream output, double[] tile, ByteBuffer buffer) throws IOException {
+		if (buffer == null) buffer = ByteBuffer.allocate(8*tile.length);
+		buffer.clear();
+		buffer.asDoubleBuffer().put(tile);
+		output.write(buffer.array(), 0, 8*tile.length);
+		output.flush();
+	}
+
+	private static void readTile(DataInputStream input, double[] tile, ByteBuffer buffer) throws IOException {
+		readTile(input, tile, buffer, null);
+	}
+
+	// Also keeps the latest time the first double of such a tile arrived in arrived
+	private static void readTile(DataInputStream input, double[] tile, ByteBuffer buffer, AtomicLong arrived) throws IOException {
+		if (buffer == null) buffer = ByteBuffer.allocate(8*tile.length);
+		buffer.clear();
+		input.readFully(buffer.array(), 0, 8);
+		if (arrived != null) arrived.accumulateAndGet(System.nanoTime(), Math::max);
+		input.readFully(buffer.array(), 8, 8*tile.length - 8);
+		buffer.asDoubleBuffer().get(tile);
+	}
+
+	// ---------------------------------------------------------------- driver
+
+	// Starts q*q worker JVMs on this machine, on ports basePort, basePort+1, ...
+	public static List<Process> startLocalWorkers(int q, int basePort) throws IOException {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		String classpath = System.getProperty("java.class.path");
+		List<Process> processes = new ArrayList<>();
+		for (int r = 0; r < q*q; r++) {
+			processes.add(new ProcessBuilder(java, "-cp", classpath, "DistributedMult", "worker", String.valueOf(basePort + r))
+					.redirectOutput(ProcessBuilder.Redirect.DISCARD)
+					.redirectError(ProcessBuilder.Redirect.INHERIT)
+					.start());
+		}
+		return processes;
+	}
+
+	public static void OnMultDistributed(int m_ar, int m_br, int q, int basePort) {
+		int i, j;
+
+		double[] pha = new double[m_ar*m_ar];
+		double[] phb = new double[m_ar*m_ar];
+		double[] phc = new double[m_ar*m_ar];
+
+		for(i=0; i<m_ar; i++)
+			for(j=0; j<m_ar; j++)
+				pha[i*m_ar + j] = (double)1.0;
+
+		for(i=0; i<m_br; i++)
+			for(j=0; j<m_br; j++)
+				phb[i*m_br + j] = (double)(i+1);
+
+		String[] workers = new String[q*q];
+		for (int r = 0; r < q*q; r++) workers[r] = "localhost:" + (basePort + r);
+
+		List<Process> processes = new ArrayList<>();
+		try {
+			processes = startLocalWorkers(q, basePort);
+
+			MatrixRun run = MatrixRun.start("OnMultDistributed", m_ar, (m_ar + q - 1) / q, q*q);
+			List<WorkerStats> stats = mult(workers, q, pha, phb, phc, m_ar);
+			run.stop();
+
+			run.print();
+			printStats(stats);
+		} catch (IOException e) {
+			System.out.println("Distributed multiplication failed: " + e.getMessage());
+		} finally {
+			for (Process process : processes) process.destroy();
+		}
+	}
+
+	public static void printStats(List<WorkerStats> stats) {
+		System.out.println("Worker               Compute    Transfer   Waiting");
+		for (WorkerStats s : stats)
+			System.out.printf("%-20s %7.3f s  %7.3f s  %7.3f s\n", s.address, s.compute/1e9, s.communication/1e9, s.wait/1e9);
+	}
+
+	// java DistributedMult worker <port>
+	// java DistributedMult <n> <q> host:port ... (q*q workers, row by row)
+	public static void main(String[] args) throws IOException {
+		if (args.length == 2 && args[0].equals("worker")) {
+			worker(Integer.parseInt(args[1]));
+			return;
+		}
+		if (args.length < 3) {
+			System.out.println("Usage: java DistributedMult worker <port>");
+			System.out.println("       java DistributedMult <n> <q> host:port ... (q*q workers, row by row)");
+			return;
+		}
+
+		int n = Integer.parseInt(args[0]);
+		int q = Integer.parseInt(args[1]);
+		String[] workers = java.util.Arrays.copyOfRange(args, 2, args.length);
+
+		double[] pha = new double[n*n];
+		double[] phb = new double[n*n];
+		double[] phc = new double[n*n];
+		for (int i = 0; i < n; i++)
+			for (int j = 0; j < n; j++) {
+				pha[i*n + j] = (double)1.0;
+				phb[i*n + j] = (double)(i+1);
+			}
+
+		MatrixRun run = MatrixRun.start("OnMultDistributed", n, (n + q - 1) / q, q*q);
+		List<WorkerStats> stats = mult(workers, q, pha, phb, phc, n);
+		run.stop();
+
+		run.print();
+		printStats(stats);
+	}
+}
@@ -0,0 +1,207 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * General matrix multiplication, C = alpha * op(A) * op(B) + beta * C, for row-major
+ * matrices of any shape, with the same arguments as BLAS dgemm.
+ *
+ * op(A) is m x k and op(B) is k x n. With transA set, A is stored as its k x m transpose
+ * (and likewise for transB). Every matrix starts at its offset and its consecutive rows are
+ * ld elements apart, so sub-matrices of bigger arrays can be used directly.
+ *
+ * The kernels of this folder sit behind this API; choose() picks one from the shape:
+ * the line algorithm for tiny products (packing would cost more than it saves), Strassen
+ * for huge square products when there are at most 7 threads (it runs the 7 products of its
+ * top level in parallel, no more), and the packed kernel otherwise, split over threads when
+ * there is enough work.
+ *
+ * Threads can share an instance. It keeps the Strassen engine and product buffer of the
+ * last size multiplied with Strassen, so repeated products of one size allocate nothing;
+ * those products run one at a time.
+ */
+public class Gemm {
+	public enum Kernel { LINE, PACKED, PARALLEL_PACKED, STRASSEN }
+
+	// Below this many multiply-adds the line algorithm is used
+	public static final long SMALL_WORK = 48L * 48 * 48;
+	// Below this many multiply-adds a single thread is used
+	public static final long PARALLEL_WORK = 192L * 192 * 192;
+	// Smallest square size that uses Strassen
+	public static final int STRASSEN_MIN = 4096;
+	// Threads the Strassen kernel can use
+	public static final int STRASSEN_MAX_THREADS = 7;
+
+	private final int parallelism;
+	private final ForkJoinPool pool;
+
+	// Strassen engine and product buffer for size strassenN, guarded by this
+	private Strassen strassen;
+	private double[] product;
+	private int strassenN;
+
+	public Gemm(int parallelism) {
+		if (parallelism <= 0) parallelism = Runtime.getRuntime().availableProcessors();
+		this.parallelism = parallelism;
+		this.pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+	}
+
+	public synchronized void shutdown() {
+		if (pool != null) pool.shutdown();
+		if (strassen != null) strassen.shutdown();
+		strassen = null;
+		product = null;
+	}
+
+	// Kernel that gemm() uses for this shape
+	public Kernel choose(boolean transA, boolean transB, int m, int n, int k,
+			int aOff, int lda, int bOff, int ldb, int cOff, int ldc) {
+		long work = (long)m * n * k;
+		if (work < SMALL_WORK) return Kernel.LINE;
+		if (!transA && !transB && m == n && n == k && m >= STRASSEN_MIN && parallelism <= STRASSEN_MAX_THREADS
+				&& aOff == 0 && bOff == 0 && cOff == 0 && lda == n && ldb == n && ldc == n)
+			return Kernel.STRASSEN;
+		if (pool != null && work >= PARALLEL_WORK) return Kernel.PARALLEL_PACKED;
+		return Kernel.PACKED;
+	}
+
+	public void gemm(boolean transA, boolean transB, int m, int n, int k, double alpha,
+			double[] a, int aOff, int lda,
+			double[] b, int bOff, int ldb,
+			double beta, double[] c, int cOff, int ldc) {
+		Kernel kernel = choose(transA, transB, m, n, k, aOff, lda, bOff, ldb, cOff, ldc);
+		gemm(kernel, transA, transB, m, n, k, alpha, a, aOff, lda, b, bOff, ldb, beta, c, cOff, ldc);
+	}
+
+	// Same as gemm() above, with the kernel given by the caller
+	public void gemm(Kernel kernel, boolean transA, boolean transB, int m, int n, int k, double alpha,
+			double[] a, int aOff, int lda,
+			double[] b, int bOff, int ldb,
+			double beta, double[] c, int cOff, int ldc) {
+		check(transA, transB, m, n, k, a, aOff, lda, b, bOff, ldb, c, cOff, ldc);
+		if (m == 0 || n == 0) return;
+
+		scale(m, n, beta, c, cOff, ldc);
+		if (alpha == 0 || k == 0) return;
+
+		switch (kernel) {
+			case LINE:
+				line(transA, transB, m, n, k, alpha, a, aOff, lda, b, bOff, ldb, c, cOff, ldc);
+				break;
+			case PACKED:
+				PackedGemm.forThread().gemm(transA, transB, m, n, k, alpha, a, aOff, lda, b, bOff, ldb, c, cOff, ldc);
+				break;
+			case PARALLEL_PACKED:
+				if (pool == null) {
+					PackedGemm.forThread().gemm(transA, transB, m, n, k, alpha, a, aOff, lda, b, bOff, ldb, c, cOff, ldc);
+				} else {
+					parallelPacked(transA, transB, m, n, k, alpha, a, aOff, lda, b, bOff, ldb, c, cOff, ldc);
+				}
+				break;
+			case STRASSEN:
+				if (transA || transB || m != n || n != k)
+					throw new IllegalArgumentException("Strassen needs square, non-transposed matrices");
+				strassen(n, alpha, a, aOff, lda, b, bOff, ldb, c, cOff, ldc);
+				break;
+		}
+	}
+
+	private static void check(boolean transA, boolean transB, int m, int n, int k,
+			double[] a, int aOff, int lda, double[] b, int bOff, int ldb, double[] c, int cOff, int ldc) {
+		if (m < 0 || n < 0 || k < 0)
+			throw new IllegalArgumentException("Negative dimension: m=" + m + " n=" + n + " k=" + k);
+
+		int aRows = transA ? k : m, aCols = transA ? m : k;
+		int bRows = transB ? n : k, bCols = transB ? k : n;
+		checkMatrix("A", a, aOff, lda, aRows, aCols);
+		checkMatrix("B", b, bOff, ldb, bRows, bCols);
+		checkMatrix("C", c, cOff, ldc, m, n);
+	}
+
+	private static void checkMatrix(String name, double[] x, int off, int ld, int rows, int cols) {
+		if (ld < Math.max(1, cols))
+			throw new IllegalArgumentException("ld" + name.toLowerCase() + "=" + ld + " is smaller than the " + cols + " columns of " + name);
+		if (rows == 0 || cols == 0) return;
+		if (off < 0 || off + (long)(rows - 1) * ld + cols > x.length)
+			throw new IllegalArgumentException(name + " (" + rows + " x " + cols + ", offset " + off + ", ld " + ld + ") does not fit in an array of " + x.length);
+	}
+
+	// C = beta * C; with beta == 0 the old values are not read, as in BLAS
+	private static void scale(int m, int n, double beta, double[] c, int cOff, int ldc) {
+		if (beta == 1) return;
+		for (int i = 0; i < m; i++) {
+			int row = cOff + i*ldc;
+			if (beta == 0) java.util.Arrays.fill(c, row, row + n, 0);
+			else for (int j = 0; j < n; j++) c[row + j] *= beta;
+		}
+	}
+
+	// C += alpha * op(A) * op(B) with the i-k-j loops of the line algorithm
+	private static void line(boolean transA, boolean transB, int m, int n, int k, double alpha,
+			double[] a, int aOff, int lda, double[] b, int bOff, int ldb, double[] c, int cOff, int ldc) {
+		for (int i = 0; i < m; i++) {
+			int rowC = cOff + i*ldc;
+			for (int p = 0; p < k; p++) {
+				double aip = alpha * (transA ? a[aOff + p*lda + i] : a[aOff + i*lda + p]);
+				if (transB) {
+					for (int j = 0; j < n; j++) c[rowC + j] += aip * b[bOff + j*ldb + p];
+				} else {
+					int rowB = bOff + p*ldb;
+					for (int j = 0; j < n; j++) c[rowC + j] += aip * b[rowB + j];
+				}
+			}
+		}
+	}
+
+	// Splits C into panels of rows (or of columns, when C is short and wide), one task each
+	private void parallelPacked(boolean transA, boolean transB, int m, int n, int k, double alpha,
+			double[] a, int aOff, int lda, double[] b, int bOff, int ldb, double[] c, int cOff, int ldc) {
+		List<ForkJoinTask<?>> tasks = new ArrayList<>();
+		boolean byRows = m >= n || m >= PackedGemm.MC * parallelism;
+
+		int length = byRows ? m : n;
+		int unit = byRows ? PackedGemm.MR : PackedGemm.NR;
+		int panel = Math.max(unit, (length / (parallelism * ParallelMult.TASKS_PER_THREAD) + unit - 1) / unit * unit);
+
+		for (int start = 0; start < length; start += panel) {
+			int size = Math.min(panel, length - start);
+			if (byRows) {
+				int aStart = aOff + (transA ? start : start*lda);
+				int cStart = cOff + start*ldc;
+				tasks.add(ForkJoinTask.adapt(() -> PackedGemm.forThread().gemm(transA, transB, size, n, k, alpha,
+						a, aStart, lda, b, bOff, ldb, c, cStart, ldc)));
+			} else {
+				int bStart = bOff + (transB ? start*ldb : start);
+				int cStart = cOff + start;
+				tasks.add(ForkJoinTask.adapt(() -> PackedGemm.forThread().gemm(transA, transB, m, size, k, alpha,
+						a, aOff, lda, b, bStart, ldb, c, cStart, ldc)));
+			}
+		}
+
+		pool.submit(() -> ForkJoinTask.invokeAll(tasks)).join();
+	}
+
+	// C += alpha * A * B through a Strassen product buffer, with the tuned crossover
+	private synchronized void strassen(int n, double alpha, double[] a, int aOff, int lda,
+			double[] b, int bOff, int ldb, double[] c, int cOff, int ldc) {
+		if (aOff != 0 || bOff != 0 || lda != n || ldb != n)
+			throw new IllegalArgumentException("Strassen needs A and B stored as whole n x n arrays");
+
+		if (strassen == null || strassenN != n) {
+			if (strassen != null) strassen.shutdown();
+			// Drop the old buffers before allocating the new ones
+			strassen = null;
+			product = null;
+			strassen = new Strassen(n, Strassen.crossover(), parallelism);
+			product = new double[n*n];
+			strassenN = n;
+		}
+		strassen.mult(a, b, product);
+
+		for (int i = 0; i < n; i++) {
+			int row = cOff + i*ldc;
+			for (int j = 0; j < n; j++) c[row + j] += alpha * product[i*n + j];
+		}
+	}
+}
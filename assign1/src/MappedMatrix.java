@@ -0,0 +1,111 @@
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A row-major matrix of doubles stored in a memory-mapped file.
+ *
+ * Indices are longs, so the matrix is limited by disk space instead of by the heap and by
+ * int array indexing. A single mapping cannot be larger than 2 GB, so the file is mapped
+ * in chunks of whole rows; a row never crosses two chunks, which keeps tile reads and
+ * writes to one bulk copy per row.
+ */
+public class MappedMatrix implements AutoCloseable {
+	// Largest mapping used for one chunk of rows
+	public static final long CHUNK_BYTES = 1L << 30;
+
+	private final FileChannel channel;
+	private final long rows;
+	private final int cols;
+	private final long rowsPerChunk;
+	private final MappedByteBuffer[] mappings;
+	private final DoubleBuffer[] chunks;
+
+	private MappedMatrix(Path file, long rows, int cols, boolean create) throws IOException {
+		this.rows = rows;
+		this.cols = cols;
+		this.rowsPerChunk = Math.max(1, CHUNK_BYTES / (8L * cols));
+
+		if (create) {
+			channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+					StandardOpenOption.READ, StandardOpenOption.WRITE);
+		} else {
+			channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			if (channel.size() < 8L * rows * cols) {
+				channel.close();
+				throw new IOException(file + " is smaller than a " + rows + " x " + cols + " matrix");
+			}
+		}
+
+		int count = (int)((rows + rowsPerChunk - 1) / rowsPerChunk);
+		mappings = new MappedByteBuffer[count];
+		chunks = new DoubleBuffer[count];
+		for (int i = 0; i < count; i++) {
+			long first = i * rowsPerChunk;
+			long length = 8L * cols * Math.min(rowsPerChunk, rows - first);
+			mappings[i] = channel.map(FileChannel.MapMode.READ_WRITE, 8L * cols * first, length);
+			mappings[i].order(ByteOrder.nativeOrder());
+			chunks[i] = mappings[i].asDoubleBuffer();
+		}
+	}
+
+	// Creates (or truncates) the file and maps a rows x cols matrix of zeros
+	public static MappedMatrix create(Path file, long rows, int cols) throws IOException {
+		return new MappedMatrix(file, rows, cols, true);
+	}
+
+	// Maps an existing file written by create()
+	public static MappedMatrix open(Path file, long rows, int cols) throws IOException {
+		return new MappedMatrix(file, rows, cols, false);
+	}
+
+	public long getRows() {
+		return rows;
+	}
+
+	public int getCols() {
+		return cols;
+	}
+
+	public double get(long i, int j) {
+		return chunks[(int)(i / rowsPerChunk)].get((int)((i % rowsPerChunk) * cols) + j);
+	}
+
+	public void set(long i, int j, double value) {
+		chunks[(int)(i / rowsPerChunk)].put((int)((i % rowsPerChunk) * cols) + j, value);
+	}
+
+	// Copies length values of row i, starting at column j, into dst[off..]
+	public void readRow(long i, int j, double[] dst, int off, int length) {
+		chunks[(int)(i / rowsPerChunk)].get((int)((i % rowsPerChunk) * cols) + j, dst, off, length);
+	}
+
+	public void writeRow(long i, int j, double[] src, int off, int length) {
+		chunks[(int)(i / rowsPerChunk)].put((int)((i % rowsPerChunk) * cols) + j, src, off, length);
+	}
+
+	// Copies the h x w tile at (row, col) into dst, whose rows are ld elements apart
+	public void readTile(long row, int col, int h, int w, double[] dst, int ld) {
+		for (int i = 0; i < h; i++)
+			readRow(row + i, col, dst, i*ld, w);
+	}
+
+	public void writeTile(long row, int col, int h, int w, double[] src, int ld) {
+		for (int i = 0; i < h; i++)
+			writeRow(row + i, col, src, i*ld, w);
+	}
+
+	// Writes the dirty pages back to the file
+	public void force() {
+		for (MappedByteBuffer mapping : mappings) mapping.force();
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
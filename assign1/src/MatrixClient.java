@@ -0,0 +1,136 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * Client of MatrixService. Each multiply call sends one job and hands every tile of C to
+ * the listener as soon as it arrives, so the caller can use the first tiles while the
+ * service is still computing the rest.
+ */
+public class MatrixClient implements AutoCloseable {
+	public interface TileListener {
+		// values holds the h x w tile of C at (row, col), row-major
+		void tile(int row, int col, int h, int w, double[] values);
+	}
+
+	private final Socket socket;
+	private final DataInputStream input;
+	private final DataOutputStream output;
+
+	public MatrixClient(String host, int port) throws IOException {
+		socket = new Socket(host, port);
+		socket.setTcpNoDelay(true);
+		input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+	}
+
+	// C = A * B with A m x k and B k x n sent inline; returns the service time in nanoseconds
+	public long multiply(double[] a, double[] b, int m, int k, int n, int tile, TileListener listener) throws IOException {
+		output.writeByte(MatrixService.INLINE);
+		output.writeInt(m);
+		output.writeInt(k);
+		output.writeInt(n);
+		output.writeInt(tile);
+		writeDoubles(a, m*k);
+		writeDoubles(b, k*n);
+		output.flush();
+		return receive(listener);
+	}
+
+	// C = A * B with A and B in MappedMatrix files the service can open
+	public long multiply(String fileA, String fileB, int m, int k, int n, int tile, TileListener listener) throws IOException {
+		output.writeByte(MatrixService.FILES);
+		output.writeInt(m);
+		output.writeInt(k);
+		output.writeInt(n);
+		output.writeInt(tile);
+		output.writeUTF(fileA);
+		output.writeUTF(fileB);
+		output.flush();
+		return receive(listener);
+	}
+
+	private void writeDoubles(double[] values, int length) throws IOException {
+		ByteBuffer bytes = ByteBuffer.allocate(8 * Math.min(length, 1 << 16));
+		for (int done = 0; done < length; ) {
+			int count = Math.min(length - done, bytes.capacity() / 8);
+			bytes.clear();
+			bytes.asDoubleBuffer().put(values, done, count);
+			output.write(bytes.array(), 0, 8*count);
+			done += count;
+		}
+	}
+
+	private long receive(TileListener listener) throws IOException {
+		while (true) {
+			byte kind = input.readByte();
+			switch (kind) {
+				case MatrixService.ACCEPTED:
+					break;
+				case MatrixService.BUSY:
+					throw new IOException("The service is busy, try again later");
+				case MatrixService.TILE: {
+					int row = input.readInt();
+					int col = input.readInt();
+					int h = input.readInt();
+					int w = input.readInt();
+					double[] values = new double[h*w];
+					MatrixService.readDoubles(input, values);
+					listener.tile(row, col, h, w, values);
+					break;
+				}
+				case MatrixService.DONE:
+					return input.readLong();
+				case MatrixService.ERROR:
+					throw new IOException("Job failed: " + input.readUTF());
+				default:
+					throw new IOException("Unexpected answer " + kind);
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		socket.close();
+	}
+
+	// java MatrixClient <port> <n> [jobs] [tile]: multiplies A = 1 by B = row + 1 and checks C
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.out.println("Usage: java MatrixClient <port> <n> [jobs] [tile]");
+			return;
+		}
+		int port = Integer.parseInt(args[0]);
+		int n = Integer.parseInt(args[1]);
+		int jobs = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+		int tile = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+
+		double[] pha = new double[n*n];
+		double[] phb = new double[n*n];
+		double[] phc = new double[n*n];
+		for (int i = 0; i < n; i++)
+			for (int j = 0; j < n; j++) {
+				pha[i*n + j] = (double)1.0;
+				phb[i*n + j] = (double)(i+1);
+			}
+
+		try (MatrixClient client = new MatrixClient("localhost", port)) {
+			for (int job = 0; job < jobs; job++) {
+				long[] first = {0};
+				long start = System.nanoTime();
+				long service = client.multiply(pha, phb, n, n, n, tile, (row, col, h, w, values) -> {
+					if (first[0] == 0) first[0] = System.nanoTime();
+					for (int i = 0; i < h; i++)
+						System.arraycopy(values, i*w, phc, (row + i)*n + col, w);
+				});
+				long end = System.nanoTime();
+
+				double expected = n * (n + 1.0) / 2;
+				boolean ok = true;
+				for (double v : phc) ok &= v == expected;
+				System.out.printf("Job %d: first tile %3.3f s, all tiles %3.3f s, service %3.3f s, %s\n",
+						job, (first[0] - start) / 1e9, (end - start) / 1e9, service / 1e9, ok ? "ok" : "WRONG");
+			}
+		}
+	}
+}
@@ -0,0 +1,166 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measures one timed multiplication of the driver.
+ *
+ * start() is called right before the kernel and stop() right after it. Besides the time,
+ * a run records the bytes allocated and the GC time of the whole JVM in between, the
+ * cache-miss counters from perf stat when -Dmatrix.perf=true (see PerfStat; the l1_dcm and
+ * l2_dcm columns only get counts of L1 and L2 miss events), commits a
+ * MatrixRunEvent to JFR and, when the MATRIX_REPORT environment variable names a file,
+ * appends a CSV row to it. The C++ driver appends rows with the same columns to the same
+ * file, so both versions end up in one report.
+ */
+public class MatrixRun {
+	public static final String REPORT_HEADER =
+			"language,algorithm,size,block_size,threads,time_s,gflops,l1_dcm,l2_dcm,allocated_bytes,gc_ms";
+
+	private final String algorithm;
+	private final int size;
+	private final int blockSize;
+	private final int threads;
+	private final MatrixRunEvent event = new MatrixRunEvent();
+
+	private PerfStat perf = null;
+	private long startTime, startAllocated, startGc;
+	private long time, allocated, gcTime;
+	private long[] misses = {-1, -1};
+	private String[] events = {PerfStat.L1_EVENT, PerfStat.L2_EVENTS[0]};
+
+	private MatrixRun(String algorithm, int size, int blockSize, int threads) {
+		this.algorithm = algorithm;
+		this.size = size;
+		this.blockSize = blockSize;
+		this.threads = threads;
+	}
+
+	// blockSize is 0 for algorithms without blocks
+	public static MatrixRun start(String algorithm, int size, int blockSize, int threads) {
+		MatrixRun run = new MatrixRun(algorithm, size, blockSize, threads);
+
+		if (PerfStat.enabled()) {
+			run.perf = new PerfStat();
+			run.events = run.perf.getEvents();
+			try {
+				run.perf.start();
+			} catch (IOException e) {
+				System.out.println("Could not start perf stat: " + e.getMessage());
+				run.perf = null;
+			}
+		}
+
+		run.startAllocated = allocatedBytes();
+		run.startGc = gcMillis();
+		run.event.begin();
+		run.startTime = System.nanoTime();
+		return run;
+	}
+
+	// Stops the measurement, records it and returns the time in seconds
+	public double stop() {
+		time = System.nanoTime() - startTime;
+		event.end();
+		allocated = allocatedBytes() - startAllocated;
+		gcTime = gcMillis() - startGc;
+
+		if (perf != null) {
+			try {
+				misses = perf.stop();
+			} catch (IOException e) {
+				System.out.println("Could not read perf stat: " + e.getMessage());
+			}
+		}
+
+		if (event.shouldCommit()) {
+			event.algorithm = algorithm;
+			event.size = size;
+			event.blockSize = blockSize;
+			event.threads = threads;
+			event.time = time;
+			event.gflops = getGflops();
+			event.allocated = allocated;
+			event.gcTime = gcTime;
+			event.l1Misses = counter("L1 DCM");
+			event.l2Misses = counter("L2 DCM");
+			event.commit();
+		}
+
+		String report = System.getenv("MATRIX_REPORT");
+		if (report != null && !report.isEmpty()) append(report);
+
+		return getSeconds();
+	}
+
+	public double getSeconds() {
+		return time / 1e9;
+	}
+
+	public double getGflops() {
+		return time == 0 ? 0 : 2.0 * size * size * size / time;
+	}
+
+	public void print() {
+		System.out.printf("Time: %3.3f seconds\n", getSeconds());
+		printCounters();
+	}
+
+	public void print(String label) {
+		System.out.printf("Time (%s): %3.3f seconds\n", label, getSeconds());
+		printCounters();
+	}
+
+	private void printCounters() {
+		for (int i = 0; i < misses.length; i++) {
+			if (misses[i] >= 0) System.out.printf("%s: %d \n", PerfStat.label(events[i]), misses[i]);
+		}
+	}
+
+	// The count of the event printed with this label ("L1 DCM" or "L2 DCM"), -1 without one
+	private long counter(String label) {
+		for (int i = 0; i < misses.length; i++) {
+			if (PerfStat.label(events[i]).equals(label)) return misses[i];
+		}
+		return -1;
+	}
+
+	private void append(String path) {
+		File file = new File(path);
+		boolean header = !file.exists() || file.length() == 0;
+		try (PrintWriter writer = new PrintWriter(new FileWriter(file, true))) {
+			if (header) writer.println(REPORT_HEADER);
+			writer.printf(java.util.Locale.ROOT, "java,%s,%d,%d,%d,%.6f,%.4f,%s,%s,%d,%d\n",
+					algorithm, size, blockSize, threads, getSeconds(), getGflops(),
+					counter("L1 DCM") >= 0 ? String.valueOf(counter("L1 DCM")) : "",
+					counter("L2 DCM") >= 0 ? String.valueOf(counter("L2 DCM")) : "",
+					allocated, gcTime);
+		} catch (IOException e) {
+			System.out.println("Could not write to " + path + ": " + e.getMessage());
+		}
+	}
+
+	// Bytes allocated so far by the live threads (threads that ended in between are not counted)
+	private static long allocatedBytes() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean)) return 0;
+
+		long total = 0;
+		for (long bytes : ((com.sun.management.ThreadMXBean)threads).getThreadAllocatedBytes(threads.getAllThreadIds()))
+			if (bytes > 0) total += bytes;
+		return total;
+	}
+
+	private static long gcMillis() {
+		long total = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			long time = gc.getCollectionTime();
+			if (time > 0) total += time;
+		}
+		return total;
+	}
+}
@@ -0,0 +1,54 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * JFR event committed by MatrixRun for every timed multiplication.
+ * Recorded only while a flight recording is running, for example with
+ *   java -XX:StartFlightRecording=filename=runs.jfr matrixproduct
+ */
+@Name("matrixproduct.Run")
+@Label("Matrix Multiplication")
+@Category("Matrix Product")
+@Description("One timed matrix multiplication")
+public class MatrixRunEvent extends Event {
+	@Label("Algorithm")
+	public String algorithm;
+
+	@Label("Size")
+	public int size;
+
+	@Label("Block Size")
+	@Description("0 when the algorithm does not use blocks")
+	public int blockSize;
+
+	@Label("Threads")
+	public int threads;
+
+	@Label("Time")
+	@Timespan(Timespan.NANOSECONDS)
+	public long time;
+
+	@Label("GFLOP/s")
+	public double gflops;
+
+	@Label("Allocated")
+	@DataAmount
+	public long allocated;
+
+	@Label("GC Time")
+	@Timespan(Timespan.MILLISECONDS)
+	public long gcTime;
+
+	@Label("L1 Data Cache Misses")
+	@Description("-1 when perf counters are not captured")
+	public long l1Misses;
+
+	@Label("L2 Data Cache Misses")
+	@Description("-1 when perf counters are not captured or perf has no L2 miss event")
+	public long l2Misses;
+}
@@ -0,0 +1,403 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Long-running multiplication service: clients submit jobs over a local socket and get the
+ * tiles of C back as soon as each one is computed.
+ *
+ * Each connection sends jobs one after the other (see MatrixClient for the other side):
+ *   byte INLINE, int m, int k, int n, int tile, m*k doubles of A, k*n doubles of B
+ *   byte FILES,  int m, int k, int n, int tile, UTF path of A, UTF path of B
+ * where the files are MappedMatrix files (A is m x k, B is k x n) and tile 0 lets the
+ * service choose. The answer is ACCEPTED or BUSY, then for an accepted job one TILE
+ * (int row, int col, int h, int w, h*w doubles) per tile of C in the order they finish,
+ * and finally DONE (long nanoseconds) or ERROR (UTF message).
+ *
+ * Jobs wait in a bounded queue. When it is full, a connection waits up to SUBMIT_TIMEOUT
+ * for room (and stops reading meanwhile, so TCP pushes back on the client) and otherwise
+ * answers BUSY. One scheduler thread takes jobs in order: a large job gets the whole pool,
+ * its tiles computed in parallel, while small jobs waiting next to each other are batched
+ * and run side by side, one task per job.
+ *
+ * The pool's threads never write to a socket: a finished tile goes to its job's bounded
+ * queue, and the job's connection thread sends it. When the queue is full the computing
+ * thread waits for the client to take a tile; a client that takes none for
+ * STALL_TIMEOUT_SECONDS fails its own job (ERROR), so it cannot hold pool threads forever.
+ *
+ * Tiles are at most MAX_TILE wide. For operands in files, the common dimension is read in
+ * slabs of SLAB, so the buffers of a tile do not grow with k.
+ */
+public class MatrixService {
+	static final byte INLINE = 1;
+	static final byte FILES = 2;
+	static final byte ACCEPTED = 10;
+	static final byte BUSY = 11;
+	static final byte TILE = 12;
+	static final byte DONE = 13;
+	static final byte ERROR = 14;
+
+	// Jobs with fewer multiply-adds are small and batched
+	public static final long LARGE_WORK = 256L * 256 * 256;
+	// Most small jobs run together in one batch
+	public static final int MAX_BATCH = 64;
+	public static final int DEFAULT_TILE = 256;
+	public static final int SUBMIT_TIMEOUT_SECONDS = 5;
+	// Tiles computed but not sent yet, per job (32 tiles of 256 x 256 are 16 MB)
+	public static final int MAX_PENDING_TILES = 32;
+	// A job whose client takes no tile for this long while its queue is full is failed
+	public static final int STALL_TIMEOUT_SECONDS = 30;
+	// Larger tile sizes asked by a client are reduced to this (a 4096 x 4096 tile is 128 MB)
+	public static final int MAX_TILE = 4096;
+	// Columns of A (rows of B) read at a time for operands in files
+	public static final int SLAB = 256;
+	private static final long TILE_POLL_MILLIS = 10;
+
+	private final ServerSocket server;
+	private final ForkJoinPool pool;
+	private final BlockingQueue<Job> queue;
+	private final Thread scheduler;
+	private volatile boolean running = true;
+
+	private static class Tile {
+		final int row, col, h, w;
+		final byte[] bytes;
+
+		Tile(int row, int col, int h, int w, byte[] bytes) {
+			this.row = row;
+			this.col = col;
+			this.h = h;
+			this.w = w;
+			this.bytes = bytes;
+		}
+	}
+
+	private static class Job {
+		final int m, k, n, tile;
+		final double[] a, b;
+		final MappedMatrix ma, mb;
+		final BlockingQueue<Tile> tiles = new ArrayBlockingQueue<>(MAX_PENDING_TILES);
+		final CountDownLatch done = new CountDownLatch(1);
+		volatile Throwable failure = null;
+		// Tiles taken by the connection thread, the only writer
+		volatile long taken = 0;
+		long nanos;
+
+		Job(int m, int k, int n, int tile, double[] a, double[] b, MappedMatrix ma, MappedMatrix mb) {
+			this.m = m;
+			this.k = k;
+			this.n = n;
+			this.tile = tile;
+			this.a = a;
+			this.b = b;
+			this.ma = ma;
+			this.mb = mb;
+		}
+
+		long work() {
+			return (long)m * n * k;
+		}
+
+		// C(row.., col..) = A(row.., :) * B(:, col..), h x w, queued for the connection as
+		// soon as it is ready
+		void computeTile(int row, int col, int h, int w) throws IOException {
+			if (failure != null) return; // The job failed, its other tiles are dropped
+			double[] c = new double[h*w];
+			if (a != null) {
+				PackedGemm.forThread().gemm(h, w, k, a, row*k, k, b, col, n, c, 0, w);
+			} else {
+				int slab = Math.min(k, SLAB);
+				double[] panelA = new double[h*slab];
+				double[] panelB = new double[slab*w];
+				for (int depth = 0; depth < k; depth += slab) {
+					int d = Math.min(slab, k - depth);
+					ma.readTile(row, depth, h, d, panelA, d);
+					mb.readTile(depth, col, d, w, panelB, w);
+					PackedGemm.forThread().gemm(h, w, d, panelA, 0, d, panelB, 0, w, c, 0, w);
+				}
+			}
+
+			ByteBuffer bytes = ByteBuffer.allocate(8*c.length);
+			bytes.asDoubleBuffer().put(c);
+			queue(new Tile(row, col, h, w, bytes.array()));
+		}
+
+		// Waits while the queue is full and the client keeps taking tiles
+		private void queue(Tile tile) throws IOException {
+			long seen = taken;
+			long progress = System.nanoTime();
+			try {
+				while (!tiles.offer(tile, TILE_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+					if (failure != null) return;
+					if (taken != seen) {
+						seen = taken;
+						progress = System.nanoTime();
+					} else if (System.nanoTime() - progress > TimeUnit.SECONDS.toNanos(STALL_TIMEOUT_SECONDS)) {
+						IOException e = new IOException("The client took no tile for " + STALL_TIMEOUT_SECONDS + " seconds");
+						failure = e;
+						throw e;
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while queueing a tile", e);
+			}
+		}
+
+		// All the tiles, in the calling thread
+		void computeAll() throws IOException {
+			for (int row = 0; row < m; row += tile)
+				for (int col = 0; col < n; col += tile)
+					computeTile(row, col, Math.min(tile, m - row), Math.min(tile, n - col));
+		}
+	}
+
+	public MatrixService(int port, int parallelism, int capacity) throws IOException {
+		if (parallelism <= 0) parallelism = Runtime.getRuntime().availableProcessors();
+		this.server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		this.pool = new ForkJoinPool(parallelism);
+		this.queue = new ArrayBlockingQueue<>(capacity);
+		this.scheduler = new Thread(this::schedule, "scheduler");
+	}
+
+	public void serve() throws IOException {
+		scheduler.start();
+		System.out.println("Matrix service on port " + server.getLocalPort() + " with " + pool.getParallelism() + " threads");
+		try {
+			while (running) {
+				Socket socket = server.accept();
+				Thread connection = new Thread(() -> handle(socket), "client-" + socket.getPort());
+				connection.setDaemon(true);
+				connection.start();
+			}
+		} catch (IOException e) {
+			if (running) throw e;
+		}
+	}
+
+	public void shutdown() throws IOException {
+		running = false;
+		server.close();
+		scheduler.interrupt();
+		pool.shutdown();
+	}
+
+	// ---------------------------------------------------------------- connections
+
+	private void handle(Socket socket) {
+		try (Socket s = socket) {
+			DataInputStream input = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+			DataOutputStream output = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+
+			while (true) {
+				int kind = input.read();
+				if (kind < 0) return;
+
+				Job job;
+				try {
+					job = readJob((byte)kind, input);
+				} catch (IllegalArgumentException | IOException e) {
+					output.writeByte(ERROR);
+					output.writeUTF(String.valueOf(e.getMessage()));
+					output.flush();
+					if (e instanceof IOException) return;
+					continue;
+				}
+
+				boolean accepted = queue.offer(job, SUBMIT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+				output.writeByte(accepted ? ACCEPTED : BUSY);
+				output.flush();
+				if (!accepted) {
+					close(job);
+					continue;
+				}
+
+				// The next job is only read when this one is answered
+				sendTiles(job, output);
+				if (job.failure == null) {
+					output.writeByte(DONE);
+					output.writeLong(job.nanos);
+				} else {
+					output.writeByte(ERROR);
+					output.writeUTF(String.valueOf(job.failure));
+				}
+				output.flush();
+			}
+		} catch (IOException e) {
+			// Client went away
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// Until the job is done and all its tiles are sent; flushes whenever the queue runs dry.
+	// If the client stops reading, the write blocks here and only this job's queue fills up.
+	// A client that goes away fails its job, so the computing threads stop waiting for it.
+	private static void sendTiles(Job job, DataOutputStream output) throws IOException, InterruptedException {
+		try {
+			while (true) {
+				Tile tile = job.tiles.poll(TILE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+				if (tile == null) {
+					// Every tile is queued before done is counted down
+					if (job.done.getCount() == 0 && job.tiles.isEmpty()) return;
+					continue;
+				}
+				job.taken++;
+				output.writeByte(TILE);
+				output.writeInt(tile.row);
+				output.writeInt(tile.col);
+				output.writeInt(tile.h);
+				output.writeInt(tile.w);
+				output.write(tile.bytes);
+				if (job.tiles.isEmpty()) output.flush();
+			}
+		} catch (IOException e) {
+			job.failure = e;
+			throw e;
+		}
+	}
+
+	private static Job readJob(byte kind, DataInputStream input) throws IOException {
+		int m = input.readInt();
+		int k = input.readInt();
+		int n = input.readInt();
+		int tile = input.readInt();
+		if (tile <= 0) tile = DEFAULT_TILE;
+		tile = Math.min(tile, MAX_TILE);
+
+		if (kind == INLINE) {
+			if (m <= 0 || k <= 0 || n <= 0 || (long)m*k > Integer.MAX_VALUE || (long)k*n > Integer.MAX_VALUE)
+				throw new IOException("Bad matrix dimensions " + m + " x " + k + " x " + n);
+			double[] a = new double[m*k];
+			double[] b = new double[k*n];
+			readDoubles(input, a);
+			readDoubles(input, b);
+			return new Job(m, k, n, tile, a, b, null, null);
+		}
+		if (kind == FILES) {
+			String fileA = input.readUTF();
+			String fileB = input.readUTF();
+			if (m <= 0 || k <= 0 || n <= 0)
+				throw new IllegalArgumentException("Bad matrix dimensions " + m + " x " + k + " x " + n);
+			// The request was read completely, so a bad file only fails this job
+			MappedMatrix ma = null;
+			try {
+				ma = MappedMatrix.open(Paths.get(fileA), m, k);
+				return new Job(m, k, n, tile, null, null, ma, MappedMatrix.open(Paths.get(fileB), k, n));
+			} catch (IOException e) {
+				if (ma != null) ma.close();
+				throw new IllegalArgumentException("Cannot open the matrix files: " + e.getMessage(), e);
+			}
+		}
+		throw new IOException("Unknown job kind " + kind);
+	}
+
+	static void readDoubles(DataInputStream input, double[] values) throws IOException {
+		byte[] bytes = new byte[8 * Math.min(values.length, 1 << 16)];
+		for (int done = 0; done < values.length; ) {
+			int count = Math.min(values.length - done, bytes.length / 8);
+			input.readFully(bytes, 0, 8*count);
+			ByteBuffer.wrap(bytes, 0, 8*count).asDoubleBuffer().get(values, done, count);
+			done += count;
+		}
+	}
+
+	private static void close(Job job) {
+		try {
+			if (job.ma != null) job.ma.close();
+			if (job.mb != null) job.mb.close();
+		} catch (IOException e) {
+			// Nothing left to do with the files
+		}
+	}
+
+	// ---------------------------------------------------------------- scheduler
+
+	private void schedule() {
+		List<Job> batch = new ArrayList<>();
+		while (running) {
+			Job job;
+			try {
+				job = queue.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			if (job.work() >= LARGE_WORK) {
+				runLarge(job);
+				continue;
+			}
+
+			// Small jobs queued right behind this one share the pool with it
+			batch.clear();
+			batch.add(job);
+			while (batch.size() < MAX_BATCH && queue.peek() != null && queue.peek().work() < LARGE_WORK)
+				batch.add(queue.poll());
+			runBatch(batch);
+		}
+	}
+
+	// One task per tile, the job has the whole pool
+	private void runLarge(Job job) {
+		long start = System.nanoTime();
+		List<ForkJoinTask<?>> tasks = new ArrayList<>();
+		for (int row = 0; row < job.m; row += job.tile) {
+			for (int col = 0; col < job.n; col += job.tile) {
+				int r = row, c = col, h = Math.min(job.tile, job.m - row), w = Math.min(job.tile, job.n - col);
+				tasks.add(pool.submit(() -> {
+					job.computeTile(r, c, h, w);
+					return null;
+				}));
+			}
+		}
+		for (ForkJoinTask<?> task : tasks) {
+			try {
+				task.join();
+			} catch (RuntimeException e) {
+				if (job.failure == null) job.failure = e.getCause() != null ? e.getCause() : e;
+			}
+		}
+		finish(job, start);
+	}
+
+	// One task per job
+	private void runBatch(List<Job> batch) {
+		List<ForkJoinTask<?>> tasks = new ArrayList<>();
+		for (Job job : batch) {
+			tasks.add(pool.submit(() -> {
+				long start = System.nanoTime();
+				try {
+					job.computeAll();
+				} catch (IOException | RuntimeException e) {
+					job.failure = e;
+				}
+				finish(job, start);
+			}));
+		}
+		for (ForkJoinTask<?> task : tasks) task.join();
+	}
+
+	private static void finish(Job job, long start) {
+		job.nanos = System.nanoTime() - start;
+		close(job);
+		job.done.countDown();
+	}
+
+	// java MatrixService <port> [threads] [queue capacity]
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.out.println("Usage: java MatrixService <port> [threads] [queue capacity]");
+			return;
+		}
+		int port = Integer.parseInt(args[0]);
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+		int capacity = args.length > 2 ? Integer.parseInt(args[2]) : 256;
+		new MatrixService(port, threads, capacity).serve();
+	}
+}
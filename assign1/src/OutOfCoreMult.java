@@ -0,0 +1,196 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Multiplication of matrices stored in memory-mapped files (MappedMatrix).
+ *
+ * C is produced one T x T tile at a time: for every tile of C, the matching tiles of a
+ * row panel of A and a column panel of B are copied into heap buffers and multiplied with
+ * PackedGemm, and the finished tile is written back once. Only five tiles live in memory
+ * (two A/B pairs and the C tile), so the memory budget, not n, decides the tile size.
+ * While one pair is being multiplied, a background thread already reads the next pair,
+ * so page faults and disk reads overlap with computation.
+ */
+public class OutOfCoreMult {
+	// Tile buffers kept in memory at the same time
+	public static final int TILES_IN_MEMORY = 5;
+	public static final int MIN_TILE = 64;
+	// Largest tile whose tile*tile buffer still fits in one array
+	public static final int MAX_TILE = (int)Math.sqrt(Integer.MAX_VALUE - 8);
+
+	private final int tile;
+	private final double[][] aTiles = new double[2][];
+	private final double[][] bTiles = new double[2][];
+	private final double[] cTile;
+	private final ExecutorService reader = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "tile-reader");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private long ioWaitNanos = 0;
+
+	public OutOfCoreMult(int tile) {
+		if (tile < 1 || tile > MAX_TILE)
+			throw new IllegalArgumentException("The tile size must be between 1 and " + MAX_TILE + ", got " + tile);
+		this.tile = tile;
+		for (int i = 0; i < 2; i++) {
+			aTiles[i] = new double[tile*tile];
+			bTiles[i] = new double[tile*tile];
+		}
+		cTile = new double[tile*tile];
+	}
+
+	// Largest tile size whose buffers fit in the budget (in bytes), at most MAX_TILE
+	public static int tileForBudget(long budgetBytes, long n) {
+		long tile = (long)Math.sqrt((double)budgetBytes / (8.0 * TILES_IN_MEMORY));
+		tile = Math.max(MIN_TILE, Math.min(tile, MAX_TILE));
+		return (int)Math.min(tile, n);
+	}
+
+	public int getTile() {
+		return tile;
+	}
+
+	// Time spent waiting for tiles that were not read yet
+	public double getIoWaitSeconds() {
+		return ioWaitNanos / 1e9;
+	}
+
+	public void shutdown() {
+		reader.shutdown();
+	}
+
+	// C = A * B, where A is m x k, B is k x n and C is m x n
+	public void mult(MappedMatrix a, MappedMatrix b, MappedMatrix c) throws IOException {
+		long m = a.getRows();
+		int k = a.getCols();
+		int n = b.getCols();
+		if (b.getRows() != k || c.getRows() != m || c.getCols() != n)
+			throw new IllegalArgumentException("Matrix dimensions do not match");
+
+		long rowTiles = (m + tile - 1) / tile;
+		int colTiles = (n + tile - 1) / tile;
+		int depthTiles = (k + tile - 1) / tile;
+		long steps = rowTiles * colTiles * depthTiles;
+
+		ioWaitNanos = 0;
+		Future<?> pending = prefetch(a, b, 0, depthTiles, colTiles, 0);
+
+		for (long step = 0; step < steps; step++) {
+			long it = step / ((long)colTiles * depthTiles);
+			int jt = (int)((step / depthTiles) % colTiles);
+			int kt = (int)(step % depthTiles);
+			int slot = (int)(step & 1);
+
+			long row = it * tile;
+			int col = jt * tile;
+			int depth = kt * tile;
+			int h = (int)Math.min(tile, m - row);
+			int w = Math.min(tile, n - col);
+			int d = Math.min(tile, k - depth);
+
+			long time1 = System.nanoTime();
+			await(pending);
+			ioWaitNanos += System.nanoTime() - time1;
+
+			if (step + 1 < steps) pending = prefetch(a, b, step + 1, depthTiles, colTiles, slot ^ 1);
+
+			if (kt == 0) java.util.Arrays.fill(cTile, 0);
+			PackedGemm.forThread().gemm(h, w, d, aTiles[slot], 0, tile, bTiles[slot], 0, tile, cTile, 0, tile);
+
+			if (kt == depthTiles - 1) c.writeTile(row, col, h, w, cTile, tile);
+		}
+	}
+
+	// Reads the A and B tiles of the given step into the buffers of the given slot
+	private Future<?> prefetch(MappedMatrix a, MappedMatrix b, long step, int depthTiles, int colTiles, int slot) {
+		long m = a.getRows();
+		int k = a.getCols();
+		int n = b.getCols();
+
+		long it = step / ((long)colTiles * depthTiles);
+		int jt = (int)((step / depthTiles) % colTiles);
+		int kt = (int)(step % depthTiles);
+
+		long row = it * tile;
+		int col = jt * tile;
+		int depth = kt * tile;
+		int h = (int)Math.min(tile, m - row);
+		int w = Math.min(tile, n - col);
+		int d = Math.min(tile, k - depth);
+
+		return reader.submit(() -> {
+			a.readTile(row, depth, h, d, aTiles[slot], tile);
+			b.readTile(depth, col, d, w, bTiles[slot], tile);
+		});
+	}
+
+	private static void await(Future<?> future) throws IOException {
+		try {
+			future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while reading a tile", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Could not read a tile", e.getCause());
+		}
+	}
+
+	// Writes the same values as the other options (A = 1, B = row + 1), one row at a time
+	private static void fill(MappedMatrix a, MappedMatrix b) {
+		int n = a.getCols();
+		double[] ones = new double[n];
+		double[] row = new double[n];
+		java.util.Arrays.fill(ones, 1.0);
+		for (long i = 0; i < a.getRows(); i++) {
+			java.util.Arrays.fill(row, (double)(i+1));
+			a.writeRow(i, 0, ones, 0, n);
+			b.writeRow(i, 0, row, 0, n);
+		}
+	}
+
+	public static void OnMultOutOfCore(int m_ar, int m_br, long budgetMB, String directory) {
+		Path dir = Paths.get(directory);
+		Path fileA = dir.resolve("matrixA.bin");
+		Path fileB = dir.resolve("matrixB.bin");
+		Path fileC = dir.resolve("matrixC.bin");
+
+		OutOfCoreMult engine = new OutOfCoreMult(tileForBudget(budgetMB << 20, m_ar));
+		try (MappedMatrix a = MappedMatrix.create(fileA, m_ar, m_ar);
+				MappedMatrix b = MappedMatrix.create(fileB, m_br, m_br);
+				MappedMatrix c = MappedMatrix.create(fileC, m_ar, m_br)) {
+			fill(a, b);
+			a.force();
+			b.force();
+			System.out.println("Tile size: " + engine.getTile());
+
+			MatrixRun run = MatrixRun.start("OnMultOutOfCore", m_ar, engine.getTile(), 1);
+
+			engine.mult(a, b, c);
+			c.force();
+
+			run.stop();
+
+			run.print();
+			System.out.printf("Waiting for tiles: %3.3f seconds\n", engine.getIoWaitSeconds());
+		} catch (IOException e) {
+			System.out.println("Out-of-core multiplication failed: " + e.getMessage());
+		} finally {
+			engine.shutdown();
+			try {
+				Files.deleteIfExists(fileA);
+				Files.deleteIfExists(fileB);
+				Files.deleteIfExists(fileC);
+			} catch (IOException e) {
+				System.out.println("Could not delete the matrix files in " + dir);
+			}
+		}
+	}
+}
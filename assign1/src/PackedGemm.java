@@ -0,0 +1,221 @@
+/**
+ * Packed, register-blocked matrix multiplication (the GotoBLAS / BLIS loop structure).
+ *
+ * C is computed in MR x NR micro-tiles whose 32 sums stay in local variables (registers)
+ * for a whole KC-long slice of k. Before that, a KC x NC panel of B and an MC x KC panel
+ * of A are copied into packB and packA in exactly the order the micro-kernel reads them,
+ * so the inner loop walks both buffers sequentially instead of striding through phb.
+ * Panels are sized so packB stays in L3, packA in L2 and one sliver of packB in L1.
+ *
+ * The packing buffers belong to the instance and are reused by every call, so use one
+ * instance per thread (multPacked keeps one per thread).
+ */
+public class PackedGemm {
+	public static final int MR = 4;
+	public static final int NR = 8;
+	public static final int MC = 128;
+	public static final int KC = 256;
+	public static final int NC = 4096;
+
+	private static final ThreadLocal<PackedGemm> PER_THREAD = ThreadLocal.withInitial(PackedGemm::new);
+
+	private final double[] packA = new double[MC * KC];
+	private final double[] packB = new double[KC * NC];
+	private final double[] tile = new double[MR * NR];
+
+	// Packing buffers of the calling thread
+	public static PackedGemm forThread() {
+		return PER_THREAD.get();
+	}
+
+	// phc += pha * phb for n x n row-major matrices, using this thread's packing buffers
+	public static void multPacked(double[] pha, double[] phb, double[] phc, int n) {
+		PER_THREAD.get().mult(pha, phb, phc, n);
+	}
+
+	public void mult(double[] pha, double[] phb, double[] phc, int n) {
+		gemm(n, n, n, pha, 0, n, phb, 0, n, phc, 0, n);
+	}
+
+	// C += A * B, where A is m x k, B is k x n and C is m x n, all row-major.
+	// Each matrix starts at its offset and consecutive rows are ld elements apart.
+	public void gemm(int m, int n, int k,
+			double[] a, int aOff, int lda,
+			double[] b, int bOff, int ldb,
+			double[] c, int cOff, int ldc) {
+		gemm(false, false, m, n, k, 1.0, a, aOff, lda, b, bOff, ldb, c, cOff, ldc);
+	}
+
+	// C += alpha * op(A) * op(B), where op(A) is m x k and op(B) is k x n.
+	// When transA is set, A is stored as its k x m transpose (same for transB and B),
+	// which only changes the order in which the panels are packed.
+	public void gemm(boolean transA, boolean transB, int m, int n, int k, double alpha,
+			double[] a, int aOff, int lda,
+			double[] b, int bOff, int ldb,
+			double[] c, int cOff, int ldc) {
+		for (int jc = 0; jc < n; jc += NC) {
+			int nc = Math.min(NC, n - jc);
+
+			for (int pc = 0; pc < k; pc += KC) {
+				int kc = Math.min(KC, k - pc);
+				if (transB) packBTransposed(b, bOff + jc*ldb + pc, ldb, kc, nc);
+				else packB(b, bOff + pc*ldb + jc, ldb, kc, nc);
+
+				for (int ic = 0; ic < m; ic += MC) {
+					int mc = Math.min(MC, m - ic);
+					if (transA) packATransposed(a, aOff + pc*lda + ic, lda, mc, kc, alpha);
+					else packA(a, aOff + ic*lda + pc, lda, mc, kc, alpha);
+
+					macroKernel(mc, nc, kc, c, cOff + ic*ldc + jc, ldc);
+				}
+			}
+		}
+	}
+
+	// Copies a kc x nc panel of B into slivers of NR columns, each stored k-major.
+	// Columns past nc are padded with zeros so the micro-kernel never needs a tail.
+	private void packB(double[] b, int start, int ldb, int kc, int nc) {
+		int idx = 0;
+		for (int js = 0; js < nc; js += NR) {
+			int cols = Math.min(NR, nc - js);
+			for (int p = 0; p < kc; p++) {
+				int row = start + p*ldb + js;
+				int jr = 0;
+				for (; jr < cols; jr++) packB[idx++] = b[row + jr];
+				for (; jr < NR; jr++) packB[idx++] = 0;
+			}
+		}
+	}
+
+	// Same as packB, reading the panel from B stored transposed (start is at column jc, row pc)
+	private void packBTransposed(double[] b, int start, int ldb, int kc, int nc) {
+		int idx = 0;
+		for (int js = 0; js < nc; js += NR) {
+			int cols = Math.min(NR, nc - js);
+			for (int p = 0; p < kc; p++) {
+				int col = start + js*ldb + p;
+				int jr = 0;
+				for (; jr < cols; jr++) packB[idx++] = b[col + jr*ldb];
+				for (; jr < NR; jr++) packB[idx++] = 0;
+			}
+		}
+	}
+
+	// Copies an mc x kc panel of A, scaled by alpha, into slivers of MR rows, each stored k-major
+	private void packA(double[] a, int start, int lda, int mc, int kc, double alpha) {
+		int idx = 0;
+		for (int is = 0; is < mc; is += MR) {
+			int rows = Math.min(MR, mc - is);
+			for (int p = 0; p < kc; p++) {
+				int col = start + is*lda + p;
+				int ir = 0;
+				for (; ir < rows; ir++) packA[idx++] = alpha * a[col + ir*lda];
+				for (; ir < MR; ir++) packA[idx++] = 0;
+			}
+		}
+	}
+
+	// Same as packA, reading the panel from A stored transposed (start is at row pc, column ic)
+	private void packATransposed(double[] a, int start, int lda, int mc, int kc, double alpha) {
+		int idx = 0;
+		for (int is = 0; is < mc; is += MR) {
+			int rows = Math.min(MR, mc - is);
+			for (int p = 0; p < kc; p++) {
+				int row = start + p*lda + is;
+				int ir = 0;
+				for (; ir < rows; ir++) packA[idx++] = alpha * a[row + ir];
+				for (; ir < MR; ir++) packA[idx++] = 0;
+			}
+		}
+	}
+
+	private void macroKernel(int mc, int nc, int kc, double[] c, int cStart, int ldc) {
+		for (int js = 0; js < nc; js += NR) {
+			int nr = Math.min(NR, nc - js);
+			int bIdx = js * kc;
+
+			for (int is = 0; is < mc; is += MR) {
+				int mr = Math.min(MR, mc - is);
+				int aIdx = is * kc;
+
+				microKernel(kc, aIdx, bIdx, c, cStart + is*ldc + js, ldc, mr, nr);
+			}
+		}
+	}
+
+	// C[MR x NR] += packed A sliver * packed B sliver, with all 32 sums held in locals
+	private void microKernel(int kc, int aIdx, int bIdx, double[] c, int cIdx, int ldc, int mr, int nr) {
+		final double[] pa = packA;
+		final double[] pb = packB;
+
+		double c00 = 0, c01 = 0, c02 = 0, c03 = 0, c04 = 0, c05 = 0, c06 = 0, c07 = 0;
+		double c10 = 0, c11 = 0, c12 = 0, c13 = 0, c14 = 0, c15 = 0, c16 = 0, c17 = 0;
+		double c20 = 0, c21 = 0, c22 = 0, c23 = 0, c24 = 0, c25 = 0, c26 = 0, c27 = 0;
+		double c30 = 0, c31 = 0, c32 = 0, c33 = 0, c34 = 0, c35 = 0, c36 = 0, c37 = 0;
+
+		for (int p = 0; p < kc; p++) {
+			double a0 = pa[aIdx], a1 = pa[aIdx+1], a2 = pa[aIdx+2], a3 = pa[aIdx+3];
+			double b0 = pb[bIdx], b1 = pb[bIdx+1], b2 = pb[bIdx+2], b3 = pb[bIdx+3];
+			double b4 = pb[bIdx+4], b5 = pb[bIdx+5], b6 = pb[bIdx+6], b7 = pb[bIdx+7];
+
+			c00 += a0*b0; c01 += a0*b1; c02 += a0*b2; c03 += a0*b3;
+			c04 += a0*b4; c05 += a0*b5; c06 += a0*b6; c07 += a0*b7;
+			c10 += a1*b0; c11 += a1*b1; c12 += a1*b2; c13 += a1*b3;
+			c14 += a1*b4; c15 += a1*b5; c16 += a1*b6; c17 += a1*b7;
+			c20 += a2*b0; c21 += a2*b1; c22 += a2*b2; c23 += a2*b3;
+			c24 += a2*b4; c25 += a2*b5; c26 += a2*b6; c27 += a2*b7;
+			c30 += a3*b0; c31 += a3*b1; c32 += a3*b2; c33 += a3*b3;
+			c34 += a3*b4; c35 += a3*b5; c36 += a3*b6; c37 += a3*b7;
+
+			aIdx += MR;
+			bIdx += NR;
+		}
+
+		if (mr == MR && nr == NR) {
+			int r0 = cIdx, r1 = r0 + ldc, r2 = r1 + ldc, r3 = r2 + ldc;
+			c[r0] += c00; c[r0+1] += c01; c[r0+2] += c02; c[r0+3] += c03;
+			c[r0+4] += c04; c[r0+5] += c05; c[r0+6] += c06; c[r0+7] += c07;
+			c[r1] += c10; c[r1+1] += c11; c[r1+2] += c12; c[r1+3] += c13;
+			c[r1+4] += c14; c[r1+5] += c15; c[r1+6] += c16; c[r1+7] += c17;
+			c[r2] += c20; c[r2+1] += c21; c[r2+2] += c22; c[r2+3] += c23;
+			c[r2+4] += c24; c[r2+5] += c25; c[r2+6] += c26; c[r2+7] += c27;
+			c[r3] += c30; c[r3+1] += c31; c[r3+2] += c32; c[r3+3] += c33;
+			c[r3+4] += c34; c[r3+5] += c35; c[r3+6] += c36; c[r3+7] += c37;
+			return;
+		}
+
+		// Edge tile: only part of the MR x NR result lies inside C
+		final double[] t = tile;
+		t[0] = c00; t[1] = c01; t[2] = c02; t[3] = c03; t[4] = c04; t[5] = c05; t[6] = c06; t[7] = c07;
+		t[8] = c10; t[9] = c11; t[10] = c12; t[11] = c13; t[12] = c14; t[13] = c15; t[14] = c16; t[15] = c17;
+		t[16] = c20; t[17] = c21; t[18] = c22; t[19] = c23; t[20] = c24; t[21] = c25; t[22] = c26; t[23] = c27;
+		t[24] = c30; t[25] = c31; t[26] = c32; t[27] = c33; t[28] = c34; t[29] = c35; t[30] = c36; t[31] = c37;
+		for (int i = 0; i < mr; i++)
+			for (int j = 0; j < nr; j++)
+				c[cIdx + i*ldc + j] += t[i*NR + j];
+	}
+
+	public static void OnMultPacked(int m_ar, int m_br) {
+		int i, j;
+
+		double[] pha = new double[m_ar*m_ar];
+		double[] phb = new double[m_ar*m_ar];
+		double[] phc = new double[m_ar*m_ar];
+
+		for(i=0; i<m_ar; i++)
+			for(j=0; j<m_ar; j++)
+				pha[i*m_ar + j] = (double)1.0;
+
+		for(i=0; i<m_br; i++)
+			for(j=0; j<m_br; j++)
+				phb[i*m_br + j] = (double)(i+1);
+
+		MatrixRun run = MatrixRun.start("OnMultPacked", m_ar, 0, 1);
+
+		multPacked(pha, phb, phc, m_ar);
+
+		run.stop();
+
+		run.print();
+	}
+}
@@ -0,0 +1,198 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Multi-core versions of the line and block multiplications.
+ *
+ * The line algorithm is split into panels of rows of C and the block algorithm into
+ * 2D tiles of C, so every task writes to its own part of phc and no locking is needed.
+ * Tasks are split recursively and run on a ForkJoinPool with the requested parallelism.
+ */
+public class ParallelMult {
+	// Smallest panel of rows a line task is split into
+	public static final int MIN_ROWS = 8;
+	// Each thread gets about this many tasks, so uneven cores still balance out
+	public static final int TASKS_PER_THREAD = 4;
+	// Size of the untimed run that compiles the kernels before they are timed
+	public static final int WARMUP_SIZE = 512;
+
+	private final ForkJoinPool pool;
+	private final int parallelism;
+
+	public ParallelMult(int parallelism) {
+		if (parallelism <= 0) parallelism = Runtime.getRuntime().availableProcessors();
+		this.parallelism = parallelism;
+		this.pool = new ForkJoinPool(parallelism);
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	public ForkJoinPool getPool() {
+		return pool;
+	}
+
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	// Computes the rows [rowStart, rowEnd) of the result
+	public interface RowKernel {
+		void rows(int rowStart, int rowEnd);
+	}
+
+	// Computes the rows [rowStart, rowEnd) and columns [colStart, colEnd) of the result
+	public interface TileKernel {
+		void tile(int rowStart, int rowEnd, int colStart, int colEnd);
+	}
+
+	// phc += pha * phb with the line algorithm, one task per panel of rows
+	public void multLine(double[] pha, double[] phb, double[] phc, int n) {
+		forRows(n, (rowStart, rowEnd) -> matrixproduct.lineKernel(pha, phb, phc, n, rowStart, rowEnd));
+	}
+
+	// phc += pha * phb with the block algorithm, one task per tile of C
+	public void multBlock(double[] pha, double[] phb, double[] phc, int n, int bkSize) {
+		forTiles(n, bkSize, (rowStart, rowEnd, colStart, colEnd) ->
+				matrixproduct.blockKernel(pha, phb, phc, n, rowStart, rowEnd, colStart, colEnd, bkSize));
+	}
+
+	// Splits the n rows of an n x n result into panels and runs the kernel on each of them.
+	// The kernels of the other element types (PrimitiveMult) use the same splitting.
+	public void forRows(int n, RowKernel kernel) {
+		int minRows = Math.max(MIN_ROWS, n / (parallelism * TASKS_PER_THREAD));
+		pool.invoke(new LineTask(kernel, 0, n, minRows));
+	}
+
+	// Splits an n x n result into tiles made of whole bkSize x bkSize blocks
+	public void forTiles(int n, int bkSize, TileKernel kernel) {
+		long minArea = Math.max((long)bkSize * bkSize, (long)n * n / (parallelism * TASKS_PER_THREAD));
+		pool.invoke(new TileTask(kernel, 0, n, 0, n, bkSize, minArea));
+	}
+
+	@SuppressWarnings("serial") // Tasks are never serialized
+	private static class LineTask extends RecursiveAction {
+		private final RowKernel kernel;
+		private final int rowStart, rowEnd, minRows;
+
+		LineTask(RowKernel kernel, int rowStart, int rowEnd, int minRows) {
+			this.kernel = kernel;
+			this.rowStart = rowStart;
+			this.rowEnd = rowEnd;
+			this.minRows = minRows;
+		}
+
+		@Override
+		protected void compute() {
+			if (rowEnd - rowStart <= minRows) {
+				kernel.rows(rowStart, rowEnd);
+				return;
+			}
+			int mid = (rowStart + rowEnd) >>> 1;
+			invokeAll(new LineTask(kernel, rowStart, mid, minRows),
+					new LineTask(kernel, mid, rowEnd, minRows));
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private static class TileTask extends RecursiveAction {
+		private final TileKernel kernel;
+		private final int rowStart, rowEnd, colStart, colEnd, bkSize;
+		private final long minArea;
+
+		TileTask(TileKernel kernel, int rowStart, int rowEnd, int colStart, int colEnd, int bkSize, long minArea) {
+			this.kernel = kernel;
+			this.rowStart = rowStart;
+			this.rowEnd = rowEnd;
+			this.colStart = colStart;
+			this.colEnd = colEnd;
+			this.bkSize = bkSize;
+			this.minArea = minArea;
+		}
+
+		@Override
+		protected void compute() {
+			int rows = rowEnd - rowStart;
+			int cols = colEnd - colStart;
+			if ((long)rows * cols <= minArea || (rows <= bkSize && cols <= bkSize)) {
+				kernel.tile(rowStart, rowEnd, colStart, colEnd);
+				return;
+			}
+
+			// Split the longer side, on a block boundary so tiles keep whole blocks
+			if (rows >= cols) {
+				int mid = rowStart + splitPoint(rows);
+				invokeAll(new TileTask(kernel, rowStart, mid, colStart, colEnd, bkSize, minArea),
+						new TileTask(kernel, mid, rowEnd, colStart, colEnd, bkSize, minArea));
+			} else {
+				int mid = colStart + splitPoint(cols);
+				invokeAll(new TileTask(kernel, rowStart, rowEnd, colStart, mid, bkSize, minArea),
+						new TileTask(kernel, rowStart, rowEnd, mid, colEnd, bkSize, minArea));
+			}
+		}
+
+		private int splitPoint(int length) {
+			int blocks = (length + bkSize - 1) / bkSize;
+			return Math.max(1, blocks / 2) * bkSize;
+		}
+	}
+
+	public static void OnMultLineParallel(int m_ar, int m_br, int threads) {
+		run(m_ar, 0, threads);
+	}
+
+	public static void OnMultBlockParallel(int m_ar, int m_br, int bkSize, int threads) {
+		run(m_ar, bkSize, threads);
+	}
+
+	// Times the single-threaded kernel, then the parallel one, and prints speedup and efficiency.
+	// bkSize == 0 selects the line algorithm. Both kernels first run once untimed on a matrix
+	// of at most WARMUP_SIZE, so neither timing includes the interpreter and JIT compilation.
+	private static void run(int n, int bkSize, int threads) {
+		double[] pha = new double[n*n];
+		double[] phb = new double[n*n];
+		double[] phc = new double[n*n];
+
+		for (int i = 0; i < n; i++)
+			for (int j = 0; j < n; j++) {
+				pha[i*n + j] = (double)1.0;
+				phb[i*n + j] = (double)(i+1);
+			}
+
+		ParallelMult engine = new ParallelMult(threads);
+		try {
+			String name = bkSize == 0 ? "OnMultLineParallel" : "OnMultBlockParallel";
+
+			int w = Math.min(n, WARMUP_SIZE);
+			if (bkSize == 0) {
+				matrixproduct.multLine(pha, phb, phc, w);
+				engine.multLine(pha, phb, phc, w);
+			} else {
+				matrixproduct.multBlock(pha, phb, phc, w, bkSize);
+				engine.multBlock(pha, phb, phc, w, bkSize);
+			}
+			java.util.Arrays.fill(phc, 0);
+
+			MatrixRun run = MatrixRun.start(name, n, bkSize, 1);
+			if (bkSize == 0) matrixproduct.multLine(pha, phb, phc, n);
+			else matrixproduct.multBlock(pha, phb, phc, n, bkSize);
+			double sequential = run.stop();
+
+			java.util.Arrays.fill(phc, 0);
+
+			MatrixRun parallelRun = MatrixRun.start(name, n, bkSize, engine.getParallelism());
+			if (bkSize == 0) engine.multLine(pha, phb, phc, n);
+			else engine.multBlock(pha, phb, phc, n, bkSize);
+			double parallel = parallelRun.stop();
+
+			double speedup = sequential / parallel;
+			run.print("1 thread");
+			parallelRun.print(engine.getParallelism() + " threads");
+			System.out.printf("Speedup: %3.2f\n", speedup);
+			System.out.printf("Efficiency: %3.2f\n", speedup / engine.getParallelism());
+		} finally {
+			engine.shutdown();
+		}
+	}
+}
@@ -0,0 +1,152 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads hardware cache-miss counters for this JVM with Linux "perf stat".
+ *
+ * start() attaches "perf stat -x, -p <pid>" to the running JVM as a child process and
+ * stop() interrupts it (SIGINT, like Ctrl-C) and parses the counters it prints.
+ * The counters cover every thread of the JVM, so they include the JIT and GC threads.
+ *
+ * The default events match the PAPI_L1_DCM/PAPI_L2_DCM counters of the C++ version: the
+ * generic L1 event, and the first L2 miss event of L2_EVENTS that "perf list" shows. Perf
+ * has no generic L2 event, so on other CPUs the second one is LLC-load-misses, which is
+ * reported under its own name instead of as L2 misses. -Dmatrix.perf.events sets others.
+ */
+public class PerfStat {
+	public static final String L1_EVENT = "L1-dcache-load-misses";
+	// L2 data misses on Intel, AMD Zen and Arm
+	public static final String[] L2_EVENTS = {"l2_rqsts.miss", "l2_cache_req_stat.ic_dc_miss_in_l2", "l2d_cache_refill"};
+	public static final String FALLBACK_EVENT = "LLC-load-misses";
+
+	private static String defaultEvents = null;
+
+	private final String[] events;
+	private Process process = null;
+
+	public PerfStat() {
+		this(System.getProperty("matrix.perf.events", defaultEvents()));
+	}
+
+	public PerfStat(String events) {
+		this.events = events.split(",");
+		for (int i = 0; i < this.events.length; i++) this.events[i] = this.events[i].trim();
+	}
+
+	// The L1 event and the L2 event of this CPU, looked up once
+	public static synchronized String defaultEvents() {
+		if (defaultEvents == null) defaultEvents = L1_EVENT + "," + findL2Event();
+		return defaultEvents;
+	}
+
+	private static String findL2Event() {
+		try {
+			Process list = new ProcessBuilder("perf", "list").redirectErrorStream(true).start();
+			List<String> names = new ArrayList<>();
+			try (BufferedReader reader = new BufferedReader(new InputStreamReader(list.getInputStream()))) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					String[] words = line.trim().split("\\s+");
+					if (words.length > 0) names.add(words[0]);
+				}
+			}
+			list.waitFor();
+			for (String event : L2_EVENTS) {
+				if (names.contains(event)) return event;
+			}
+		} catch (IOException e) {
+			// No perf: start() reports it
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return FALLBACK_EVENT;
+	}
+
+	public String[] getEvents() {
+		return events;
+	}
+
+	public static boolean isL2Event(String event) {
+		return java.util.Arrays.asList(L2_EVENTS).contains(event);
+	}
+
+	// Name printed for a counter: the PAPI one when the event is the same kind of miss
+	public static String label(String event) {
+		if (event.equals(L1_EVENT)) return "L1 DCM";
+		if (isL2Event(event)) return "L2 DCM";
+		return event;
+	}
+
+	// Capturing is enabled with -Dmatrix.perf=true and only on Linux
+	public static boolean enabled() {
+		return Boolean.getBoolean("matrix.perf")
+				&& System.getProperty("os.name", "").toLowerCase().contains("linux");
+	}
+
+	public void start() throws IOException {
+		List<String> command = new ArrayList<>();
+		command.add("perf");
+		command.add("stat");
+		command.add("-x,");
+		command.add("-e");
+		command.add(String.join(",", events));
+		command.add("-p");
+		command.add(String.valueOf(ProcessHandle.current().pid()));
+
+		process = new ProcessBuilder(command).redirectErrorStream(true).start();
+
+		// perf needs a moment to attach before the measured code starts
+		try {
+			Thread.sleep(100);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (!process.isAlive())
+			throw new IOException("perf stat exited: " + readAll());
+	}
+
+	// Stops perf and returns one count per event, -1 for events it could not count
+	public long[] stop() throws IOException {
+		long[] counts = new long[events.length];
+		java.util.Arrays.fill(counts, -1);
+		if (process == null) return counts;
+
+		try {
+			new ProcessBuilder("kill", "-INT", String.valueOf(process.pid())).start().waitFor();
+			process.waitFor();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			process.destroy();
+			return counts;
+		}
+
+		// With -x, each line is: value,unit,event,...
+		for (String line : readAll().split("\n")) {
+			String[] fields = line.split(",");
+			if (fields.length < 3) continue;
+			for (int i = 0; i < events.length; i++) {
+				if (fields[2].trim().startsWith(events[i])) {
+					try {
+						counts[i] = Long.parseLong(fields[0].trim());
+					} catch (NumberFormatException e) {
+						// "<not supported>" or "<not counted>"
+					}
+				}
+			}
+		}
+		process = null;
+		return counts;
+	}
+
+	private String readAll() throws IOException {
+		StringBuilder output = new StringBuilder();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+			String line;
+			while ((line = reader.readLine()) != null) output.append(line).append('\n');
+		}
+		return output.toString();
+	}
+}
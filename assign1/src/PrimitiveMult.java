@@ -0,0 +1,383 @@
+import java.util.Random;
+
+/**
+ * The line, block and parallel multiplications for float, int and long matrices.
+ *
+ * Each element type has its own copy of the kernels (no generics, so no boxing): a float
+ * holds half as many bytes as a double, so twice as many values fit in every cache line
+ * and vector register. The int and long kernels wrap around on overflow like Java
+ * arithmetic does.
+ *
+ * The mixed kernels store float matrices but add the products of every element of C in a
+ * double, which keeps most of the float memory savings with close to double accuracy.
+ * OnMultPrecision times every type and prints its error against the double result.
+ */
+public class PrimitiveMult {
+
+	// ---------------------------------------------------------------- float
+
+	public static void multLine(float[] pha, float[] phb, float[] phc, int n) {
+		lineKernel(pha, phb, phc, n, 0, n);
+	}
+
+	public static void multBlock(float[] pha, float[] phb, float[] phc, int n, int bkSize) {
+		blockKernel(pha, phb, phc, n, 0, n, 0, n, bkSize);
+	}
+
+	public static void multLine(ParallelMult engine, float[] pha, float[] phb, float[] phc, int n) {
+		engine.forRows(n, (rowStart, rowEnd) -> lineKernel(pha, phb, phc, n, rowStart, rowEnd));
+	}
+
+	public static void multBlock(ParallelMult engine, float[] pha, float[] phb, float[] phc, int n, int bkSize) {
+		engine.forTiles(n, bkSize, (rowStart, rowEnd, colStart, colEnd) ->
+				blockKernel(pha, phb, phc, n, rowStart, rowEnd, colStart, colEnd, bkSize));
+	}
+
+	public static void lineKernel(float[] pha, float[] phb, float[] phc, int n, int rowStart, int rowEnd) {
+		int i, j, k;
+
+		for(i=rowStart; i<rowEnd; i++){
+			int rowA = i*n;
+			for(k=0; k<n; k++){
+				float a = pha[rowA+k];
+				int rowB = k*n;
+				for(j=0; j<n; j++){
+					phc[rowA+j] += a * phb[rowB+j];
+				}
+			}
+		}
+	}
+
+	public static void blockKernel(float[] pha, float[] phb, float[] phc, int n,
+			int rowStart, int rowEnd, int colStart, int colEnd, int bkSize) {
+		int block_y, block_x, block_k;
+		int i, j, k;
+
+		for(block_y=rowStart; block_y<rowEnd; block_y+=bkSize){
+			int i_end = Math.min(block_y + bkSize, rowEnd);
+			for(block_x=colStart; block_x<colEnd; block_x+=bkSize){
+				int j_end = Math.min(block_x + bkSize, colEnd);
+				for(block_k=0; block_k<n; block_k+=bkSize){
+					int k_end = Math.min(block_k + bkSize, n);
+
+					for(i=block_y; i<i_end; i++){
+						int rowA = i*n;
+						for(k=block_k; k<k_end; k++){
+							float a = pha[rowA+k];
+							int rowB = k*n;
+							for(j=block_x; j<j_end; j++){
+								phc[rowA+j] += a * phb[rowB+j];
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+
+	// ---------------------------------------------------------------- int
+
+	public static void multLine(int[] pha, int[] phb, int[] phc, int n) {
+		lineKernel(pha, phb, phc, n, 0, n);
+	}
+
+	public static void multBlock(int[] pha, int[] phb, int[] phc, int n, int bkSize) {
+		blockKernel(pha, phb, phc, n, 0, n, 0, n, bkSize);
+	}
+
+	public static void multLine(ParallelMult engine, int[] pha, int[] phb, int[] phc, int n) {
+		engine.forRows(n, (rowStart, rowEnd) -> lineKernel(pha, phb, phc, n, rowStart, rowEnd));
+	}
+
+	public static void multBlock(ParallelMult engine, int[] pha, int[] phb, int[] phc, int n, int bkSize) {
+		engine.forTiles(n, bkSize, (rowStart, rowEnd, colStart, colEnd) ->
+				blockKernel(pha, phb, phc, n, rowStart, rowEnd, colStart, colEnd, bkSize));
+	}
+
+	public static void lineKernel(int[] pha, int[] phb, int[] phc, int n, int rowStart, int rowEnd) {
+		int i, j, k;
+
+		for(i=rowStart; i<rowEnd; i++){
+			int rowA = i*n;
+			for(k=0; k<n; k++){
+				int a = pha[rowA+k];
+				int rowB = k*n;
+				for(j=0; j<n; j++){
+					phc[rowA+j] += a * phb[rowB+j];
+				}
+			}
+		}
+	}
+
+	public static void blockKernel(int[] pha, int[] phb, int[] phc, int n,
+			int rowStart, int rowEnd, int colStart, int colEnd, int bkSize) {
+		int block_y, block_x, block_k;
+		int i, j, k;
+
+		for(block_y=rowStart; block_y<rowEnd; block_y+=bkSize){
+			int i_end = Math.min(block_y + bkSize, rowEnd);
+			for(block_x=colStart; block_x<colEnd; block_x+=bkSize){
+				int j_end = Math.min(block_x + bkSize, colEnd);
+				for(block_k=0; block_k<n; block_k+=bkSize){
+					int k_end = Math.min(block_k + bkSize, n);
+
+					for(i=block_y; i<i_end; i++){
+						int rowA = i*n;
+						for(k=block_k; k<k_end; k++){
+							int a = pha[rowA+k];
+							int rowB = k*n;
+							for(j=block_x; j<j_end; j++){
+								phc[rowA+j] += a * phb[rowB+j];
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+
+	// ---------------------------------------------------------------- long
+
+	public static void multLine(long[] pha, long[] phb, long[] phc, int n) {
+		lineKernel(pha, phb, phc, n, 0, n);
+	}
+
+	public static void multBlock(long[] pha, long[] phb, long[] phc, int n, int bkSize) {
+		blockKernel(pha, phb, phc, n, 0, n, 0, n, bkSize);
+	}
+
+	public static void multLine(ParallelMult engine, long[] pha, long[] phb, long[] phc, int n) {
+		engine.forRows(n, (rowStart, rowEnd) -> lineKernel(pha, phb, phc, n, rowStart, rowEnd));
+	}
+
+	public static void multBlock(ParallelMult engine, long[] pha, long[] phb, long[] phc, int n, int bkSize) {
+		engine.forTiles(n, bkSize, (rowStart, rowEnd, colStart, colEnd) ->
+				blockKernel(pha, phb, phc, n, rowStart, rowEnd, colStart, colEnd, bkSize));
+	}
+
+	public static void lineKernel(long[] pha, long[] phb, long[] phc, int n, int rowStart, int rowEnd) {
+		int i, j, k;
+
+		for(i=rowStart; i<rowEnd; i++){
+			int rowA = i*n;
+			for(k=0; k<n; k++){
+				long a = pha[rowA+k];
+				int rowB = k*n;
+				for(j=0; j<n; j++){
+					phc[rowA+j] += a * phb[rowB+j];
+				}
+			}
+		}
+	}
+
+	public static void blockKernel(long[] pha, long[] phb, long[] phc, int n,
+			int rowStart, int rowEnd, int colStart, int colEnd, int bkSize) {
+		int block_y, block_x, block_k;
+		int i, j, k;
+
+		for(block_y=rowStart; block_y<rowEnd; block_y+=bkSize){
+			int i_end = Math.min(block_y + bkSize, rowEnd);
+			for(block_x=colStart; block_x<colEnd; block_x+=bkSize){
+				int j_end = Math.min(block_x + bkSize, colEnd);
+				for(block_k=0; block_k<n; block_k+=bkSize){
+					int k_end = Math.min(block_k + bkSize, n);
+
+					for(i=block_y; i<i_end; i++){
+						int rowA = i*n;
+						for(k=block_k; k<k_end; k++){
+							long a = pha[rowA+k];
+							int rowB = k*n;
+							for(j=block_x; j<j_end; j++){
+								phc[rowA+j] += a * phb[rowB+j];
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+
+	// ---------------------------------------------------------------- mixed (float storage, double sums)
+
+	public static void multLineMixed(float[] pha, float[] phb, float[] phc, int n) {
+		lineKernelMixed(pha, phb, phc, n, 0, n);
+	}
+
+	public static void multBlockMixed(float[] pha, float[] phb, float[] phc, int n, int bkSize) {
+		blockKernelMixed(pha, phb, phc, n, 0, n, 0, n, bkSize);
+	}
+
+	public static void multLineMixed(ParallelMult engine, float[] pha, float[] phb, float[] phc, int n) {
+		engine.forRows(n, (rowStart, rowEnd) -> lineKernelMixed(pha, phb, phc, n, rowStart, rowEnd));
+	}
+
+	public static void multBlockMixed(ParallelMult engine, float[] pha, float[] phb, float[] phc, int n, int bkSize) {
+		engine.forTiles(n, bkSize, (rowStart, rowEnd, colStart, colEnd) ->
+				blockKernelMixed(pha, phb, phc, n, rowStart, rowEnd, colStart, colEnd, bkSize));
+	}
+
+	// Each row of C is summed in a double row and rounded to float once at the end
+	public static void lineKernelMixed(float[] pha, float[] phb, float[] phc, int n, int rowStart, int rowEnd) {
+		double[] sums = new double[n];
+		int i, j, k;
+
+		for(i=rowStart; i<rowEnd; i++){
+			int rowA = i*n;
+			for(j=0; j<n; j++) sums[j] = phc[rowA+j];
+			for(k=0; k<n; k++){
+				double a = pha[rowA+k];
+				int rowB = k*n;
+				for(j=0; j<n; j++){
+					sums[j] += a * phb[rowB+j];
+				}
+			}
+			for(j=0; j<n; j++) phc[rowA+j] = (float)sums[j];
+		}
+	}
+
+	// Each block of C is summed in a double block over all the blocks of k
+	public static void blockKernelMixed(float[] pha, float[] phb, float[] phc, int n,
+			int rowStart, int rowEnd, int colStart, int colEnd, int bkSize) {
+		double[] sums = new double[bkSize*bkSize];
+		int block_y, block_x, block_k;
+		int i, j, k;
+
+		for(block_y=rowStart; block_y<rowEnd; block_y+=bkSize){
+			int i_end = Math.min(block_y + bkSize, rowEnd);
+			for(block_x=colStart; block_x<colEnd; block_x+=bkSize){
+				int j_end = Math.min(block_x + bkSize, colEnd);
+
+				for(i=block_y; i<i_end; i++)
+					for(j=block_x; j<j_end; j++)
+						sums[(i-block_y)*bkSize + j-block_x] = phc[i*n+j];
+
+				for(block_k=0; block_k<n; block_k+=bkSize){
+					int k_end = Math.min(block_k + bkSize, n);
+
+					for(i=block_y; i<i_end; i++){
+						int rowA = i*n;
+						int rowS = (i-block_y)*bkSize - block_x;
+						for(k=block_k; k<k_end; k++){
+							double a = pha[rowA+k];
+							int rowB = k*n;
+							for(j=block_x; j<j_end; j++){
+								sums[rowS+j] += a * phb[rowB+j];
+							}
+						}
+					}
+				}
+
+				for(i=block_y; i<i_end; i++)
+					for(j=block_x; j<j_end; j++)
+						phc[i*n+j] = (float)sums[(i-block_y)*bkSize + j-block_x];
+			}
+		}
+	}
+
+	// ---------------------------------------------------------------- report
+
+	// Times double, float, mixed, int and long with the same algorithm (bkSize 0 = line,
+	// threads 1 = sequential) and prints the error of each against the double result.
+	// Random values in [-1, 1) are used for the floating-point types, since the usual
+	// A = 1, B = row + 1 gives exact products in float too, and random integers in [-8, 8]
+	// for int and long, whose reference is the long result.
+	public static void OnMultPrecision(int m_ar, int m_br, int bkSize, int threads) {
+		int n = m_ar;
+		Random random = new Random(42);
+
+		double[] pha = new double[n*n];
+		double[] phb = new double[n*n];
+		double[] phc = new double[n*n];
+		float[] fa = new float[n*n];
+		float[] fb = new float[n*n];
+		float[] fc = new float[n*n];
+		int[] ia = new int[n*n];
+		int[] ib = new int[n*n];
+		int[] ic = new int[n*n];
+		long[] la = new long[n*n];
+		long[] lb = new long[n*n];
+		long[] lc = new long[n*n];
+
+		// Rounded to float first, so every type multiplies the same values
+		for (int i = 0; i < n*n; i++) {
+			fa[i] = (float)(2*random.nextDouble() - 1);
+			fb[i] = (float)(2*random.nextDouble() - 1);
+			pha[i] = fa[i];
+			phb[i] = fb[i];
+			ia[i] = random.nextInt(17) - 8;
+			ib[i] = random.nextInt(17) - 8;
+			la[i] = ia[i];
+			lb[i] = ib[i];
+		}
+
+		ParallelMult engine = threads == 1 ? null : new ParallelMult(threads);
+		String algorithm = (bkSize == 0 ? "OnMultLine" : "OnMultBlock") + (engine == null ? "" : "Parallel");
+		int used = engine == null ? 1 : engine.getParallelism();
+		try {
+			MatrixRun doubleRun = MatrixRun.start(algorithm, n, bkSize, used);
+			if (engine == null && bkSize == 0) matrixproduct.multLine(pha, phb, phc, n);
+			else if (engine == null) matrixproduct.multBlock(pha, phb, phc, n, bkSize);
+			else if (bkSize == 0) engine.multLine(pha, phb, phc, n);
+			else engine.multBlock(pha, phb, phc, n, bkSize);
+			doubleRun.stop();
+
+			MatrixRun floatRun = MatrixRun.start(algorithm + "Float", n, bkSize, used);
+			if (engine == null && bkSize == 0) multLine(fa, fb, fc, n);
+			else if (engine == null) multBlock(fa, fb, fc, n, bkSize);
+			else if (bkSize == 0) multLine(engine, fa, fb, fc, n);
+			else multBlock(engine, fa, fb, fc, n, bkSize);
+			floatRun.stop();
+			double floatError = relativeError(fc, phc);
+
+			java.util.Arrays.fill(fc, 0);
+			MatrixRun mixedRun = MatrixRun.start(algorithm + "Mixed", n, bkSize, used);
+			if (engine == null && bkSize == 0) multLineMixed(fa, fb, fc, n);
+			else if (engine == null) multBlockMixed(fa, fb, fc, n, bkSize);
+			else if (bkSize == 0) multLineMixed(engine, fa, fb, fc, n);
+			else multBlockMixed(engine, fa, fb, fc, n, bkSize);
+			mixedRun.stop();
+			double mixedError = relativeError(fc, phc);
+
+			MatrixRun intRun = MatrixRun.start(algorithm + "Int", n, bkSize, used);
+			if (engine == null && bkSize == 0) multLine(ia, ib, ic, n);
+			else if (engine == null) multBlock(ia, ib, ic, n, bkSize);
+			else if (bkSize == 0) multLine(engine, ia, ib, ic, n);
+			else multBlock(engine, ia, ib, ic, n, bkSize);
+			intRun.stop();
+
+			MatrixRun longRun = MatrixRun.start(algorithm + "Long", n, bkSize, used);
+			if (engine == null && bkSize == 0) multLine(la, lb, lc, n);
+			else if (engine == null) multBlock(la, lb, lc, n, bkSize);
+			else if (bkSize == 0) multLine(engine, la, lb, lc, n);
+			else multBlock(engine, la, lb, lc, n, bkSize);
+			longRun.stop();
+
+			int wrong = 0;
+			for (int i = 0; i < n*n; i++)
+				if (ic[i] != lc[i]) wrong++;
+
+			System.out.println("Type     Time        GFLOP/s   Error");
+			printRow("double", doubleRun, "reference");
+			printRow("float", floatRun, String.format("%.2e", floatError));
+			printRow("mixed", mixedRun, String.format("%.2e", mixedError));
+			printRow("int", intRun, wrong == 0 ? "exact" : wrong + " wrong");
+			printRow("long", longRun, "reference (integers)");
+		} finally {
+			if (engine != null) engine.shutdown();
+		}
+	}
+
+	// Largest difference, relative to the largest value of the reference
+	private static double relativeError(float[] c, double[] reference) {
+		double error = 0, scale = 0;
+		for (int i = 0; i < c.length; i++) {
+			error = Math.max(error, Math.abs(c[i] - reference[i]));
+			scale = Math.max(scale, Math.abs(reference[i]));
+		}
+		return scale == 0 ? error : error / scale;
+	}
+
+	private static void printRow(String type, MatrixRun run, String error) {
+		System.out.printf("%-8s %7.3f s   %7.3f   %s\n", type, run.getSeconds(), run.getGflops(), error);
+	}
+}
@@ -0,0 +1,133 @@
+/**
+ * Compressed sparse matrix, by rows (CSR) or by columns (CSC), on primitive arrays.
+ *
+ * In CSR the non-zeros of row i are values[pointers[i] .. pointers[i+1]) and their column
+ * numbers are the same range of indices; CSC is the same with rows and columns swapped.
+ * Inside a row (or column) the indices are increasing.
+ */
+public class SparseMatrix {
+	public enum Format { CSR, CSC }
+
+	private final Format format;
+	private final int rows, cols;
+	private final int[] pointers;
+	private final int[] indices;
+	private final double[] values;
+
+	public SparseMatrix(Format format, int rows, int cols, int[] pointers, int[] indices, double[] values) {
+		int lines = format == Format.CSR ? rows : cols;
+		if (pointers.length != lines + 1 || indices.length < pointers[lines] || values.length < pointers[lines])
+			throw new IllegalArgumentException("Arrays do not match a " + rows + " x " + cols + " " + format + " matrix");
+		this.format = format;
+		this.rows = rows;
+		this.cols = cols;
+		this.pointers = pointers;
+		this.indices = indices;
+		this.values = values;
+	}
+
+	// Compresses the non-zeros of a row-major rows x cols matrix
+	public static SparseMatrix fromDense(Format format, double[] m, int rows, int cols) {
+		boolean byRows = format == Format.CSR;
+		int lines = byRows ? rows : cols;
+		int length = byRows ? cols : rows;
+		int[] pointers = new int[lines + 1];
+		int[] indices = new int[count(m, rows * cols)];
+		double[] values = new double[indices.length];
+
+		int nz = 0;
+		for (int line = 0; line < lines; line++) {
+			for (int x = 0; x < length; x++) {
+				double v = byRows ? m[line*cols + x] : m[x*cols + line];
+				if (v != 0) {
+					indices[nz] = x;
+					values[nz++] = v;
+				}
+			}
+			pointers[line + 1] = nz;
+		}
+		return new SparseMatrix(format, rows, cols, pointers, indices, values);
+	}
+
+	// Fraction of the first length values that are not zero
+	public static double density(double[] m, int length) {
+		return length == 0 ? 0 : (double)count(m, length) / length;
+	}
+
+	private static int count(double[] m, int length) {
+		int nz = 0;
+		for (int i = 0; i < length; i++)
+			if (m[i] != 0) nz++;
+		return nz;
+	}
+
+	// Same matrix in the other format (a counting sort of the non-zeros by their index)
+	public SparseMatrix convert(Format target) {
+		if (target == format) return this;
+
+		int lines = format == Format.CSR ? rows : cols;
+		int others = format == Format.CSR ? cols : rows;
+		int nz = nonZeros();
+		int[] newPointers = new int[others + 1];
+		int[] newIndices = new int[nz];
+		double[] newValues = new double[nz];
+
+		for (int p = 0; p < nz; p++) newPointers[indices[p] + 1]++;
+		for (int x = 0; x < others; x++) newPointers[x + 1] += newPointers[x];
+
+		int[] next = java.util.Arrays.copyOf(newPointers, others);
+		for (int line = 0; line < lines; line++)
+			for (int p = pointers[line]; p < pointers[line + 1]; p++) {
+				int q = next[indices[p]]++;
+				newIndices[q] = line;
+				newValues[q] = values[p];
+			}
+		return new SparseMatrix(target, rows, cols, newPointers, newIndices, newValues);
+	}
+
+	// Row-major dense copy
+	public double[] toDense() {
+		double[] m = new double[rows * cols];
+		boolean byRows = format == Format.CSR;
+		int lines = byRows ? rows : cols;
+		for (int line = 0; line < lines; line++)
+			for (int p = pointers[line]; p < pointers[line + 1]; p++) {
+				if (byRows) m[line*cols + indices[p]] = values[p];
+				else m[indices[p]*cols + line] = values[p];
+			}
+		return m;
+	}
+
+	public Format getFormat() {
+		return format;
+	}
+
+	public int getRows() {
+		return rows;
+	}
+
+	public int getCols() {
+		return cols;
+	}
+
+	public int nonZeros() {
+		return pointers[format == Format.CSR ? rows : cols];
+	}
+
+	public double getDensity() {
+		return rows == 0 || cols == 0 ? 0 : (double)nonZeros() / ((long)rows * cols);
+	}
+
+	// The arrays are shared, not copied
+	public int[] getPointers() {
+		return pointers;
+	}
+
+	public int[] getIndices() {
+		return indices;
+	}
+
+	public double[] getValues() {
+		return values;
+	}
+}
@@ -0,0 +1,176 @@
+import java.util.Random;
+
+/**
+ * Multiplication with sparse operands (see SparseMatrix).
+ *
+ * Sparse x dense walks the non-zeros of A and adds value * (row of B) to a row of C, like
+ * the line algorithm with the zero terms skipped. Sparse x sparse is Gustavson's algorithm:
+ * each row of C is accumulated in a dense scratch row, and a list of the columns touched so
+ * far lets it be compressed and cleared without scanning the whole row.
+ *
+ * mult() measures the density of both dense inputs first (O(n^2), against the O(n^3)
+ * multiplication) and picks the sparse or the dense path.
+ */
+public class SparseMult {
+	public enum Path { DENSE, SPARSE_DENSE, SPARSE_SPARSE }
+
+	// A sparser than this uses the sparse x dense kernel (it beat the packed kernel up to
+	// about 15% non-zeros with n = 1500)
+	public static final double SPARSE_DENSITY = 0.10;
+	// Both sparser than this use the sparse x sparse kernel
+	public static final double SPARSE_SPARSE_DENSITY = 0.005;
+
+	// Path that mult() uses for inputs of these densities
+	public static Path choose(double densityA, double densityB) {
+		if (densityA <= SPARSE_SPARSE_DENSITY && densityB <= SPARSE_SPARSE_DENSITY) return Path.SPARSE_SPARSE;
+		if (densityA <= SPARSE_DENSITY) return Path.SPARSE_DENSE;
+		return Path.DENSE;
+	}
+
+	// phc += pha * phb for n x n row-major matrices, on the path their densities call for
+	public static Path mult(double[] pha, double[] phb, double[] phc, int n) {
+		Path path = choose(SparseMatrix.density(pha, n*n), SparseMatrix.density(phb, n*n));
+		switch (path) {
+			case SPARSE_SPARSE:
+				SparseMatrix c = mult(SparseMatrix.fromDense(SparseMatrix.Format.CSR, pha, n, n),
+						SparseMatrix.fromDense(SparseMatrix.Format.CSR, phb, n, n));
+				addTo(c, phc);
+				break;
+			case SPARSE_DENSE:
+				mult(SparseMatrix.fromDense(SparseMatrix.Format.CSR, pha, n, n), n, phb, n, phc, n);
+				break;
+			default:
+				PackedGemm.multPacked(pha, phb, phc, n);
+		}
+		return path;
+	}
+
+	// C += A * B, where A is sparse (m x k, CSR or CSC), B is dense k x n and C is dense m x n,
+	// both row-major with consecutive rows ldb / ldc elements apart
+	public static void mult(SparseMatrix a, int n, double[] b, int ldb, double[] c, int ldc) {
+		int[] pointers = a.getPointers();
+		int[] indices = a.getIndices();
+		double[] values = a.getValues();
+
+		if (a.getFormat() == SparseMatrix.Format.CSR) {
+			for (int i = 0; i < a.getRows(); i++) {
+				int rowC = i*ldc;
+				for (int p = pointers[i]; p < pointers[i + 1]; p++) {
+					double v = values[p];
+					int rowB = indices[p]*ldb;
+					for (int j = 0; j < n; j++)
+						c[rowC + j] += v * b[rowB + j];
+				}
+			}
+		} else {
+			// Column k of A scales row k of B into the rows of C it touches
+			for (int k = 0; k < a.getCols(); k++) {
+				int rowB = k*ldb;
+				for (int p = pointers[k]; p < pointers[k + 1]; p++) {
+					double v = values[p];
+					int rowC = indices[p]*ldc;
+					for (int j = 0; j < n; j++)
+						c[rowC + j] += v * b[rowB + j];
+				}
+			}
+		}
+	}
+
+	// A * B for two sparse matrices, as CSR (inputs in CSC are converted first)
+	public static SparseMatrix mult(SparseMatrix a, SparseMatrix b) {
+		if (a.getCols() != b.getRows())
+			throw new IllegalArgumentException("Matrix dimensions do not match");
+		a = a.convert(SparseMatrix.Format.CSR);
+		b = b.convert(SparseMatrix.Format.CSR);
+
+		int m = a.getRows(), n = b.getCols();
+		int[] ap = a.getPointers(), ai = a.getIndices(), bp = b.getPointers(), bi = b.getIndices();
+		double[] av = a.getValues(), bv = b.getValues();
+
+		int[] pointers = new int[m + 1];
+		int capacity = Math.max(16, a.nonZeros() + b.nonZeros());
+		int[] indices = new int[capacity];
+		double[] values = new double[capacity];
+
+		double[] row = new double[n];
+		boolean[] used = new boolean[n];
+		int[] touched = new int[n];
+		int nz = 0;
+
+		for (int i = 0; i < m; i++) {
+			int count = 0;
+			for (int p = ap[i]; p < ap[i + 1]; p++) {
+				double v = av[p];
+				int k = ai[p];
+				for (int q = bp[k]; q < bp[k + 1]; q++) {
+					int j = bi[q];
+					if (!used[j]) {
+						used[j] = true;
+						touched[count++] = j;
+					}
+					row[j] += v * bv[q];
+				}
+			}
+
+			if (nz + count > capacity) {
+				capacity = Math.max(nz + count, capacity * 2);
+				indices = java.util.Arrays.copyOf(indices, capacity);
+				values = java.util.Arrays.copyOf(values, capacity);
+			}
+			java.util.Arrays.sort(touched, 0, count);
+			for (int t = 0; t < count; t++) {
+				int j = touched[t];
+				indices[nz] = j;
+				values[nz++] = row[j];
+				row[j] = 0;
+				used[j] = false;
+			}
+			pointers[i + 1] = nz;
+		}
+		return new SparseMatrix(SparseMatrix.Format.CSR, m, n, pointers, indices, values);
+	}
+
+	// c += a, with c dense and row-major
+	public static void addTo(SparseMatrix a, double[] c) {
+		int[] pointers = a.getPointers();
+		int[] indices = a.getIndices();
+		double[] values = a.getValues();
+		boolean byRows = a.getFormat() == SparseMatrix.Format.CSR;
+		int lines = byRows ? a.getRows() : a.getCols();
+		int cols = a.getCols();
+		for (int line = 0; line < lines; line++)
+			for (int p = pointers[line]; p < pointers[line + 1]; p++) {
+				if (byRows) c[line*cols + indices[p]] += values[p];
+				else c[indices[p]*cols + line] += values[p];
+			}
+	}
+
+	// Same values as the other options (A = 1, B = row + 1), but only at a random
+	// fraction "density" of the positions
+	public static void OnMultSparse(int m_ar, int m_br, double density) {
+		int i, j;
+
+		double[] pha = new double[m_ar*m_ar];
+		double[] phb = new double[m_ar*m_ar];
+		double[] phc = new double[m_ar*m_ar];
+
+		Random random = new Random(42);
+		for(i=0; i<m_ar; i++)
+			for(j=0; j<m_ar; j++)
+				if (random.nextDouble() < density) pha[i*m_ar + j] = (double)1.0;
+
+		for(i=0; i<m_br; i++)
+			for(j=0; j<m_br; j++)
+				if (random.nextDouble() < density) phb[i*m_br + j] = (double)(i+1);
+
+		MatrixRun run = MatrixRun.start("OnMultSparse", m_ar, 0, 1);
+
+		Path path = mult(pha, phb, phc, m_ar);
+
+		run.stop();
+
+		System.out.printf("Density: A %.4f, B %.4f\n", SparseMatrix.density(pha, m_ar*m_ar), SparseMatrix.density(phb, m_br*m_br));
+		System.out.println("Path: " + path);
+		run.print();
+	}
+}
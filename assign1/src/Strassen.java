@@ -0,0 +1,337 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Strassen-Winograd multiplication (7 products and 15 additions per level).
+ *
+ * The matrix is halved until it is at most the crossover size, where the packed kernel
+ * (PackedGemm) is faster than another level of recursion. Sizes that do not halve evenly
+ * down to the crossover are zero-padded once.
+ *
+ * All temporaries are allocated in the constructor: each level of the sequential recursion
+ * needs two h x h buffers (the schedule of Boyer, Dumas, Pernet and Zhou, which stores the
+ * other intermediate results in the quadrants of C). When more than one thread is used, the
+ * seven products of the top level run in parallel, each with its own buffers.
+ * An instance can be reused for any number of n x n multiplications, by one thread at a time.
+ */
+public class Strassen {
+	public static final int DEFAULT_CROSSOVER = 256;
+	public static final int[] CROSSOVER_CANDIDATES = {128, 256, 512};
+
+	private static int tunedCrossover = 0;
+
+	private final int n;
+	private final int padded;
+	private final int depth;
+
+	// Zero-padded copies of the operands, only used when n != padded
+	private final double[] pa, pb, pc;
+
+	// Buffers of the sequential recursion
+	private final Workspace sequential;
+
+	// Buffers of the parallel top level: S1..S4, T1..T4, P1, P2, P4 and one workspace per product
+	private final double[][] s, t;
+	private final double[] p1, p2, p4;
+	private final Workspace[] tasks;
+	private final ForkJoinPool pool;
+
+	private class Workspace {
+		final double[][] x = new double[depth][];
+		final double[][] y = new double[depth][];
+
+		Workspace(int fromLevel) {
+			for (int level = fromLevel; level < depth; level++) {
+				int h = padded >> (level + 1);
+				x[level] = new double[h*h];
+				y[level] = new double[h*h];
+			}
+		}
+	}
+
+	public Strassen(int n, int crossover, int parallelism) {
+		if (crossover < 1) crossover = DEFAULT_CROSSOVER;
+		if (parallelism <= 0) parallelism = Runtime.getRuntime().availableProcessors();
+
+		// Halve until the blocks fit in the crossover size, rounding up
+		int size = n, levels = 0;
+		while (size > crossover) {
+			size = (size + 1) / 2;
+			levels++;
+		}
+
+		this.n = n;
+		this.depth = levels;
+		this.padded = size << levels;
+
+		if (padded != n) {
+			pa = new double[padded*padded];
+			pb = new double[padded*padded];
+			pc = new double[padded*padded];
+		} else {
+			pa = pb = pc = null;
+		}
+
+		if (parallelism > 1 && depth > 0) {
+			int h = padded / 2;
+			s = new double[4][h*h];
+			t = new double[4][h*h];
+			p1 = new double[h*h];
+			p2 = new double[h*h];
+			p4 = new double[h*h];
+			tasks = new Workspace[7];
+			for (int i = 0; i < 7; i++) tasks[i] = new Workspace(1);
+			pool = new ForkJoinPool(Math.min(parallelism, 7));
+			sequential = null;
+		} else {
+			s = t = null;
+			p1 = p2 = p4 = null;
+			tasks = null;
+			pool = null;
+			sequential = new Workspace(0);
+		}
+	}
+
+	// Bytes of the buffers the constructor allocates for these arguments
+	public static long bufferBytes(int n, int crossover, int parallelism) {
+		if (crossover < 1) crossover = DEFAULT_CROSSOVER;
+		if (parallelism <= 0) parallelism = Runtime.getRuntime().availableProcessors();
+
+		int size = n, levels = 0;
+		while (size > crossover) {
+			size = (size + 1) / 2;
+			levels++;
+		}
+		long padded = (long) size << levels;
+
+		long doubles = padded != n ? 3 * padded*padded : 0;
+		if (parallelism > 1 && levels > 0) {
+			long h = padded / 2;
+			doubles += 11 * h*h + 7 * workspaceDoubles(padded, levels, 1);
+		} else {
+			doubles += workspaceDoubles(padded, levels, 0);
+		}
+		return doubles * Double.BYTES;
+	}
+
+	private static long workspaceDoubles(long padded, int depth, int fromLevel) {
+		long doubles = 0;
+		for (int level = fromLevel; level < depth; level++) {
+			long h = padded >> (level + 1);
+			doubles += 2 * h*h;
+		}
+		return doubles;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	public void shutdown() {
+		if (pool != null) pool.shutdown();
+	}
+
+	// phc = pha * phb for the n x n row-major matrices this instance was built for
+	public void mult(double[] pha, double[] phb, double[] phc) {
+		if (pa == null) {
+			multPadded(pha, phb, phc);
+			return;
+		}
+
+		for (int i = 0; i < n; i++) {
+			System.arraycopy(pha, i*n, pa, i*padded, n);
+			System.arraycopy(phb, i*n, pb, i*padded, n);
+		}
+		multPadded(pa, pb, pc);
+		for (int i = 0; i < n; i++)
+			System.arraycopy(pc, i*padded, phc, i*n, n);
+	}
+
+	private void multPadded(double[] a, double[] b, double[] c) {
+		if (pool != null) parallelTop(a, b, c);
+		else winograd(0, a, 0, padded, b, 0, padded, c, 0, padded, sequential);
+	}
+
+	// C = A * B for blocks of size padded >> level
+	private void winograd(int level, double[] a, int ao, int lda, double[] b, int bo, int ldb,
+			double[] c, int co, int ldc, Workspace ws) {
+		int size = padded >> level;
+		if (level == depth) {
+			fill(size, c, co, ldc, 0);
+			PackedGemm.forThread().gemm(size, size, size, a, ao, lda, b, bo, ldb, c, co, ldc);
+			return;
+		}
+
+		int h = size / 2;
+		int a11 = ao, a12 = ao + h, a21 = ao + h*lda, a22 = a21 + h;
+		int b11 = bo, b12 = bo + h, b21 = bo + h*ldb, b22 = b21 + h;
+		int c11 = co, c12 = co + h, c21 = co + h*ldc, c22 = c21 + h;
+		double[] x = ws.x[level];
+		double[] y = ws.y[level];
+		int next = level + 1;
+
+		sub(h, a, a11, lda, a, a21, lda, x, 0, h);                 // S3 = A11 - A21
+		sub(h, b, b22, ldb, b, b12, ldb, y, 0, h);                 // T3 = B22 - B12
+		winograd(next, x, 0, h, y, 0, h, c, c21, ldc, ws);         // P7 = S3 T3      -> C21
+		add(h, a, a21, lda, a, a22, lda, x, 0, h);                 // S1 = A21 + A22
+		sub(h, b, b12, ldb, b, b11, ldb, y, 0, h);                 // T1 = B12 - B11
+		winograd(next, x, 0, h, y, 0, h, c, c22, ldc, ws);         // P5 = S1 T1      -> C22
+		sub(h, x, 0, h, a, a11, lda, x, 0, h);                     // S2 = S1 - A11
+		sub(h, b, b22, ldb, y, 0, h, y, 0, h);                     // T2 = B22 - T1
+		winograd(next, x, 0, h, y, 0, h, c, c12, ldc, ws);         // P6 = S2 T2      -> C12
+		sub(h, a, a12, lda, x, 0, h, x, 0, h);                     // S4 = A12 - S2
+		sub(h, y, 0, h, b, b21, ldb, y, 0, h);                     // T4 = T2 - B21
+		winograd(next, x, 0, h, b, b22, ldb, c, c11, ldc, ws);     // P3 = S4 B22     -> C11
+		winograd(next, a, a11, lda, b, b11, ldb, x, 0, h, ws);     // P1 = A11 B11    -> X
+		addTo(h, x, 0, h, c, c12, ldc);                            // U2 = P1 + P6    -> C12
+		addTo(h, c, c12, ldc, c, c21, ldc);                        // U3 = U2 + P7    -> C21
+		addTo(h, c, c22, ldc, c, c12, ldc);                        // U4 = U2 + P5    -> C12
+		addTo(h, c, c21, ldc, c, c22, ldc);                        // U7 = U3 + P5    -> C22
+		addTo(h, c, c11, ldc, c, c12, ldc);                        // U5 = U4 + P3    -> C12
+		winograd(next, a, a22, lda, y, 0, h, c, c11, ldc, ws);     // P4 = A22 T4     -> C11
+		subFrom(h, c, c11, ldc, c, c21, ldc);                      // U6 = U3 - P4    -> C21
+		winograd(next, a, a12, lda, b, b21, ldb, c, c11, ldc, ws); // P2 = A12 B21    -> C11
+		addTo(h, x, 0, h, c, c11, ldc);                            // U1 = P1 + P2    -> C11
+	}
+
+	// Top level with the seven products computed at the same time, each into its own buffer
+	private void parallelTop(double[] a, double[] b, double[] c) {
+		int ld = padded;
+		int h = padded / 2;
+		int a11 = 0, a12 = h, a21 = h*ld, a22 = a21 + h;
+		int b11 = 0, b12 = h, b21 = h*ld, b22 = b21 + h;
+		int c11 = 0, c12 = h, c21 = h*ld, c22 = c21 + h;
+
+		add(h, a, a21, ld, a, a22, ld, s[0], 0, h);        // S1 = A21 + A22
+		sub(h, s[0], 0, h, a, a11, ld, s[1], 0, h);        // S2 = S1 - A11
+		sub(h, a, a11, ld, a, a21, ld, s[2], 0, h);        // S3 = A11 - A21
+		sub(h, a, a12, ld, s[1], 0, h, s[3], 0, h);        // S4 = A12 - S2
+		sub(h, b, b12, ld, b, b11, ld, t[0], 0, h);        // T1 = B12 - B11
+		sub(h, b, b22, ld, t[0], 0, h, t[1], 0, h);        // T2 = B22 - T1
+		sub(h, b, b22, ld, b, b12, ld, t[2], 0, h);        // T3 = B22 - B12
+		sub(h, t[1], 0, h, b, b21, ld, t[3], 0, h);        // T4 = T2 - B21
+
+		pool.submit(() -> ForkJoinTask.invokeAll(
+				ForkJoinTask.adapt(() -> winograd(1, a, a11, ld, b, b11, ld, p1, 0, h, tasks[0])),     // P1
+				ForkJoinTask.adapt(() -> winograd(1, a, a12, ld, b, b21, ld, p2, 0, h, tasks[1])),     // P2
+				ForkJoinTask.adapt(() -> winograd(1, s[3], 0, h, b, b22, ld, c, c11, ld, tasks[2])),   // P3
+				ForkJoinTask.adapt(() -> winograd(1, a, a22, ld, t[3], 0, h, p4, 0, h, tasks[3])),     // P4
+				ForkJoinTask.adapt(() -> winograd(1, s[0], 0, h, t[0], 0, h, c, c22, ld, tasks[4])),   // P5
+				ForkJoinTask.adapt(() -> winograd(1, s[1], 0, h, t[1], 0, h, c, c12, ld, tasks[5])),   // P6
+				ForkJoinTask.adapt(() -> winograd(1, s[2], 0, h, t[2], 0, h, c, c21, ld, tasks[6]))    // P7
+		)).join();
+
+		addTo(h, p1, 0, h, c, c12, ld);              // U2 = P1 + P6
+		addTo(h, c, c12, ld, c, c21, ld);            // U3 = U2 + P7
+		addTo(h, c, c22, ld, c, c12, ld);            // U4 = U2 + P5
+		addTo(h, c, c21, ld, c, c22, ld);            // U7 = U3 + P5
+		addTo(h, c, c11, ld, c, c12, ld);            // U5 = U4 + P3
+		subFrom(h, p4, 0, h, c, c21, ld);            // U6 = U3 - P4
+		add(h, p1, 0, h, p2, 0, h, c, c11, ld);      // U1 = P1 + P2
+	}
+
+	// c = a + b on h x h blocks
+	private static void add(int h, double[] a, int ao, int lda, double[] b, int bo, int ldb, double[] c, int co, int ldc) {
+		for (int i = 0; i < h; i++) {
+			int ra = ao + i*lda, rb = bo + i*ldb, rc = co + i*ldc;
+			for (int j = 0; j < h; j++) c[rc+j] = a[ra+j] + b[rb+j];
+		}
+	}
+
+	// c = a - b on h x h blocks
+	private static void sub(int h, double[] a, int ao, int lda, double[] b, int bo, int ldb, double[] c, int co, int ldc) {
+		for (int i = 0; i < h; i++) {
+			int ra = ao + i*lda, rb = bo + i*ldb, rc = co + i*ldc;
+			for (int j = 0; j < h; j++) c[rc+j] = a[ra+j] - b[rb+j];
+		}
+	}
+
+	// c += a on h x h blocks
+	private static void addTo(int h, double[] a, int ao, int lda, double[] c, int co, int ldc) {
+		for (int i = 0; i < h; i++) {
+			int ra = ao + i*lda, rc = co + i*ldc;
+			for (int j = 0; j < h; j++) c[rc+j] += a[ra+j];
+		}
+	}
+
+	// c -= a on h x h blocks
+	private static void subFrom(int h, double[] a, int ao, int lda, double[] c, int co, int ldc) {
+		for (int i = 0; i < h; i++) {
+			int ra = ao + i*lda, rc = co + i*ldc;
+			for (int j = 0; j < h; j++) c[rc+j] -= a[ra+j];
+		}
+	}
+
+	private static void fill(int h, double[] c, int co, int ldc, double value) {
+		for (int i = 0; i < h; i++)
+			java.util.Arrays.fill(c, co + i*ldc, co + i*ldc + h, value);
+	}
+
+	// Crossover measured on this machine the first time it is needed
+	public static synchronized int crossover() {
+		if (tunedCrossover == 0) tunedCrossover = tuneCrossover();
+		return tunedCrossover;
+	}
+
+	// Smallest candidate c for which one level of Strassen on 2c x 2c beats the packed kernel
+	public static int tuneCrossover() {
+		for (int c : CROSSOVER_CANDIDATES) {
+			int size = 2*c;
+			double[] a = new double[size*size];
+			double[] b = new double[size*size];
+			double[] r = new double[size*size];
+			for (int i = 0; i < size*size; i++) {
+				a[i] = 1.0;
+				b[i] = i / size + 1;
+			}
+
+			Strassen oneLevel = new Strassen(size, c, 1);
+			long direct = Long.MAX_VALUE, strassen = Long.MAX_VALUE;
+			for (int run = 0; run < 5; run++) {
+				long time1 = System.nanoTime();
+				PackedGemm.multPacked(a, b, r, size);
+				long time2 = System.nanoTime();
+				oneLevel.mult(a, b, r);
+				long time3 = System.nanoTime();
+				direct = Math.min(direct, time2 - time1);
+				strassen = Math.min(strassen, time3 - time2);
+			}
+
+			if (strassen < direct) return c;
+		}
+		return CROSSOVER_CANDIDATES[CROSSOVER_CANDIDATES.length - 1];
+	}
+
+	public static void OnMultStrassen(int m_ar, int m_br, int threads) {
+		int i, j;
+
+		double[] pha = new double[m_ar*m_ar];
+		double[] phb = new double[m_ar*m_ar];
+		double[] phc = new double[m_ar*m_ar];
+
+		for(i=0; i<m_ar; i++)
+			for(j=0; j<m_ar; j++)
+				pha[i*m_ar + j] = (double)1.0;
+
+		for(i=0; i<m_br; i++)
+			for(j=0; j<m_br; j++)
+				phb[i*m_br + j] = (double)(i+1);
+
+		int crossover = crossover();
+		Strassen strassen = new Strassen(m_ar, crossover, threads);
+		System.out.println("Crossover: " + crossover + ", recursion depth: " + strassen.getDepth());
+
+		MatrixRun run;
+		try {
+			run = MatrixRun.start("OnMultStrassen", m_ar, crossover, threads);
+
+			strassen.mult(pha, phb, phc);
+
+			run.stop();
+		} finally {
+			strassen.shutdown();
+		}
+
+		run.print();
+	}
+}
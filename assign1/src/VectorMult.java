@@ -0,0 +1,102 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Line multiplication with an explicitly vectorized inner loop (Java Vector API).
+ *
+ * Instead of relying on the JIT to auto-vectorize phc[i*n+j] += pha[i*n+k] * phb[k*n+j],
+ * each step broadcasts pha[i*n+k] and does a fused multiply-add on a whole vector of phb
+ * and phc. Four values of k are handled per pass so each vector of phc is loaded and
+ * stored once for four multiply-adds. Columns that do not fill a vector use a scalar loop.
+ *
+ * Needs the incubator module:
+ *   javac --add-modules jdk.incubator.vector VectorMult.java
+ *   java --add-modules jdk.incubator.vector matrixproduct
+ */
+public class VectorMult {
+	// Widest vector shape the CPU supports, picked once when the class is loaded
+	public static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+	public static void multLine(double[] pha, double[] phb, double[] phc, int n) {
+		lineKernel(pha, phb, phc, n, 0, n);
+	}
+
+	// Computes the rows [rowStart, rowEnd) of phc += pha * phb
+	public static void lineKernel(double[] pha, double[] phb, double[] phc, int n, int rowStart, int rowEnd) {
+		int step = SPECIES.length();
+		int upper = SPECIES.loopBound(n);
+		int i, j, k;
+
+		for (i = rowStart; i < rowEnd; i++) {
+			int rowC = i*n;
+
+			for (k = 0; k + 3 < n; k += 4) {
+				double a0 = pha[rowC+k];
+				double a1 = pha[rowC+k+1];
+				double a2 = pha[rowC+k+2];
+				double a3 = pha[rowC+k+3];
+				DoubleVector va0 = DoubleVector.broadcast(SPECIES, a0);
+				DoubleVector va1 = DoubleVector.broadcast(SPECIES, a1);
+				DoubleVector va2 = DoubleVector.broadcast(SPECIES, a2);
+				DoubleVector va3 = DoubleVector.broadcast(SPECIES, a3);
+				int rowB0 = k*n;
+				int rowB1 = rowB0 + n;
+				int rowB2 = rowB1 + n;
+				int rowB3 = rowB2 + n;
+
+				for (j = 0; j < upper; j += step) {
+					DoubleVector vc = DoubleVector.fromArray(SPECIES, phc, rowC+j);
+					vc = DoubleVector.fromArray(SPECIES, phb, rowB0+j).fma(va0, vc);
+					vc = DoubleVector.fromArray(SPECIES, phb, rowB1+j).fma(va1, vc);
+					vc = DoubleVector.fromArray(SPECIES, phb, rowB2+j).fma(va2, vc);
+					vc = DoubleVector.fromArray(SPECIES, phb, rowB3+j).fma(va3, vc);
+					vc.intoArray(phc, rowC+j);
+				}
+				for (; j < n; j++) {
+					phc[rowC+j] += a0 * phb[rowB0+j] + a1 * phb[rowB1+j] + a2 * phb[rowB2+j] + a3 * phb[rowB3+j];
+				}
+			}
+
+			// Remaining values of k when n is not a multiple of 4
+			for (; k < n; k++) {
+				double a = pha[rowC+k];
+				DoubleVector va = DoubleVector.broadcast(SPECIES, a);
+				int rowB = k*n;
+
+				for (j = 0; j < upper; j += step) {
+					DoubleVector vc = DoubleVector.fromArray(SPECIES, phc, rowC+j);
+					DoubleVector.fromArray(SPECIES, phb, rowB+j).fma(va, vc).intoArray(phc, rowC+j);
+				}
+				for (; j < n; j++) {
+					phc[rowC+j] += a * phb[rowB+j];
+				}
+			}
+		}
+	}
+
+	public static void OnMultVector(int m_ar, int m_br) {
+		int i, j;
+
+		double[] pha = new double[m_ar*m_ar];
+		double[] phb = new double[m_ar*m_ar];
+		double[] phc = new double[m_ar*m_ar];
+
+		for(i=0; i<m_ar; i++)
+			for(j=0; j<m_ar; j++)
+				pha[i*m_ar + j] = (double)1.0;
+
+		for(i=0; i<m_br; i++)
+			for(j=0; j<m_br; j++)
+				phb[i*m_br + j] = (double)(i+1);
+
+		System.out.println("Vector species: " + SPECIES);
+
+		MatrixRun run = MatrixRun.start("OnMultVector", m_ar, 0, 1);
+
+		multLine(pha, phb, phc, m_ar);
+
+		run.stop();
+
+		run.print();
+	}
+}
@@ -4,13 +4,15 @@
 #include <time.h>
 #include <cstdlib>
 #include <papi.h>
+#include <cmath>
+#include <fstream>
 
 using namespace std;
 
 #define SYSTEMTIME clock_t
 
  
-void OnMult(int m_ar, int m_br) 
+double OnMult(int m_ar, int m_br) 
 {
 	
 	SYSTEMTIME Time1, Time2;
@@ -68,12 +70,14 @@ void OnMult(int m_ar, int m_br)
     free(pha);
     free(phb);
     free(phc);
+
+    return (double)(Time2 - Time1) / CLOCKS_PER_SEC;
 	
 	
 }
 
 // add code here for line x line matriz multiplication
-void OnMultLine(int m_ar, int m_br)
+double OnMultLine(int m_ar, int m_br)
 {
     SYSTEMTIME Time1, Time2;
 	
@@ -128,11 +132,13 @@ void OnMultLine(int m_ar, int m_br)
     free(pha);
     free(phb);
     free(phc);
+
+    return (double)(Time2 - Time1) / CLOCKS_PER_SEC;
     
 }
 
 // add code here for block x block matriz multiplication
-void OnMultBlock(int m_ar, int m_br, int bkSize)
+double OnMultBlock(int m_ar, int m_br, int bkSize)
 {
     SYSTEMTIME Time1, Time2;
 	
@@ -200,11 +206,38 @@ void OnMultBlock(int m_ar, int m_br, int bkSize)
     free(pha);
     free(phb);
     free(phc);
+
+    return (double)(Time2 - Time1) / CLOCKS_PER_SEC;
     
 }
 
 
 
+// Appends one run to the CSV report named by MATRIX_REPORT, with the same columns as the Java version
+void append_report(const char *algorithm, int size, int blockSize, double seconds, long long l1, long long l2)
+{
+	const char *path = getenv("MATRIX_REPORT");
+	if (path == NULL || path[0] == '\0')
+		return;
+
+	ifstream existing(path);
+	bool header = !existing.good() || existing.peek() == ifstream::traits_type::eof();
+	existing.close();
+
+	ofstream report(path, ios::app);
+	if (!report) {
+		cout << "Could not write to " << path << endl;
+		return;
+	}
+	if (header)
+		report << "language,algorithm,size,block_size,threads,time_s,gflops,l1_dcm,l2_dcm,allocated_bytes,gc_ms" << endl;
+
+	double gflops = seconds > 0 ? 2.0 * pow((double)size, 3) / seconds / 1e9 : 0;
+	report << fixed << "cpp," << algorithm << "," << size << "," << blockSize << ",1,"
+	       << setprecision(6) << seconds << "," << setprecision(4) << gflops << ","
+	       << l1 << "," << l2 << ",," << endl;
+}
+
 void handle_error (int retval)
 {
   printf("PAPI error %d: %s\n", retval, PAPI_strerror(retval));
@@ -230,6 +263,8 @@ int main (int argc, char *argv[])
 
 	char c;
 	int lin, col, blockSize;
+	double seconds;
+	const char *algorithm;
 	int op;
 	
 	int EventSet = PAPI_NULL;
@@ -272,17 +307,23 @@ int main (int argc, char *argv[])
 		ret = PAPI_start(EventSet);
 		if (ret != PAPI_OK) cout << "ERROR: Start PAPI" << endl;
 
+		blockSize = 0;
+		seconds = 0;
+		algorithm = "";
 		switch (op){
 			case 1: 
-				OnMult(lin, col);
+				seconds = OnMult(lin, col);
+				algorithm = "OnMult";
 				break;
 			case 2:
-				OnMultLine(lin, col);  
+				seconds = OnMultLine(lin, col);  
+				algorithm = "OnMultLine";
 				break;
 			case 3:
 				cout << "Block Size? ";
 				cin >> blockSize;
-				OnMultBlock(lin, col, blockSize);  
+				seconds = OnMultBlock(lin, col, blockSize);  
+				algorithm = "OnMultBlock";
 				break;
 
 		}
@@ -291,6 +332,8 @@ int main (int argc, char *argv[])
   		if (ret != PAPI_OK) cout << "ERROR: Stop PAPI" << endl;
   		printf("L1 DCM: %lld \n",values[0]);
   		printf("L2 DCM: %lld \n",values[1]);
+  		if (algorithm[0] != '\0')
+  			append_report(algorithm, lin, blockSize, seconds, values[0], values[1]);
 
 		ret = PAPI_reset( EventSet );
 		if ( ret != PAPI_OK )
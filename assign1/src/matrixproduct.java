@@ -3,8 +3,6 @@ import java.util.*;
 public class matrixproduct{
 
 	public static void OnMult(int m_ar, int m_br) {
-		long time1, time2;
-
 		String st = new String("");
 		double temp;
 		int i, j, k;
@@ -21,7 +19,7 @@ public class matrixproduct{
 			for(j=0; j<m_br; j++)
 				phb[i*m_br + j] = (double)(i+1);
 
-		time1 = System.currentTimeMillis();
+		MatrixRun run = MatrixRun.start("OnMult", m_ar, 0, 1);
 
 		for(i=0; i<m_ar; i++){
 			for(j=0; j<m_br; j++){
@@ -33,14 +31,12 @@ public class matrixproduct{
 			}
 		}
 
-		time2 = System.currentTimeMillis();
+		run.stop();
 
-		System.out.printf("Time: %3.3f seconds\n", (double)(time2-time1)/1000);
+		run.print();
 	}
 
 	public static void OnMultLine(int m_ar, int m_br) {
-		long time1, time2;
-
 		String st = new String("");
 		double temp;
 		int i, j, k;
@@ -61,7 +57,7 @@ public class matrixproduct{
 			for(j=0; j<m_ar; j++)
 				phc[i*m_ar + j] = (double)0;
 
-		time1 = System.currentTimeMillis();
+		MatrixRun run = MatrixRun.start("OnMultLine", m_ar, 0, 1);
 
 		for(i=0; i<m_ar; i++){
 			for( k=0; k<m_ar; k++){	
@@ -71,15 +67,160 @@ public class matrixproduct{
 			}
 		}
 
-		time2 = System.currentTimeMillis();
+		run.stop();
+
+		run.print();
+	}
+
+
+	public static void OnMultBlock(int m_ar, int m_br, int bkSize) {
+		int i, j;
+
+		double[] pha = new double[m_ar*m_ar];
+		double[] phb = new double[m_ar*m_ar];
+		double[] phc = new double[m_ar*m_ar];
+
+		for(i=0; i<m_ar; i++)
+			for(j=0; j<m_ar; j++)
+				pha[i*m_ar + j] = (double)1.0;
+
+		for(i=0; i<m_br; i++)
+			for(j=0; j<m_br; j++)
+				phb[i*m_br + j] = (double)(i+1);
+
+		MatrixRun run = MatrixRun.start("OnMultBlock", m_ar, bkSize, 1);
+
+		multBlock(pha, phb, phc, m_ar, bkSize);
+
+		run.stop();
+
+		run.print();
+	}
+
+	// Same as OnMultBlock, but the block size is the best one found by BlockTuner for this size
+	public static void OnMultBlockTuned(int m_ar, int m_br) {
+		int bkSize = BlockTuner.bestBlockSize(m_ar);
+		System.out.println("Block size: " + bkSize);
+		OnMultBlock(m_ar, m_br, bkSize);
+	}
+
+	// VectorMult needs the jdk.incubator.vector module, so it is only loaded when selected
+	// and matrixproduct still compiles and runs without it
+	public static void OnMultVector(int m_ar, int m_br) {
+		try {
+			Class.forName("VectorMult").getMethod("OnMultVector", int.class, int.class).invoke(null, m_ar, m_br);
+		} catch (java.lang.reflect.InvocationTargetException e) {
+			throw new RuntimeException(e.getCause());
+		} catch (ReflectiveOperationException | LinkageError e) {
+			System.out.println("Vector multiplication is not available: " + e);
+			System.out.println("Compile with 'javac --add-modules jdk.incubator.vector VectorMult.java'");
+			System.out.println("and run with 'java --add-modules jdk.incubator.vector matrixproduct'");
+		}
+	}
+
+	// phc = pha * phb for n x n row-major matrices, one element of phc at a time (i-j-k order)
+	public static void mult(double[] pha, double[] phb, double[] phc, int n) {
+		double temp;
+		int i, j, k;
+
+		for(i=0; i<n; i++){
+			for(j=0; j<n; j++){
+				temp = 0;
+				for(k=0; k<n; k++){
+					temp += pha[i*n+k] * phb[k*n+j];
+				}
+				phc[i*n+j]=temp;
+			}
+		}
+	}
+
+	// phc += pha * phb for n x n row-major matrices, one line of phc at a time (i-k-j order)
+	public static void multLine(double[] pha, double[] phb, double[] phc, int n) {
+		lineKernel(pha, phb, phc, n, 0, n);
+	}
+
+	// Computes the rows [rowStart, rowEnd) of phc += pha * phb with the line algorithm
+	public static void lineKernel(double[] pha, double[] phb, double[] phc, int n, int rowStart, int rowEnd) {
+		int i, j, k;
+
+		for(i=rowStart; i<rowEnd; i++){
+			int rowA = i*n;
+			for(k=0; k<n; k++){
+				double a = pha[rowA+k];
+				int rowB = k*n;
+				for(j=0; j<n; j++){
+					phc[rowA+j] += a * phb[rowB+j];
+				}
+			}
+		}
+	}
+
+	// phc += pha * phb for n x n row-major matrices, bkSize x bkSize blocks at a time
+	public static void multBlock(double[] pha, double[] phb, double[] phc, int n, int bkSize) {
+		blockKernel(pha, phb, phc, n, 0, n, 0, n, bkSize);
+	}
+
+	// Computes the rows [rowStart, rowEnd) and columns [colStart, colEnd) of phc += pha * phb.
+	// Blocks at the matrix edges are clipped, so n does not have to be a multiple of bkSize.
+	public static void blockKernel(double[] pha, double[] phb, double[] phc, int n,
+			int rowStart, int rowEnd, int colStart, int colEnd, int bkSize) {
+		if (bkSize <= 0)
+			throw new IllegalArgumentException("The block size must be positive, got " + bkSize);
+		int block_y, block_x, block_k;
+		int i, j, k;
 
-		System.out.printf("Time: %3.3f seconds\n", (double)(time2-time1)/1000);
+		for(block_y=rowStart; block_y<rowEnd; block_y+=bkSize){ // Go through each 'block line' one by one
+			int i_end = Math.min(block_y + bkSize, rowEnd);
+			for(block_x=colStart; block_x<colEnd; block_x+=bkSize){ // Go through each block in a line
+				int j_end = Math.min(block_x + bkSize, colEnd);
+
+				// Product of the corresponding row in A and column in B
+				for(block_k=0; block_k<n; block_k+=bkSize){
+					int k_end = Math.min(block_k + bkSize, n);
+
+					for(i=block_y; i<i_end; i++){
+						int rowA = i*n;
+						for(k=block_k; k<k_end; k++){
+							double a = pha[rowA+k];
+							int rowB = k*n;
+							for(j=block_x; j<j_end; j++){
+								phc[rowA+j] += a * phb[rowB+j];
+							}
+						}
+					}
+				}
+			}
+		}
 	}
 
+	// Asks again until the block size is at least min: the block loops never end with 0
+	private static int readBlockSize(Scanner stdin, String prompt, int min) {
+		while (true) {
+			System.out.print(prompt);
+			int blockSize = stdin.nextInt();
+			if (blockSize >= min) return blockSize;
+			System.out.println("The block size must be at least " + min);
+		}
+	}
 
 	public static void main(String[] args) {	
+		// With arguments, run the service ("serve <port> ...", see MatrixService) or a batch
+		// sweep (see BatchSweep) instead of the menu
+		if (args.length > 0) {
+			try {
+				if (args[0].equals("serve")) MatrixService.main(Arrays.copyOfRange(args, 1, args.length));
+				else BatchSweep.main(args);
+			} catch (java.io.IOException e) {
+				System.out.println(e.getMessage());
+			}
+			return;
+		}
+
 		char c;
-		int lin, col;
+		int lin, col, blockSize, threads, grid, port;
+		long budget;
+		double density;
+		String directory;
 		int op;
 
 		long[] values = new long[20];
@@ -90,6 +231,18 @@ public class matrixproduct{
 		do{
 			System.out.println("1. Multiplication");
 			System.out.println("2. Line Multiplication");
+			System.out.println("3. Block Multiplication");
+			System.out.println("4. Block Multiplication (auto-tuned block size)");
+			System.out.println("5. Parallel Line Multiplication");
+			System.out.println("6. Parallel Block Multiplication");
+			System.out.println("7. Vector Line Multiplication");
+			System.out.println("8. Packed Multiplication (register-blocked micro-kernel)");
+			System.out.println("9. Strassen-Winograd Multiplication");
+			System.out.println("10. Out-of-core Multiplication (memory-mapped files)");
+			System.out.println("11. Distributed Multiplication (Cannon, local worker processes)");
+			System.out.println("12. Sparse Multiplication (CSR, picks the dense or sparse path)");
+			System.out.println("13. Precision Comparison (double, float, mixed, int, long)");
+			System.out.println("14. Cache-oblivious Multiplication (compared with Block)");
 
 			System.out.print("Selection?: ");
 			op = stdin.nextInt();
@@ -107,6 +260,64 @@ public class matrixproduct{
 				case 2:
 					OnMultLine(lin, col);  
 					break;
+				case 3:
+					blockSize = readBlockSize(stdin, "Block Size? ", 1);
+					OnMultBlock(lin, col, blockSize);
+					break;
+				case 4:
+					OnMultBlockTuned(lin, col);
+					break;
+				case 5:
+					System.out.print("Threads? ");
+					threads = stdin.nextInt();
+					ParallelMult.OnMultLineParallel(lin, col, threads);
+					break;
+				case 6:
+					blockSize = readBlockSize(stdin, "Block Size? ", 1);
+					System.out.print("Threads? ");
+					threads = stdin.nextInt();
+					ParallelMult.OnMultBlockParallel(lin, col, blockSize, threads);
+					break;
+				case 7:
+					OnMultVector(lin, col);
+					break;
+				case 8:
+					PackedGemm.OnMultPacked(lin, col);
+					break;
+				case 9:
+					System.out.print("Threads? ");
+					threads = stdin.nextInt();
+					Strassen.OnMultStrassen(lin, col, threads);
+					break;
+				case 10:
+					System.out.print("Memory budget (MB)? ");
+					budget = stdin.nextLong();
+					System.out.print("Directory for the matrix files? ");
+					directory = stdin.next();
+					OutOfCoreMult.OnMultOutOfCore(lin, col, budget, directory);
+					break;
+				case 11:
+					System.out.print("Grid size (q for q x q workers)? ");
+					grid = stdin.nextInt();
+					System.out.print("First worker port? ");
+					port = stdin.nextInt();
+					DistributedMult.OnMultDistributed(lin, col, grid, port);
+					break;
+				case 12:
+					System.out.print("Density of non-zeros (0-1)? ");
+					density = stdin.nextDouble();
+					SparseMult.OnMultSparse(lin, col, density);
+					break;
+				case 13:
+					blockSize = readBlockSize(stdin, "Block Size (0 for the line algorithm)? ", 0);
+					System.out.print("Threads? ");
+					threads = stdin.nextInt();
+					PrimitiveMult.OnMultPrecision(lin, col, blockSize, threads);
+					break;
+				case 14:
+					blockSize = readBlockSize(stdin, "Block Size? ", 1);
+					CacheOblivious.OnMultCacheOblivious(lin, col, blockSize);
+					break;
 			}
 		} while (op != 0);
 	}
@@ -0,0 +1,118 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The binary protocol, an alternative to the text lines for clients that ask for it.
+ *
+ * Right after its username line, a client may send the line OFFER followed by the highest
+ * version it speaks ("PROTOCOL BINARY 1"). The server answers with the line OFFER and the
+ * version it will use, and from then on both sides send frames instead of lines. A server
+ * that does not know the protocol answers something else, and the client goes on with
+ * text; clients that never offer keep the text protocol.
+ *
+ * A frame is a 2-byte length (of what follows, big-endian), an opcode and the opcode's
+ * fields:
+ *
+ *   client to server              server to client
+ *   JOIN_QUEUE     u8 mode        TEXT           UTF-8 lines (anything without an opcode)
+ *   SUBMIT_NUMBER  i32 number     QUEUED         u8 mode
+ *   INFO                          GAME_START     u8 mode, u8 team
+ *   QUIT                          TURN
+ *                                 SCORE          i32 team 1, i32 team 2
+ *                                 RESULT         u8 WON or LOST
+ *                                 BYE
+ */
+public final class BinaryProtocol {
+    public static final int VERSION = 1;
+    public static final String OFFER = "PROTOCOL BINARY ";
+
+    // Bytes before the opcode, and the largest frame after them
+    public static final int LENGTH_BYTES = 2;
+    public static final int MAX_FRAME = 0xFFFF;
+
+    // Client to server
+    public static final byte JOIN_QUEUE = 1;
+    public static final byte SUBMIT_NUMBER = 2;
+    public static final byte INFO = 3;
+    public static final byte QUIT = 4;
+
+    // Server to client
+    public static final byte TEXT = 16;
+    public static final byte QUEUED = 17;
+    public static final byte GAME_START = 18;
+    public static final byte TURN = 19;
+    public static final byte SCORE = 20;
+    public static final byte RESULT = 21;
+    public static final byte BYE = 22;
+
+    // Modes and results
+    public static final byte SIMPLE = 0;
+    public static final byte RANKED = 1;
+    public static final byte LOST = 0;
+    public static final byte WON = 1;
+
+    private BinaryProtocol() {
+    }
+
+    // A frame with the opcode and room for the given number of field bytes, positioned
+    // after the opcode
+    private static ByteBuffer frame(byte opcode, int fieldBytes) {
+        ByteBuffer frame = ByteBuffer.allocate(LENGTH_BYTES + 1 + fieldBytes);
+        frame.putShort((short) (1 + fieldBytes));
+        frame.put(opcode);
+        return frame;
+    }
+
+    public static Message text(byte[] lines) {
+        int length = Math.min(lines.length, MAX_FRAME - 1);
+        return Message.ofFrame(frame(TEXT, length).put(lines, 0, length).array());
+    }
+
+    public static Message queued(boolean ranked) {
+        return Message.ofFrame(frame(QUEUED, 1).put(ranked ? RANKED : SIMPLE).array());
+    }
+
+    public static Message gameStart(boolean ranked, int team) {
+        return Message.ofFrame(frame(GAME_START, 2).put(ranked ? RANKED : SIMPLE).put((byte) team).array());
+    }
+
+    public static Message turn() {
+        return Message.ofFrame(frame(TURN, 0).array());
+    }
+
+    public static Message score(int team1, int team2) {
+        return Message.ofFrame(frame(SCORE, 8).putInt(team1).putInt(team2).array());
+    }
+
+    public static Message result(boolean won) {
+        return Message.ofFrame(frame(RESULT, 1).put(won ? WON : LOST).array());
+    }
+
+    public static Message bye() {
+        return Message.ofFrame(frame(BYE, 0).array());
+    }
+
+    // What a client sends: the same layout, encoded into the caller's buffer
+    public static void putJoinQueue(ByteBuffer out, boolean ranked) {
+        out.putShort((short) 2).put(JOIN_QUEUE).put(ranked ? RANKED : SIMPLE);
+    }
+
+    public static void putSubmitNumber(ByteBuffer out, int number) {
+        out.putShort((short) 5).put(SUBMIT_NUMBER).putInt(number);
+    }
+
+    public static void putInfo(ByteBuffer out) {
+        out.putShort((short) 1).put(INFO);
+    }
+
+    public static void putQuit(ByteBuffer out) {
+        out.putShort((short) 1).put(QUIT);
+    }
+
+    // The text of a TEXT frame, whose fields start at the buffer's position
+    public static String readText(ByteBuffer frame) {
+        byte[] bytes = new byte[frame.remaining()];
+        frame.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
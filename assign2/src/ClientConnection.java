@@ -0,0 +1,29 @@
+import java.io.IOException;
+
+/**
+ * The way lines are sent to one connected client, whichever transport the server uses
+ * (a blocking SSLSocket per thread, or an SSLEngine on a selector loop).
+ * Any thread can send to any client, so implementations must be thread-safe.
+ *
+ * Sending never blocks: messages are queued and written by the connection's writer. A
+ * client that lets more than MAX_QUEUED_BYTES pile up is too slow and is dropped.
+ */
+public interface ClientConnection {
+    int MAX_QUEUED_BYTES = 64 * 1024;
+
+    void send(Message message);
+
+    // Sends one line of the text protocol (the line break is added)
+    default void println(String line) {
+        send(Message.of(line));
+    }
+
+    // Messages sent after this call are written in the binary protocol. The switch is queued
+    // like a message, so whatever another thread sent before it still goes out as text.
+    default void useBinary() {
+        send(Message.BINARY);
+    }
+
+    // Writes what is queued, then closes
+    void close() throws IOException;
+}
@@ -1,5 +1,5 @@
-import java.net.*;
 import java.util.Scanner;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ClientInfo {
     private String username;
@@ -8,19 +8,21 @@ public class ClientInfo {
     private int loses = 0;
     private int number = 0;
     private int total = 0;
-    private boolean inGame = false;
+    // Flags are set by one handler thread and read by others
+    private volatile boolean inGame = false;
     private Scanner scanner;
-    private Socket socket;
-    private Thread thread;
-    private boolean hisTurn;
-    private boolean isConnected = false;
-    private boolean isSearching = false;
-    private Game gg;
-
-    public ClientInfo(String username, Socket socket, Thread thread) {
+    private volatile ClientConnection connection;
+    private volatile boolean hisTurn;
+    private final AtomicBoolean isConnected = new AtomicBoolean(false);
+    private volatile boolean isSearching = false;
+    private volatile long searchingSince; // System.nanoTime() when the player joined a queue
+    private volatile Game gg;
+    // Set for players whose stats PlayerStore restored, until their first connection
+    private volatile boolean restored = false;
+
+    public ClientInfo(String username, ClientConnection connection) {
         this.username = username;
-        this.socket = socket;
-        this.thread = thread;
+        this.connection = connection;
         this.hisTurn = false;
         this.gg = null;
     }
@@ -37,12 +39,29 @@ public class ClientInfo {
         return username;
     }
 
-    public Socket getSocket() {
-        return socket;
+    public ClientConnection getClientConnection() {
+        return connection;
     }
 
-    public Thread getThread() {
-        return thread;
+    // Marks the client connected through the given connection, unless it already is;
+    // a client that reconnects keeps its information but gets the new connection
+    public boolean connect(ClientConnection connection) {
+        if (!isConnected.compareAndSet(false, true)) return false;
+        this.connection = connection;
+        return true;
+    }
+
+    public void disconnect() {
+        isConnected.set(false);
+    }
+
+    // Sends one line to the client
+    public void send(String line) {
+        connection.println(line);
+    }
+
+    public void send(Message message) {
+        connection.send(message);
     }
 
     public int getRank() {
@@ -68,6 +87,22 @@ public class ClientInfo {
         return loses;
     }
 
+    // Stats saved by PlayerStore, when the server starts
+    public void restoreStats(int wins, int loses) {
+        this.wins = wins;
+        this.loses = loses;
+        updateRank();
+        restored = true;
+    }
+
+    // True for the first connection of a restored player since the server started; called
+    // after connect(), which lets only one connection in at a time
+    public boolean takeRestored() {
+        boolean first = restored;
+        restored = false;
+        return first;
+    }
+
     public void updateLoses() {
         this.loses++;
     }
@@ -124,23 +159,20 @@ public class ClientInfo {
         if(isSearching){
             isSearching = false;
         }else{
+            searchingSince = System.nanoTime();
             isSearching = true;
         }
     }
 
+    public long getSearchingSince(){
+        return searchingSince;
+    }
+
     public void resetTotal(){
         this.total = 0;
     }
 
     public boolean getConnection(){
-        return isConnected;
-    }
-
-    public void updateConnection(){
-        if(isConnected){
-            isConnected = false;
-        }else{
-            isConnected = true;
-        }
+        return isConnected.get();
     }
 }
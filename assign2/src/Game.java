@@ -5,6 +5,18 @@ import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class Game {
+    // Encoded once for every game, in both protocols
+    private static final Message YOUR_TURN = Message.of("Its your turn").withFrame(BinaryProtocol.turn());
+    private static final Message WON = Message.of("Your team won the game!", "Going back to game menu...",
+            "Write 'S' to inicialize a normal game", "Write 'R' to inicialize a ranked game",
+            "Write 'I' to learn about the game", "Write 'Q' to quit the game").withFrame(BinaryProtocol.result(true));
+    private static final Message LOST = Message.of("Your team lost the game!", "Going back to game menu...",
+            "Write 'S' to inicialize a normal game", "Write 'R' to inicialize a ranked game",
+            "Write 'I' to learn about the game", "Write 'Q' to quit the game").withFrame(BinaryProtocol.result(false));
+
+    // Time to queue one message for every player of a game, over all games (microseconds)
+    public static final Metrics.Histogram BROADCAST = new Metrics.Histogram();
+
     public final int MIN_VALUE = 1;
     public final int MAX_VALUE = 100;
 
@@ -16,6 +28,7 @@ public class Game {
     public boolean isRanked;
     public Lock locale = new ReentrantLock();
     public int playerTurn = 0;
+    public volatile long turnSince; // System.nanoTime() when the player whose turn it is was told
 
     public Game(List<ClientInfo> players, boolean isRanked) {
 
@@ -66,39 +79,28 @@ public class Game {
         gameStarted = false;
     }
 
-    public void start() throws IOException {
+    public void start() {
         if (!gameStarted) {
             gameStarted = true;
-            if(!isRanked){
-                for (ClientInfo player : players) {
-                    OutputStream output = player.getSocket().getOutputStream();
-                    PrintWriter writer = new PrintWriter(output, true);
-                    writer.println("Starting a simple game");
-                    if(team_1.contains(player)){
-                        writer.println("You are in team 1");
-                    }else if(team_2.contains(player)){
-                        writer.println("You are in team 2");
-                    }
-                }
-            }else{
-                for (ClientInfo player : players) {
-                    OutputStream output = player.getSocket().getOutputStream();
-                    PrintWriter writer = new PrintWriter(output, true);
-                    writer.println("Starting a ranked game");
-                    if(team_1.contains(player)){
-                        writer.println("You are in team 1");
-                    }else if(team_2.contains(player)){
-                        writer.println("You are in team 2");
-                    }
+            // Each message is encoded once and sent to the whole team
+            String mode = isRanked ? "Starting a ranked game" : "Starting a simple game";
+            Message toTeam1 = Message.of(mode, "You are in team 1").withFrame(BinaryProtocol.gameStart(isRanked, 1));
+            Message toTeam2 = Message.of(mode, "You are in team 2").withFrame(BinaryProtocol.gameStart(isRanked, 2));
+            long start = System.nanoTime();
+            for (ClientInfo player : players) {
+                if(team_1.contains(player)){
+                    player.send(toTeam1);
+                }else if(team_2.contains(player)){
+                    player.send(toTeam2);
                 }
             }
+            BROADCAST.recordSince(start);
             System.out.println("Starting the game with " + team_1.size() + " players in team 1 and " + team_2.size() + " players in team 2.");
             System.out.println("The target number is " + targetNumber);
 
             players.get(playerTurn).updateTurn();
-            OutputStream output = players.get(playerTurn).getSocket().getOutputStream();
-            PrintWriter writer = new PrintWriter(output, true);
-            writer.println("Its your turn");
+            turnSince = System.nanoTime();
+            players.get(playerTurn).send(YOUR_TURN);
            
         } else {
             System.out.println("The game has already started.");
@@ -108,95 +110,36 @@ public class Game {
     public boolean checkWinner() {
         if (team_1.get(0).getTotal() == targetNumber) {
             System.out.println("Team 1 won!");
-            for (ClientInfo player : team_1) {
-                OutputStream output;
-                try {
-                    output = player.getSocket().getOutputStream();
-                    PrintWriter writer = new PrintWriter(output, true);
-                    writer.println("Your team won the game!");
-                    player.updateWins();
-                    player.updateRank();
-                    player.resetTotal();
-                    player.finishGame();
-                    writer.println("Going back to game menu...");
-                    writer.println("Write 'S' to inicialize a normal game");
-                    writer.println("Write 'R' to inicialize a ranked game");
-                    writer.println("Write 'I' to learn about the game");
-                    writer.println("Write 'Q' to quit the game");
-                } catch (IOException e) {
-                    // TODO Auto-generated catch block
-                    e.printStackTrace();
-                }
-            }
-            for (ClientInfo player : team_2) {
-                OutputStream output;
-                try {
-                    output = player.getSocket().getOutputStream();
-                    PrintWriter writer = new PrintWriter(output, true);
-                    writer.println("Your team lost the game!");
-                    player.updateLoses();
-                    player.updateRank();
-                    player.resetTotal();
-                    player.finishGame();
-                    writer.println("Going back to game menu...");
-                    writer.println("Write 'S' to inicialize a normal game");
-                    writer.println("Write 'R' to inicialize a ranked game");
-                    writer.println("Write 'I' to learn about the game");
-                    writer.println("Write 'Q' to quit the game");
-                } catch (IOException e) {
-                    // TODO Auto-generated catch block
-                    e.printStackTrace();
-                }
-            }
+            endGame(team_1, team_2);
             return true;
         } else if (team_2.get(0).getTotal() == targetNumber) {
             System.out.println("Team 2 won!");
-            for (ClientInfo player : team_2) {
-                OutputStream output;
-                try {
-                    output = player.getSocket().getOutputStream();
-                    PrintWriter writer = new PrintWriter(output, true);
-                    writer.println("Your team won the game!");
-                    player.updateWins();
-                    player.updateRank();
-                    player.resetTotal();
-                    player.finishGame();
-                    writer.println("Going back to game menu...");
-                    writer.println("Write 'S' to inicialize a normal game");
-                    writer.println("Write 'R' to inicialize a ranked game");
-                    writer.println("Write 'I' to learn about the game");
-                    writer.println("Write 'Q' to quit the game");
-                } catch (IOException e) {
-                    // TODO Auto-generated catch block
-                    e.printStackTrace();
-                }
-            }
-            for (ClientInfo player : team_1) {
-                OutputStream output;
-                try {
-                    output = player.getSocket().getOutputStream();
-                    PrintWriter writer = new PrintWriter(output, true);
-                    writer.println("Your team lost the game!");
-                    player.updateLoses();
-                    player.updateRank();
-                    player.resetTotal();
-                    player.finishGame();
-                    writer.println("Going back to game menu...");
-                    writer.println("Write 'S' to inicialize a normal game");
-                    writer.println("Write 'R' to inicialize a ranked game");
-                    writer.println("Write 'I' to learn about the game");
-                    writer.println("Write 'Q' to quit the game");
-                } catch (IOException e) {
-                    // TODO Auto-generated catch block
-                    e.printStackTrace();
-                }
-            }
+            endGame(team_2, team_1);
             return true;
         } else {
             return false;
         }
     }
 
+    private static void endGame(List<ClientInfo> winners, List<ClientInfo> losers) {
+        long start = System.nanoTime();
+        for (ClientInfo player : winners) {
+            player.updateWins();
+            player.updateRank();
+            player.resetTotal();
+            player.finishGame();
+            player.send(WON);
+        }
+        for (ClientInfo player : losers) {
+            player.updateLoses();
+            player.updateRank();
+            player.resetTotal();
+            player.finishGame();
+            player.send(LOST);
+        }
+        BROADCAST.recordSince(start);
+    }
+
     public void stuff(ClientInfo p, int number){
         int i = players.indexOf(p);
         if (i == 0 || i == 3) {
@@ -206,18 +149,16 @@ public class Game {
             players.get(1).addNumber(number);
             players.get(2).addNumber(number);
         }
+        // Encoded once, the same bytes are queued for every player
+        int score1 = team_1.get(0).getTotal();
+        int score2 = team_2.get(0).getTotal();
+        Message score = Message.of("Score Team 1 is " + score1, "Score Team 2 is " + score2)
+                .withFrame(BinaryProtocol.score(score1, score2));
+        long start = System.nanoTime();
         for (ClientInfo player : players) {
-            OutputStream output;
-            try {
-                output = player.getSocket().getOutputStream();
-                PrintWriter writer = new PrintWriter(output, true);
-                writer.println("Score Team 1 is " + team_1.get(0).getTotal());
-                writer.println("Score Team 2 is " + team_2.get(0).getTotal());
-            } catch (IOException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
-            }
+            player.send(score);
         }
+        BROADCAST.recordSince(start);
         
     }
 
@@ -226,14 +167,9 @@ public class Game {
         if(playerTurn == 4){
             playerTurn = 0;
         }
-        OutputStream output;
-        try {
-            output = players.get(playerTurn).getSocket().getOutputStream();
-            PrintWriter writer = new PrintWriter(output, true);
-            writer.println("Its your turn");
-        } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        }
+        // The turn is given before it is announced, the player can answer right away
+        players.get(playerTurn).updateTurn();
+        turnSince = System.nanoTime();
+        players.get(playerTurn).send(YOUR_TURN);
     }
 }
\ No newline at end of file
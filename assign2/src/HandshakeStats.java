@@ -0,0 +1,50 @@
+import java.util.concurrent.atomic.LongAdder;
+import javax.net.ssl.SSLSession;
+
+/**
+ * Counts the server's TLS handshakes and their duration, full and resumed apart, to see
+ * how much resumption saves when many clients reconnect.
+ *
+ * A resumed session keeps the creation time of the session it resumes, so a handshake
+ * whose session was created before the handshake started is a resumption.
+ */
+public class HandshakeStats {
+    private final Metrics.Histogram full = new Metrics.Histogram();
+    private final Metrics.Histogram resumed = new Metrics.Histogram();
+    private final LongAdder failed = new LongAdder();
+
+    // Called when a handshake that started at startNanos / startMillis is done
+    public void record(SSLSession session, long startNanos, long startMillis) {
+        if (session.getCreationTime() < startMillis) {
+            resumed.recordSince(startNanos);
+        } else {
+            full.recordSince(startNanos);
+        }
+    }
+
+    // A connection that closed or failed before its handshake was done
+    public void failed() {
+        failed.increment();
+    }
+
+    public Metrics.Histogram getFull() {
+        return full;
+    }
+
+    public Metrics.Histogram getResumed() {
+        return resumed;
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    public String getStats() {
+        long fullCount = full.getCount();
+        long resumedCount = resumed.getCount();
+        long total = fullCount + resumedCount;
+        return String.format("%d handshakes, %.1f%% resumed, full %.2f ms and resumed %.2f ms average, %d failed",
+                total, total == 0 ? 0.0 : 100.0 * resumedCount / total,
+                full.getAverageMillis(), resumed.getAverageMillis(), failed.sum());
+    }
+}
@@ -0,0 +1,111 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Cuts what one client sends into lines of the text protocol or, once the client switched
+ * (LineHandler.isBinary), into frames of the binary protocol, and hands them to the
+ * connection's LineHandler. SslEventLoop feeds it the decrypted bytes, ClientHandler the
+ * bytes it reads from its socket.
+ *
+ * A frame that is whole in the input is passed as the input buffer itself, limited to the
+ * frame, so decoding it allocates nothing. Only a frame split across reads is copied, into
+ * a buffer kept for the connection.
+ */
+public class InputDecoder {
+    private final SslEventLoop.LineHandler handler;
+    private boolean binary = false;
+
+    // A line or frame split across reads; a frame keeps its length bytes
+    private byte[] pending = new byte[128];
+    private ByteBuffer pendingBuffer = ByteBuffer.wrap(pending);
+    private int pendingLength = 0;
+
+    public InputDecoder(SslEventLoop.LineHandler handler) {
+        this.handler = handler;
+    }
+
+    // Passes on everything complete in the input and keeps the rest; returns false when
+    // the connection should be closed (the handler said so, or the input is invalid)
+    public boolean feed(ByteBuffer input) {
+        while (input.hasRemaining()) {
+            if (!(binary ? frames(input) : lines(input))) return false;
+        }
+        return true;
+    }
+
+    // Lines until the input ends or the client switches to frames
+    private boolean lines(ByteBuffer input) {
+        while (input.hasRemaining()) {
+            byte b = input.get();
+            if (b == '\n') {
+                int length = pendingLength > 0 && pending[pendingLength - 1] == '\r' ? pendingLength - 1 : pendingLength;
+                String text = new String(pending, 0, length, StandardCharsets.UTF_8);
+                pendingLength = 0;
+                if (!handler.onLine(text)) return false;
+                if (handler.isBinary()) {
+                    binary = true;
+                    return true;
+                }
+            } else {
+                if (pendingLength == pending.length) {
+                    if (pending.length >= SslEventLoop.MAX_LINE) return false;
+                    grow(pending.length * 2);
+                }
+                pending[pendingLength++] = b;
+            }
+        }
+        return true;
+    }
+
+    private boolean frames(ByteBuffer input) {
+        while (input.hasRemaining()) {
+            if (pendingLength == 0 && input.remaining() >= BinaryProtocol.LENGTH_BYTES) {
+                int length = input.getShort(input.position()) & 0xFFFF;
+                int start = input.position() + BinaryProtocol.LENGTH_BYTES;
+                if (start + length <= input.limit()) {
+                    // Whole: the handler reads it in place
+                    int limit = input.limit();
+                    input.position(start).limit(start + length);
+                    boolean keep = dispatch(input);
+                    input.limit(limit).position(start + length);
+                    if (!keep) return false;
+                    continue;
+                }
+            }
+
+            // Split: copy what there is, the length first
+            int needed = BinaryProtocol.LENGTH_BYTES;
+            if (pendingLength >= BinaryProtocol.LENGTH_BYTES) {
+                needed += ((pending[0] & 0xFF) << 8 | (pending[1] & 0xFF));
+            }
+            int count = Math.min(needed - pendingLength, input.remaining());
+            if (pendingLength + count > pending.length) grow(needed);
+            input.get(pending, pendingLength, count);
+            pendingLength += count;
+            if (pendingLength < needed) continue; // The input is used up
+            if (needed == BinaryProtocol.LENGTH_BYTES) {
+                needed += ((pending[0] & 0xFF) << 8 | (pending[1] & 0xFF));
+                if (needed > BinaryProtocol.LENGTH_BYTES) continue; // The frame comes next
+            }
+            pendingBuffer.limit(needed).position(BinaryProtocol.LENGTH_BYTES);
+            pendingLength = 0;
+            if (!dispatch(pendingBuffer)) return false;
+        }
+        return true;
+    }
+
+    // A frame without an opcode is invalid, a frame the handler cannot read is ignored
+    private boolean dispatch(ByteBuffer frame) {
+        if (!frame.hasRemaining()) return false;
+        try {
+            return handler.onFrame(frame);
+        } catch (java.nio.BufferUnderflowException e) {
+            return true;
+        }
+    }
+
+    private void grow(int size) {
+        pending = java.util.Arrays.copyOf(pending, Math.max(size, pending.length));
+        pendingBuffer = ByteBuffer.wrap(pending);
+    }
+}
@@ -0,0 +1,267 @@
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.net.ssl.*;
+
+/**
+ * Load test for TimeServer: opens many idle clients that only log in, then runs active
+ * clients that keep asking for the game information ("I") and measures the answer time.
+ *
+ * The idle clients stay connected while the active ones run, so the server holds all of
+ * them at once. Meanwhile the server's memory is read from its metrics every half second:
+ * the heap its last GC left (summing_heap_after_gc_bytes), or all the heap in use while no
+ * GC has run since the test started, plus its direct buffers (summing_direct_bytes). The
+ * peak is compared with the budget given with -Dbudget=<MB>. The result is PASS or FAIL,
+ * with the memory each connected client added. The metrics are read from
+ * http://127.0.0.1:<port + 1>/metrics, or -Dmetrics.url. The connections stay open until
+ * Enter is pressed.
+ *
+ * One machine only has about 28k ephemeral ports per destination address, so more
+ * connections need several hosts, e.g. 127.0.0.1,127.0.0.2,127.0.0.3 for a local server
+ * (and "ulimit -n" high enough on both sides).
+ */
+public class LoadTest {
+    private static final String TRUSTSTORE_PATH = "../doc/file_trust.jks";
+    private static final String TRUSTSTORE_PASSWORD = "password";
+    // Handshakes in flight while the clients connect
+    private static final int CONNECTING = 256;
+    // Answer times in microseconds, bucket i holds [2^i, 2^(i+1))
+    private static final int BUCKETS = 32;
+    private static final long HEAP_SAMPLE_MILLIS = 500;
+
+    private final String[] hosts;
+    private final int port;
+    private final SSLSocketFactory factory;
+    private final String tag = Long.toString(System.currentTimeMillis() % 100000);
+
+    private final AtomicLongArray latencies = new AtomicLongArray(BUCKETS);
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    public LoadTest(String[] hosts, int port) throws Exception {
+        this.hosts = hosts;
+        this.port = port;
+
+        KeyStore trustStore = KeyStore.getInstance("JKS");
+        try (FileInputStream file = new FileInputStream(TRUSTSTORE_PATH)) {
+            trustStore.load(file, TRUSTSTORE_PASSWORD.toCharArray());
+        }
+        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(trustStore);
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(null, trustManagerFactory.getTrustManagers(), null);
+        this.factory = sslContext.getSocketFactory();
+    }
+
+    // Connects and logs in; returns null if the server did not welcome the client
+    private SSLSocket login(String username, int index) {
+        try {
+            SSLSocket socket = (SSLSocket) factory.createSocket(hosts[index % hosts.length], port);
+            socket.getOutputStream().write((username + "\n").getBytes());
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()), 256);
+            String line = reader.readLine();
+            if (line != null && line.startsWith("Welcome")) {
+                // Skip the menu
+                for (int i = 0; i < 4; i++) reader.readLine();
+                return socket;
+            }
+            socket.close();
+        } catch (IOException e) {
+            // Counted below
+        }
+        failures.increment();
+        return null;
+    }
+
+    public List<SSLSocket> openIdle(ExecutorService executor, int count) throws InterruptedException {
+        List<SSLSocket> sockets = new ArrayList<>(count);
+        Semaphore connecting = new Semaphore(CONNECTING);
+        List<Future<SSLSocket>> logins = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int index = i;
+            connecting.acquire();
+            logins.add(executor.submit(() -> {
+                try {
+                    return login("idle-" + tag + "-" + index, index);
+                } finally {
+                    connecting.release();
+                }
+            }));
+        }
+        for (Future<SSLSocket> login : logins) {
+            try {
+                SSLSocket socket = login.get();
+                if (socket != null) sockets.add(socket);
+            } catch (ExecutionException e) {
+                failures.increment();
+            }
+        }
+        return sockets;
+    }
+
+    // One client asking "I" until the deadline
+    private void active(int index, long deadline, Semaphore connecting) {
+        SSLSocket socket;
+        try {
+            socket = login("active-" + tag + "-" + index, index);
+        } finally {
+            connecting.release();
+        }
+        if (socket == null) return;
+        try (SSLSocket s = socket) {
+            OutputStream output = s.getOutputStream();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(s.getInputStream()), 1024);
+            byte[] request = "I\n".getBytes();
+            while (System.nanoTime() < deadline) {
+                long start = System.nanoTime();
+                output.write(request);
+                output.flush();
+                // The game information is four lines
+                for (int i = 0; i < 4; i++) {
+                    if (reader.readLine() == null) throw new EOFException();
+                }
+                long micros = (System.nanoTime() - start) / 1000;
+                latencies.incrementAndGet(Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(Math.max(1, micros))));
+                requests.increment();
+            }
+            output.write("Q\n".getBytes());
+        } catch (IOException e) {
+            failures.increment();
+        }
+    }
+
+    public void runActive(ExecutorService executor, int count, int seconds) throws InterruptedException {
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        Semaphore connecting = new Semaphore(CONNECTING);
+        CountDownLatch done = new CountDownLatch(count);
+        for (int i = 0; i < count; i++) {
+            int index = i;
+            connecting.acquire();
+            executor.execute(() -> {
+                try {
+                    active(index, deadline, connecting);
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+    }
+
+    // Upper bound of the bucket holding the given fraction of the answers, in milliseconds
+    private double percentile(double fraction) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) total += latencies.get(i);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += latencies.get(i);
+            if (seen >= fraction * total) return (2L << i) / 1000.0;
+        }
+        return Double.NaN;
+    }
+
+    // The server's metrics (MetricsServer) without labels, by name
+    private static Map<String, Long> readMetrics(String url) throws IOException {
+        Map<String, Long> values = new HashMap<>();
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(2000);
+        connection.setReadTimeout(5000);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int space = line.indexOf(' ');
+                if (line.startsWith("#") || space < 0 || line.indexOf('{') >= 0) continue;
+                values.put(line.substring(0, space), (long) Double.parseDouble(line.substring(space + 1)));
+            }
+        } finally {
+            connection.disconnect();
+        }
+        return values;
+    }
+
+    // Heap after the last GC, or all of the heap in use when no GC has run since the time of
+    // interest (the last one would tell nothing about it), plus the direct buffers
+    private static long memory(Map<String, Long> metrics, boolean collected) {
+        long heap = metrics.get(collected ? "summing_heap_after_gc_bytes" : "summing_heap_used_bytes");
+        return heap + metrics.get("summing_direct_bytes");
+    }
+
+    // Virtual threads when running on Java 21, platform threads otherwise
+    private static ExecutorService newExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    // java -Dbudget=<MB> [-Dmetrics.url=<url>] LoadTest <host[,host...]> <port> <idle clients> <active clients> [seconds]
+    public static void main(String[] args) throws Exception {
+        Long budgetMb = Long.getLong("budget");
+        if (args.length < 4 || budgetMb == null) {
+            System.out.println("Usage: java -Dbudget=<MB> LoadTest <host[,host...]> <port> <idle clients> <active clients> [seconds]");
+            return;
+        }
+        String[] hosts = args[0].split(",");
+        int port = Integer.parseInt(args[1]);
+        int idle = Integer.parseInt(args[2]);
+        int active = Integer.parseInt(args[3]);
+        int seconds = args.length > 4 ? Integer.parseInt(args[4]) : 30;
+
+        LoadTest test = new LoadTest(hosts, port);
+        ExecutorService executor = newExecutor();
+
+        // The server's memory before the clients, and its peak while they are connected
+        String metricsUrl = System.getProperty("metrics.url", "http://127.0.0.1:" + (port + 1) + "/metrics");
+        long budget = budgetMb << 20;
+        Map<String, Long> before = readMetrics(metricsUrl);
+        long gcsBefore = before.get("summing_gc_collections_total");
+        long memoryBefore = memory(before, gcsBefore > 0);
+        AtomicLong peak = new AtomicLong(memoryBefore);
+        AtomicLong peakClients = new AtomicLong();
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+        sampler.scheduleAtFixedRate(() -> {
+            try {
+                Map<String, Long> now = readMetrics(metricsUrl);
+                boolean collected = now.get("summing_gc_collections_total") > gcsBefore;
+                peak.accumulateAndGet(memory(now, collected), Math::max);
+                peakClients.accumulateAndGet(now.get("summing_connections_active"), Math::max);
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Could not read the server's metrics: " + e);
+            }
+        }, HEAP_SAMPLE_MILLIS, HEAP_SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+
+        long start = System.nanoTime();
+        List<SSLSocket> idleSockets = test.openIdle(executor, idle);
+        System.out.printf("%d idle clients connected in %.1f s\n", idleSockets.size(), (System.nanoTime() - start) / 1e9);
+
+        test.runActive(executor, active, seconds);
+        long count = test.requests.sum();
+        System.out.printf("%d active clients: %d requests, %.0f requests/s, p50 < %.2f ms, p99 < %.2f ms\n",
+                active, count, count / (double) seconds, test.percentile(0.50), test.percentile(0.99));
+        System.out.println("Failed connections or requests: " + test.failures.sum());
+
+        sampler.shutdown();
+        sampler.awaitTermination(10, TimeUnit.SECONDS);
+        long added = peak.get() - memoryBefore;
+        boolean pass = peak.get() <= budget;
+        System.out.printf("%s: server heap and direct buffers peaked at %d MB with up to %d clients (budget %d MB), about %.1f KB per client\n",
+                pass ? "PASS" : "FAIL", peak.get() >> 20, peakClients.get(), budget >> 20,
+                peakClients.get() == 0 ? 0.0 : added / 1024.0 / peakClients.get());
+
+        System.out.println("Press Enter to close the idle clients");
+        new BufferedReader(new InputStreamReader(System.in)).readLine();
+        for (SSLSocket socket : idleSockets) socket.close();
+        executor.shutdown();
+        if (!pass) System.exit(1);
+    }
+}
@@ -0,0 +1,161 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+
+/**
+ * Ranked matchmaking by skill. Waiting players are kept in a TreeSet ordered by rating,
+ * and four players are matched when their ratings are close enough: the largest minus the
+ * smallest rating must be at most the allowed gap of the player who has waited longest
+ * among them. The gap starts at BASE_GAP and grows by WIDEN_STEP every WIDEN_MILLIS, so
+ * a player with no close opponents is eventually matched with farther ones.
+ *
+ * Matching runs when a player joins (for that player) and when a player's gap widens (for
+ * that player again). Each time only the three neighbours on each side are looked at, as
+ * the closest group containing the player is always contiguous in rating order, so a
+ * match attempt is O(log n). Game then splits the four into balanced teams (the best and
+ * the worst against the two in the middle).
+ *
+ * Not thread-safe: RoomManager calls it under its lock.
+ */
+public class Matchmaker {
+    public static final int BASE_GAP = 2;
+    public static final int WIDEN_STEP = 1;
+    public static final long WIDEN_MILLIS = 5000;
+
+    private static final class Waiting {
+        final ClientInfo player;
+        final int rating;
+        final long since;
+        final long order;
+        long nextWiden;
+
+        Waiting(ClientInfo player, long since, long order) {
+            this.player = player;
+            this.rating = player.getRank();
+            this.since = since;
+            this.order = order;
+            this.nextWiden = since + WIDEN_MILLIS;
+        }
+    }
+
+    private final TreeSet<Waiting> byRating = new TreeSet<>(
+            Comparator.<Waiting>comparingInt(w -> w.rating).thenComparingLong(w -> w.order));
+    private final Map<ClientInfo, Waiting> waiting = new HashMap<>();
+    // Players by the time their gap next widens; matched players are skipped when they come up
+    private final PriorityQueue<Waiting> widening = new PriorityQueue<>(Comparator.comparingLong(w -> w.nextWiden));
+    private long nextOrder = 0;
+
+    // Metrics of the matches formed
+    private long matches = 0;
+    private long totalWaitMillis = 0;
+    private long maxWaitMillis = 0;
+    private long totalSpread = 0;
+    private int maxSpread = 0;
+
+    // Queues the player; returns the four players of a new match, or null
+    public List<ClientInfo> enqueue(ClientInfo player, long now) {
+        if (waiting.containsKey(player)) return null;
+        Waiting w = new Waiting(player, now, nextOrder++);
+        byRating.add(w);
+        waiting.put(player, w);
+        widening.add(w);
+        return match(w, now);
+    }
+
+    // Retries the players whose gap widened since their last attempt
+    public List<List<ClientInfo>> widen(long now) {
+        List<List<ClientInfo>> formed = new ArrayList<>();
+        while (!widening.isEmpty() && widening.peek().nextWiden <= now) {
+            Waiting w = widening.poll();
+            if (waiting.get(w.player) != w) continue; // Already matched
+            w.nextWiden += WIDEN_MILLIS;
+            widening.add(w);
+            List<ClientInfo> players = match(w, now);
+            if (players != null) formed.add(players);
+        }
+        return formed;
+    }
+
+    public boolean contains(ClientInfo player) {
+        return waiting.containsKey(player);
+    }
+
+    public int size() {
+        return waiting.size();
+    }
+
+    private static int allowedGap(Waiting w, long now) {
+        return BASE_GAP + WIDEN_STEP * (int) ((now - w.since) / WIDEN_MILLIS);
+    }
+
+    // The closest group of four containing w, if its spread is allowed
+    private List<ClientInfo> match(Waiting w, long now) {
+        int need = RoomManager.PLAYERS_PER_GAME - 1;
+        Waiting[] around = new Waiting[2 * need + 1];
+        int first = need, last = need;
+        around[need] = w;
+        Waiting next = w;
+        while (first > 0 && (next = byRating.lower(next)) != null) around[--first] = next;
+        next = w;
+        while (last < 2 * need && (next = byRating.higher(next)) != null) around[++last] = next;
+        if (last - first < need) return null;
+
+        int best = -1;
+        int bestSpread = Integer.MAX_VALUE;
+        // Every window of four in around[first..last] contains w, at index need
+        for (int start = first; start + need <= last; start++) {
+            int spread = around[start + need].rating - around[start].rating;
+            Waiting oldest = around[start];
+            for (int i = start + 1; i <= start + need; i++) {
+                if (around[i].order < oldest.order) oldest = around[i];
+            }
+            if (spread <= allowedGap(oldest, now) && spread < bestSpread) {
+                best = start;
+                bestSpread = spread;
+            }
+        }
+        if (best < 0) return null;
+
+        List<ClientInfo> players = new ArrayList<>(RoomManager.PLAYERS_PER_GAME);
+        for (int i = best; i <= best + need; i++) {
+            Waiting chosen = around[i];
+            byRating.remove(chosen);
+            waiting.remove(chosen.player);
+            players.add(chosen.player);
+
+            long waited = now - chosen.since;
+            totalWaitMillis += waited;
+            maxWaitMillis = Math.max(maxWaitMillis, waited);
+        }
+        matches++;
+        totalSpread += bestSpread;
+        maxSpread = Math.max(maxSpread, bestSpread);
+        return players;
+    }
+
+    public long getMatches() {
+        return matches;
+    }
+
+    // Average and longest time a matched player waited, in milliseconds
+    public double getAverageWaitMillis() {
+        return matches == 0 ? 0 : totalWaitMillis / (double) (matches * RoomManager.PLAYERS_PER_GAME);
+    }
+
+    public long getMaxWaitMillis() {
+        return maxWaitMillis;
+    }
+
+    // Average and largest rating difference inside a match
+    public double getAverageSpread() {
+        return matches == 0 ? 0 : totalSpread / (double) matches;
+    }
+
+    public int getMaxSpread() {
+        return maxSpread;
+    }
+}
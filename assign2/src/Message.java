@@ -0,0 +1,70 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One or more lines of the text protocol, encoded once. The same message can be queued
+ * on any number of connections (a score update goes to the four players of a game), and
+ * its lines are written together, in one flush.
+ *
+ * A message also has a form in the binary protocol (BinaryProtocol): its own frame when
+ * withFrame gave one, otherwise a TEXT frame with its lines. A connection writes the form
+ * of the protocol its client uses when the message is written.
+ */
+public final class Message {
+    // Queued by ClientConnection.useBinary(): what is queued after it is written as frames
+    static final Message BINARY = new Message(new byte[0], null);
+
+    private final byte[] bytes;
+    // The binary form; made from the lines the first time it is needed if there is none
+    private Message frame;
+
+    private Message(byte[] bytes, Message frame) {
+        this.bytes = bytes;
+        this.frame = frame;
+    }
+
+    public static Message of(String... lines) {
+        StringBuilder text = new StringBuilder();
+        for (String line : lines) {
+            text.append(line).append('\n');
+        }
+        return new Message(text.toString().getBytes(StandardCharsets.UTF_8), null);
+    }
+
+    // An encoded frame of the binary protocol, which is its own binary form
+    static Message ofFrame(byte[] frame) {
+        Message message = new Message(frame, null);
+        message.frame = message;
+        return message;
+    }
+
+    // The same lines, with the frame binary clients get instead
+    public Message withFrame(Message frame) {
+        return new Message(bytes, frame);
+    }
+
+    public int length() {
+        return bytes.length;
+    }
+
+    // The message in the binary protocol. Two threads may both make the TEXT frame the
+    // first time; either one is right.
+    Message frame() {
+        Message binary = frame;
+        if (binary == null) {
+            binary = BinaryProtocol.text(bytes);
+            frame = binary;
+        }
+        return binary;
+    }
+
+    // The bytes are shared, callers must not change them
+    byte[] bytes() {
+        return bytes;
+    }
+
+    // A view of the bytes with its own position, for one connection
+    ByteBuffer buffer() {
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+}
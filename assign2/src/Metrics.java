@@ -0,0 +1,147 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * The server's metrics, in the Prometheus text format ("metrics" on the console, or GET
+ * /metrics on MetricsServer).
+ *
+ * Recording must be cheap on the hot paths, so counters are LongAdders (striped, no
+ * contention between threads) and latencies go to a Histogram with fixed power-of-two
+ * buckets. Whoever measures something keeps its own counter or histogram; TimeServer
+ * registers them here under a name, and counters and gauges are read through a
+ * LongSupplier only when the metrics are written.
+ */
+public class Metrics {
+    /**
+     * Latencies in microseconds. Bucket i holds [2^i, 2^(i+1)) (bucket 0 also holds 0) and
+     * the last bucket everything longer, so recording is a count of leading zeros and two
+     * LongAdder increments.
+     */
+    public static final class Histogram {
+        public static final int BUCKETS = 32;
+
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+        private final LongAdder sumMicros = new LongAdder();
+
+        public Histogram() {
+            for (int i = 0; i < BUCKETS; i++) buckets[i] = new LongAdder();
+        }
+
+        public void record(long micros) {
+            int bucket = micros <= 0 ? 0 : Math.min(63 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+            buckets[bucket].increment();
+            sumMicros.add(Math.max(micros, 0));
+        }
+
+        public void recordSince(long startNanos) {
+            record((System.nanoTime() - startNanos) / 1000);
+        }
+
+        public long getCount() {
+            long count = 0;
+            for (LongAdder bucket : buckets) count += bucket.sum();
+            return count;
+        }
+
+        public double getAverageMillis() {
+            long count = getCount();
+            return count == 0 ? 0 : sumMicros.sum() / 1000.0 / count;
+        }
+
+        // The upper bound of the bucket that holds the given quantile, in milliseconds
+        public double getQuantileMillis(double quantile) {
+            long[] counts = new long[BUCKETS];
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets[i].sum();
+                count += counts[i];
+            }
+            long rank = (long) Math.ceil(quantile * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank && seen > 0) return upperMicros(i) / 1000.0;
+            }
+            return 0;
+        }
+
+        // For "stats": count, average and quantiles
+        public String getSummary() {
+            return String.format("%d, %.2f ms average, p50 %.2f ms, p99 %.2f ms",
+                    getCount(), getAverageMillis(), getQuantileMillis(0.5), getQuantileMillis(0.99));
+        }
+
+        private static long upperMicros(int bucket) {
+            return 1L << (bucket + 1);
+        }
+    }
+
+    private enum Type { COUNTER, GAUGE, HISTOGRAM }
+
+    private static final class Series {
+        final String name, labels, help;
+        final Type type;
+        final LongSupplier value;
+        final Histogram histogram;
+
+        Series(String name, String labels, String help, Type type, LongSupplier value, Histogram histogram) {
+            this.name = name;
+            this.labels = labels;
+            this.help = help;
+            this.type = type;
+            this.value = value;
+            this.histogram = histogram;
+        }
+    }
+
+    // Series of the same name are registered one after the other (with different labels)
+    private final List<Series> series = new ArrayList<>();
+
+    public synchronized void counter(String name, String labels, String help, LongSupplier value) {
+        series.add(new Series(name, labels, help, Type.COUNTER, value, null));
+    }
+
+    public synchronized void gauge(String name, String labels, String help, LongSupplier value) {
+        series.add(new Series(name, labels, help, Type.GAUGE, value, null));
+    }
+
+    // A histogram in microseconds, written in seconds as Prometheus expects
+    public synchronized void histogram(String name, String labels, String help, Histogram histogram) {
+        series.add(new Series(name, labels, help, Type.HISTOGRAM, null, histogram));
+    }
+
+    // Everything registered, in the Prometheus text format
+    public synchronized String toPrometheus() {
+        StringBuilder out = new StringBuilder();
+        String previous = null;
+        for (Series s : series) {
+            if (!s.name.equals(previous)) {
+                out.append("# HELP ").append(s.name).append(' ').append(s.help).append('\n');
+                out.append("# TYPE ").append(s.name).append(' ').append(s.type.name().toLowerCase()).append('\n');
+                previous = s.name;
+            }
+            if (s.type != Type.HISTOGRAM) {
+                out.append(s.name).append(braces(s.labels)).append(' ').append(s.value.getAsLong()).append('\n');
+                continue;
+            }
+            String prefix = s.labels.isEmpty() ? "" : s.labels + ",";
+            long cumulative = 0;
+            for (int i = 0; i < Histogram.BUCKETS; i++) {
+                cumulative += s.histogram.buckets[i].sum();
+                String bound = i == Histogram.BUCKETS - 1 ? "+Inf" : Double.toString(Histogram.upperMicros(i) / 1e6);
+                out.append(s.name).append("_bucket{").append(prefix).append("le=\"").append(bound).append("\"} ")
+                        .append(cumulative).append('\n');
+            }
+            out.append(s.name).append("_sum").append(braces(s.labels)).append(' ')
+                    .append(s.histogram.sumMicros.sum() / 1e6).append('\n');
+            out.append(s.name).append("_count").append(braces(s.labels)).append(' ').append(cumulative).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static String braces(String labels) {
+        return labels.isEmpty() ? "" : "{" + labels + "}";
+    }
+}
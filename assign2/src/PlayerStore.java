@@ -0,0 +1,381 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the players' wins and losses across restarts (the rank follows from them).
+ *
+ * Every change is appended to a log as a record with the player's new totals:
+ *   int CRC32 of the rest, short length of the name, name in UTF-8, int wins, int loses
+ * Game threads only queue the record; one writer thread takes everything queued, appends
+ * it with one write and makes it durable with one force (group commit).
+ *
+ * When the log grows past the last snapshot (or COMPACT_INTERVAL passes), the writer
+ * writes a snapshot of every player in the same record format, after a header (magic,
+ * count), and starts a new log. Files are numbered by generation: snapshot-g holds
+ * everything before log-g. A snapshot is written to a temporary file and renamed, so the
+ * newest snapshot file is always complete.
+ *
+ * On startup the newest snapshot and its log are read through memory maps and the
+ * players are put straight into the registry. A torn record at the end of the log (the
+ * server stopped while writing) ends the replay and is cut off.
+ */
+public class PlayerStore {
+    private static final int MAGIC = 0x43504453; // "CPDS"
+    private static final int MAX_NAME_BYTES = 0xFFFF;
+    // The log is compacted when it is larger than the snapshot and than this
+    private static final long COMPACT_MIN_BYTES = 16L * 1024 * 1024;
+    private static final long COMPACT_INTERVAL_MILLIS = 10 * 60 * 1000;
+
+    private static final class Change {
+        final String name;
+        final int wins, loses;
+
+        Change(String name, int wins, int loses) {
+            this.name = name;
+            this.wins = wins;
+            this.loses = loses;
+        }
+    }
+
+    private static final Change CLOSE = new Change("", 0, 0);
+
+    private final Path directory;
+    private final Map<String, ClientInfo> players;
+    private final BlockingQueue<Change> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private final CountDownLatch closed = new CountDownLatch(1);
+
+    // Owned by the writer thread
+    private long generation;
+    private FileChannel log;
+    private long logBytes;
+    private long snapshotBytes;
+    private long lastCompaction = System.currentTimeMillis();
+    private ByteBuffer batch = ByteBuffer.allocate(64 * 1024);
+    private final CRC32 crc = new CRC32();
+
+    // Metrics
+    private volatile long recordsWritten = 0;
+    private volatile long commits = 0;
+    private volatile long lastCommitMicros = 0;
+    private volatile long snapshots = 0;
+    private long loadedPlayers = 0;
+    private long restoredPlayers = 0;
+    private long replayedRecords = 0;
+    private long loadMillis = 0;
+
+    // Loads the players saved in the directory into the registry, then starts the writer
+    public PlayerStore(String directory, Map<String, ClientInfo> players) throws IOException {
+        this.directory = Paths.get(directory);
+        this.players = players;
+        Files.createDirectories(this.directory);
+
+        long start = System.nanoTime();
+        load();
+        loadMillis = (System.nanoTime() - start) / 1_000_000;
+        restoredPlayers = players.size();
+
+        writer = new Thread(this::write, "player-store");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Queues the player's current totals; called after they change
+    public void save(ClientInfo player) {
+        byte[] name = player.getUsername().getBytes(StandardCharsets.UTF_8);
+        if (name.length > MAX_NAME_BYTES) return;
+        queue.add(new Change(player.getUsername(), player.getWins(), player.getLoses()));
+    }
+
+    // Writes what is queued and stops the writer (the log is kept, it is replayed on startup)
+    public void close() {
+        queue.add(CLOSE);
+        try {
+            closed.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // ---------------------------------------------------------------- recovery
+
+    private Path snapshotFile(long generation) {
+        return directory.resolve("snapshot-" + generation);
+    }
+
+    private Path logFile(long generation) {
+        return directory.resolve("log-" + generation);
+    }
+
+    private void load() throws IOException {
+        // The newest complete snapshot decides the generation
+        generation = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "snapshot-*")) {
+            for (Path file : files) {
+                try {
+                    generation = Math.max(generation, Long.parseLong(file.getFileName().toString().substring(9)));
+                } catch (NumberFormatException e) {
+                    // Not ours
+                }
+            }
+        }
+
+        Path snapshot = snapshotFile(generation);
+        if (Files.exists(snapshot)) {
+            try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+                snapshotBytes = channel.size();
+                MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, snapshotBytes);
+                if (bytes.getInt() != MAGIC) throw new IOException("Not a player snapshot: " + snapshot);
+                long count = bytes.getLong();
+                for (long i = 0; i < count; i++) {
+                    if (!readRecord(bytes, true)) throw new IOException("Corrupt player snapshot: " + snapshot);
+                    loadedPlayers++;
+                }
+            }
+        }
+
+        Path logPath = logFile(generation);
+        log = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = log.size();
+        if (size > 0) {
+            MappedByteBuffer bytes = log.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            while (bytes.hasRemaining() && readRecord(bytes, false)) {
+                replayedRecords++;
+            }
+            logBytes = bytes.position();
+            if (logBytes < size) {
+                System.out.println("Player log ends with " + (size - logBytes) + " unreadable bytes, cutting them off");
+                log.truncate(logBytes);
+            }
+        }
+        log.position(logBytes);
+
+        // Older generations are already in the snapshot, and a temporary file is a snapshot
+        // that was not finished
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "snapshot-*.tmp")) {
+            for (Path file : files) Files.delete(file);
+        }
+        for (long older = generation - 1; older >= 0 && (Files.exists(snapshotFile(older)) || Files.exists(logFile(older))); older--) {
+            Files.deleteIfExists(snapshotFile(older));
+            Files.deleteIfExists(logFile(older));
+        }
+    }
+
+    // Applies one record; returns false (position unchanged) if it is incomplete or corrupt.
+    // A snapshot has each player once, so its records need no lookup.
+    private boolean readRecord(ByteBuffer bytes, boolean unique) {
+        int start = bytes.position();
+        if (bytes.remaining() < 6) return false;
+        int checksum = bytes.getInt();
+        int nameLength = bytes.getShort() & 0xFFFF;
+        if (bytes.remaining() < nameLength + 8) {
+            bytes.position(start);
+            return false;
+        }
+        crc.reset();
+        ByteBuffer body = bytes.duplicate();
+        body.position(start + 4).limit(start + 6 + nameLength + 8);
+        crc.update(body);
+        if ((int) crc.getValue() != checksum) {
+            bytes.position(start);
+            return false;
+        }
+
+        byte[] name = new byte[nameLength];
+        bytes.get(name);
+        int wins = bytes.getInt();
+        int loses = bytes.getInt();
+        String username = new String(name, StandardCharsets.UTF_8);
+        ClientInfo player = unique ? null : players.get(username);
+        if (player == null) {
+            player = new ClientInfo(username, null);
+            players.put(username, player);
+        }
+        player.restoreStats(wins, loses);
+        return true;
+    }
+
+    // ---------------------------------------------------------------- writing
+
+    private void writeRecord(String username, int wins, int loses) {
+        byte[] name = username.getBytes(StandardCharsets.UTF_8);
+        int length = 4 + 2 + name.length + 8;
+        if (batch.remaining() < length) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(2 * batch.capacity(), batch.position() + length));
+            batch.flip();
+            bigger.put(batch);
+            batch = bigger;
+        }
+        int start = batch.position();
+        batch.putInt(0);
+        batch.putShort((short) name.length);
+        batch.put(name);
+        batch.putInt(wins);
+        batch.putInt(loses);
+
+        crc.reset();
+        ByteBuffer body = batch.duplicate();
+        body.position(start + 4).limit(start + length);
+        crc.update(body);
+        batch.putInt(start, (int) crc.getValue());
+    }
+
+    private void write() {
+        List<Change> changes = new ArrayList<>();
+        boolean closing = false;
+        try {
+            while (!closing) {
+                Change first = queue.poll(1, TimeUnit.SECONDS);
+                if (first != null) {
+                    // Everything queued meanwhile goes in the same commit
+                    changes.add(first);
+                    queue.drainTo(changes);
+                    batch.clear();
+                    for (Change change : changes) {
+                        if (change == CLOSE) {
+                            closing = true;
+                        } else {
+                            writeRecord(change.name, change.wins, change.loses);
+                        }
+                    }
+                    int records = changes.size() - (closing ? 1 : 0);
+                    changes.clear();
+                    if (records > 0) commit(records);
+                }
+
+                boolean large = logBytes > Math.max(COMPACT_MIN_BYTES, snapshotBytes);
+                boolean due = logBytes > 0 && System.currentTimeMillis() - lastCompaction > COMPACT_INTERVAL_MILLIS;
+                if (large || due) compact();
+            }
+            log.close();
+        } catch (IOException e) {
+            System.out.println("Player store failed, stats are no longer saved: " + e.getMessage());
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            // Stopping
+        }
+        closed.countDown();
+    }
+
+    private void commit(int records) throws IOException {
+        long start = System.nanoTime();
+        batch.flip();
+        while (batch.hasRemaining()) {
+            logBytes += log.write(batch);
+        }
+        log.force(false);
+        lastCommitMicros = (System.nanoTime() - start) / 1000;
+        recordsWritten += records;
+        commits++;
+    }
+
+    // Snapshot of every player, then a new log. Runs on the writer thread, which has seen
+    // every change it logged, so the snapshot holds at least what the old log had.
+    private void compact() throws IOException {
+        long next = generation + 1;
+        Path temporary = directory.resolve("snapshot-" + next + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            batch.clear();
+            batch.putInt(MAGIC);
+            batch.putLong(0);
+            long count = 0;
+            for (ClientInfo player : players.values()) {
+                writeRecord(player.getUsername(), player.getWins(), player.getLoses());
+                count++;
+                if (batch.position() > 1024 * 1024) {
+                    batch.flip();
+                    while (batch.hasRemaining()) channel.write(batch);
+                    batch.clear();
+                }
+            }
+            batch.flip();
+            while (batch.hasRemaining()) channel.write(batch);
+            ByteBuffer header = ByteBuffer.allocate(12);
+            header.putInt(MAGIC).putLong(count).flip();
+            channel.write(header, 0);
+            channel.force(true);
+            snapshotBytes = channel.size();
+        }
+        Files.move(temporary, snapshotFile(next), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        log.close();
+        generation = next;
+        log = FileChannel.open(logFile(generation), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        logBytes = 0;
+        Files.deleteIfExists(snapshotFile(generation - 1));
+        Files.deleteIfExists(logFile(generation - 1));
+        lastCompaction = System.currentTimeMillis();
+        snapshots++;
+    }
+
+    public String getStats() {
+        return String.format("%d players loaded in %d ms (%d from the snapshot, %d log records), %d records in %d commits, last commit %d us, %d snapshots",
+                restoredPlayers, loadMillis, loadedPlayers, replayedRecords, recordsWritten, commits, lastCommitMicros, snapshots);
+    }
+
+    // java PlayerStore <directory> <players>: saves the stats of that many players (a few
+    // changes each, so part of them end up in the log), then times loading them back
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: java PlayerStore <directory> <players>");
+            return;
+        }
+        int count = Integer.parseInt(args[1]);
+        File directory = new File(args[0]);
+        if (directory.exists()) {
+            for (File file : directory.listFiles()) file.delete();
+        }
+
+        Map<String, ClientInfo> players = new java.util.concurrent.ConcurrentHashMap<>();
+        PlayerStore store = new PlayerStore(args[0], players);
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            ClientInfo player = new ClientInfo("player" + i, null);
+            players.put(player.getUsername(), player);
+            for (int game = 0; game <= i % 3; game++) {
+                if (game % 2 == 0) player.updateWins(); else player.updateLoses();
+                player.updateRank();
+                store.save(player);
+            }
+        }
+        store.close();
+        System.out.printf("Saved %d players in %.2f s: %s\n", count, (System.nanoTime() - start) / 1e9, store.getStats());
+
+        // A second store adds a log tail on top of the snapshot, then the third one loads both
+        store = new PlayerStore(args[0], new java.util.concurrent.ConcurrentHashMap<>());
+        for (int i = 0; i < count; i += 10) {
+            ClientInfo player = new ClientInfo("player" + i, null);
+            player.restoreStats(100, 0);
+            store.save(player);
+        }
+        store.close();
+
+        Map<String, ClientInfo> loaded = new java.util.concurrent.ConcurrentHashMap<>(2 * count);
+        store = new PlayerStore(args[0], loaded);
+        System.out.println("Loaded: " + store.getStats());
+        boolean ok = loaded.size() == count;
+        for (int i = 0; i < count && ok; i++) {
+            ClientInfo player = loaded.get("player" + i);
+            int wins = i % 10 == 0 ? 100 : (i % 3 + 2) / 2;
+            int loses = i % 10 == 0 ? 0 : (i % 3 + 1) / 2;
+            ok = player != null && player.getWins() == wins && player.getLoses() == loses;
+        }
+        System.out.println(ok ? "All players restored" : "WRONG");
+        store.close();
+    }
+}
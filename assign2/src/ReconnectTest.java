@@ -0,0 +1,122 @@
+import java.io.*;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import javax.net.ssl.*;
+
+/**
+ * Reconnect storm for TimeServer: every client logs in, quits and connects again, a
+ * number of rounds, all clients at the same time. It shows what TLS session resumption
+ * saves: with "reuse" (the default) each client keeps its SSLContext, as TimeClient does,
+ * and resumes its session; with "new" every connection gets a new SSLContext and a full
+ * handshake. Each client has its own SSLContext, like separate client processes, since
+ * a context keeps one session per server.
+ *
+ * The handshake times are measured here; "stats" on the server console shows the
+ * server's side (how many handshakes were resumed and how long each kind takes).
+ */
+public class ReconnectTest {
+    private static final String TRUSTSTORE_PATH = "../doc/file_trust.jks";
+    private static final String TRUSTSTORE_PASSWORD = "password";
+
+    private final String host;
+    private final int port;
+    private final boolean reuse;
+    private final TrustManager[] trustManagers;
+    private final String tag = Long.toString(System.currentTimeMillis() % 100000);
+
+    private final LongAdder full = new LongAdder();
+    private final LongAdder resumed = new LongAdder();
+    private final LongAdder fullMicros = new LongAdder();
+    private final LongAdder resumedMicros = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    public ReconnectTest(String host, int port, boolean reuse) throws Exception {
+        this.host = host;
+        this.port = port;
+        this.reuse = reuse;
+
+        KeyStore trustStore = KeyStore.getInstance("JKS");
+        try (FileInputStream file = new FileInputStream(TRUSTSTORE_PATH)) {
+            trustStore.load(file, TRUSTSTORE_PASSWORD.toCharArray());
+        }
+        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(trustStore);
+        this.trustManagers = trustManagerFactory.getTrustManagers();
+    }
+
+    private SSLSocketFactory newFactory() throws Exception {
+        return TlsProfile.current().createClientContext(trustManagers).getSocketFactory();
+    }
+
+    // One connection: handshake, log in, quit
+    private void connect(SSLSocketFactory factory, String username) {
+        try {
+            try (SSLSocket socket = (SSLSocket) factory.createSocket(host, port)) {
+                TlsProfile.current().configure(socket);
+                long startNanos = System.nanoTime();
+                long startMillis = System.currentTimeMillis();
+                socket.startHandshake();
+                long micros = (System.nanoTime() - startNanos) / 1000;
+                if (socket.getSession().getCreationTime() < startMillis) {
+                    resumed.increment();
+                    resumedMicros.add(micros);
+                } else {
+                    full.increment();
+                    fullMicros.add(micros);
+                }
+
+                OutputStream output = socket.getOutputStream();
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()), 256);
+                output.write((username + "\nQ\n").getBytes());
+                String line;
+                while ((line = reader.readLine()) != null && !line.equals("Good bye!")) {
+                    // Menu
+                }
+                if (line == null) throw new EOFException();
+            }
+        } catch (Exception e) {
+            failures.increment();
+        }
+    }
+
+    public void run(int clients, int rounds) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(clients, 256));
+        SSLSocketFactory[] factories = new SSLSocketFactory[clients];
+        for (int i = 0; i < clients; i++) factories[i] = newFactory();
+        long start = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            List<Future<?>> running = new ArrayList<>(clients);
+            for (int i = 0; i < clients; i++) {
+                String username = "reconnect-" + tag + "-" + i;
+                SSLSocketFactory factory = reuse ? factories[i] : newFactory();
+                running.add(executor.submit(() -> connect(factory, username)));
+            }
+            for (Future<?> client : running) client.get();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        executor.shutdown();
+
+        long fullCount = full.sum();
+        long resumedCount = resumed.sum();
+        System.out.printf("%d connections in %.2f s (%.0f per second), %s\n", fullCount + resumedCount, seconds,
+                (fullCount + resumedCount) / seconds, reuse ? "SSLContext kept by each client" : "new SSLContext per connection");
+        System.out.printf("Full handshakes: %d, %.2f ms average\n", fullCount,
+                fullCount == 0 ? 0.0 : fullMicros.sum() / 1000.0 / fullCount);
+        System.out.printf("Resumed handshakes: %d, %.2f ms average\n", resumedCount,
+                resumedCount == 0 ? 0.0 : resumedMicros.sum() / 1000.0 / resumedCount);
+        System.out.println("Failed connections: " + failures.sum());
+    }
+
+    // java ReconnectTest <host> <port> <clients> <rounds> [reuse|new]
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.out.println("Usage: java ReconnectTest <host> <port> <clients> <rounds> [reuse|new]");
+            return;
+        }
+        boolean reuse = args.length < 5 || !args[4].equals("new");
+        new ReconnectTest(args[0], Integer.parseInt(args[1]), reuse).run(Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+    }
+}
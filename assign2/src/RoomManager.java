@@ -0,0 +1,216 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs any number of games at the same time. Players wait in the simple or the ranked
+ * queue and get a room (a Game) of their own when they are matched; every player knows
+ * its game through ClientInfo.getGame(). Simple games take the first four players in
+ * order, ranked games are formed by the Matchmaker from players of similar rating.
+ *
+ * The simple queue takes no lock. A player is added to the queue before being counted in
+ * simpleWaiting, and a thread may only take players out after claiming four of them by
+ * lowering the count, so the four players it then polls are always there and each player
+ * is handed to exactly one game. The ranked queue needs its players in rating order and
+ * is kept under rankedLock.
+ *
+ * Also counts the rooms in play and the matches finished, overall and in the last minute,
+ * and keeps how long players of each mode waited to be matched.
+ */
+public class RoomManager {
+    public static final int PLAYERS_PER_GAME = 4;
+    // Matches per second are averaged over this many seconds
+    private static final int RATE_WINDOW = 60;
+
+    private final ConcurrentLinkedQueue<ClientInfo> searchSimple = new ConcurrentLinkedQueue<>();
+    // Players in searchSimple not yet claimed by a game
+    private final AtomicInteger simpleWaiting = new AtomicInteger();
+    private final Matchmaker searchRanked = new Matchmaker();
+    private final Lock rankedLock = new ReentrantLock(); // Lock for searchRanked
+    // Retries ranked players as their rating gap widens
+    private final ScheduledExecutorService widener = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "matchmaker");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Set<Game> rooms = ConcurrentHashMap.newKeySet();
+    private final AtomicLong matchesStarted = new AtomicLong();
+    private final AtomicLong matchesFinished = new AtomicLong();
+    private final Metrics.Histogram simpleMatchWait = new Metrics.Histogram();
+    private final Metrics.Histogram rankedMatchWait = new Metrics.Histogram();
+
+    // Matches finished in each of the last seconds, indexed by second % RATE_WINDOW
+    private final long[] finishedIn = new long[RATE_WINDOW];
+    private final long[] secondOf = new long[RATE_WINDOW];
+    private final Lock rateLock = new ReentrantLock();
+
+    public RoomManager() {
+        widener.scheduleWithFixedDelay(this::widen, 1, 1, TimeUnit.SECONDS);
+    }
+
+    // Queues the player; returns the new game if the player completed one
+    public Game join(ClientInfo player, boolean ranked) {
+        player.updateSearching();
+        if (!ranked) return joinSimple(player);
+
+        List<ClientInfo> players;
+        rankedLock.lock();
+        try {
+            players = searchRanked.enqueue(player, System.currentTimeMillis());
+        } finally {
+            rankedLock.unlock();
+        }
+        return players == null ? null : open(players, true);
+    }
+
+    private Game joinSimple(ClientInfo player) {
+        searchSimple.add(player);
+        int waiting = simpleWaiting.incrementAndGet();
+        // Whoever claims four waiting players starts their game
+        while (waiting >= PLAYERS_PER_GAME) {
+            if (simpleWaiting.compareAndSet(waiting, waiting - PLAYERS_PER_GAME)) {
+                List<ClientInfo> players = new ArrayList<>(PLAYERS_PER_GAME);
+                for (int i = 0; i < PLAYERS_PER_GAME; i++) {
+                    players.add(searchSimple.poll());
+                }
+                return open(players, false);
+            }
+            waiting = simpleWaiting.get();
+        }
+        return null;
+    }
+
+    private void widen() {
+        List<List<ClientInfo>> formed;
+        rankedLock.lock();
+        try {
+            formed = searchRanked.widen(System.currentTimeMillis());
+        } finally {
+            rankedLock.unlock();
+        }
+        for (List<ClientInfo> players : formed) {
+            open(players, true);
+        }
+    }
+
+    // Each game gets its own list: Game reorders it when forming the teams
+    private Game open(List<ClientInfo> players, boolean ranked) {
+        Game game = new Game(players, ranked);
+        for (ClientInfo p : players) {
+            p.setGame(game);
+        }
+        rooms.add(game);
+        matchesStarted.incrementAndGet();
+        long now = System.nanoTime();
+        Metrics.Histogram wait = ranked ? rankedMatchWait : simpleMatchWait;
+        for (ClientInfo p : players) {
+            wait.record((now - p.getSearchingSince()) / 1000);
+        }
+        game.start();
+        return game;
+    }
+
+    public boolean isSearching(ClientInfo player, boolean ranked) {
+        if (!ranked) return searchSimple.contains(player);
+        rankedLock.lock();
+        try {
+            return searchRanked.contains(player);
+        } finally {
+            rankedLock.unlock();
+        }
+    }
+
+    // Closes the room of a game that has a winner
+    public void finish(Game game) {
+        if (!rooms.remove(game)) return;
+        for (ClientInfo p : game.players) {
+            p.setGame(null);
+        }
+        matchesFinished.incrementAndGet();
+
+        long second = System.currentTimeMillis() / 1000;
+        int slot = (int) (second % RATE_WINDOW);
+        rateLock.lock();
+        try {
+            if (secondOf[slot] != second) {
+                secondOf[slot] = second;
+                finishedIn[slot] = 0;
+            }
+            finishedIn[slot]++;
+        } finally {
+            rateLock.unlock();
+        }
+    }
+
+    public int getRoomCount() {
+        return rooms.size();
+    }
+
+    public long getMatchesStarted() {
+        return matchesStarted.get();
+    }
+
+    public long getMatchesFinished() {
+        return matchesFinished.get();
+    }
+
+    // Matches finished per second over the last RATE_WINDOW seconds
+    public double getMatchesPerSecond() {
+        long now = System.currentTimeMillis() / 1000;
+        long finished = 0;
+        rateLock.lock();
+        try {
+            for (int i = 0; i < RATE_WINDOW; i++) {
+                if (now - secondOf[i] < RATE_WINDOW) finished += finishedIn[i];
+            }
+        } finally {
+            rateLock.unlock();
+        }
+        return finished / (double) RATE_WINDOW;
+    }
+
+    // Ranked queue: players waiting, time to match and rating spread of the matches formed
+    public String getRankedStats() {
+        rankedLock.lock();
+        try {
+            return String.format("%d waiting, %d matched, wait %.1f s average and %.1f s longest, rating spread %.1f average and %d largest",
+                    searchRanked.size(), searchRanked.getMatches(), searchRanked.getAverageWaitMillis() / 1000,
+                    searchRanked.getMaxWaitMillis() / 1000.0, searchRanked.getAverageSpread(), searchRanked.getMaxSpread());
+        } finally {
+            rankedLock.unlock();
+        }
+    }
+
+    public int getSimpleWaiting() {
+        return simpleWaiting.get();
+    }
+
+    public int getRankedWaiting() {
+        rankedLock.lock();
+        try {
+            return searchRanked.size();
+        } finally {
+            rankedLock.unlock();
+        }
+    }
+
+    // Time from joining a queue to getting a game, in microseconds
+    public Metrics.Histogram getMatchWait(boolean ranked) {
+        return ranked ? rankedMatchWait : simpleMatchWait;
+    }
+
+    public Set<Game> getRooms() {
+        return Collections.unmodifiableSet(rooms);
+    }
+}
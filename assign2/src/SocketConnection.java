@@ -0,0 +1,126 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ClientConnection over a blocking socket, used when each client has its own thread.
+ *
+ * send() only queues the message. Whenever the queue goes from empty to non-empty, a
+ * writer task on the given executor takes everything queued and writes it with one write and
+ * one flush, so a turn is never held up by a slow player's socket and a burst of lines
+ * goes out as one TLS record. Only one writer task runs per connection at a time, so
+ * writes need no lock (and do not pin virtual threads).
+ *
+ * A writer blocked on a slow socket holds its thread, so in "virtual" mode the writers are
+ * virtual threads too; only a thread-per-client server gives them platform threads.
+ */
+public class SocketConnection implements ClientConnection {
+    private final Socket socket;
+    private final Executor writers;
+    private final OutputStream output;
+    private final Queue<Message> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queuedBytes = new AtomicInteger();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final CountDownLatch closed = new CountDownLatch(1);
+    private volatile boolean closing = false;
+    private boolean binary = false; // Owned by the writer task
+
+    public SocketConnection(Socket socket, Executor writers) throws IOException {
+        this.socket = socket;
+        this.writers = writers;
+        this.output = socket.getOutputStream();
+    }
+
+    @Override
+    public void send(Message message) {
+        if (closed.getCount() == 0) return;
+        if (queuedBytes.addAndGet(message.length()) > MAX_QUEUED_BYTES) {
+            if (!socket.isClosed()) System.out.println("Dropping slow client " + socket.getRemoteSocketAddress());
+            abort();
+            return;
+        }
+        queue.add(message);
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) writers.execute(this::drain);
+    }
+
+    // Writes everything queued, until the queue stays empty
+    private void drain() {
+        List<Message> batch = new ArrayList<>();
+        do {
+            Message message;
+            int length = 0;
+            int queued = 0;
+            while ((message = queue.poll()) != null) {
+                queued += message.length();
+                if (message == Message.BINARY) {
+                    binary = true;
+                    continue;
+                }
+                Message encoded = binary ? message.frame() : message;
+                batch.add(encoded);
+                length += encoded.length();
+            }
+            if (length > 0) {
+                byte[] bytes = new byte[length];
+                int at = 0;
+                for (Message m : batch) {
+                    System.arraycopy(m.bytes(), 0, bytes, at, m.length());
+                    at += m.length();
+                }
+                batch.clear();
+                try {
+                    output.write(bytes);
+                    output.flush();
+                } catch (IOException e) {
+                    // The reading side notices the broken connection
+                    abort();
+                    return;
+                }
+            }
+            queuedBytes.addAndGet(-queued);
+            if (closing) {
+                abort();
+                return;
+            }
+            scheduled.set(false);
+            // Something sent (or close() called) since the last poll runs this again
+        } while ((!queue.isEmpty() || closing) && scheduled.compareAndSet(false, true));
+    }
+
+    // Sends what is queued and closes. Waits (up to a second) for that to finish, so
+    // "exit" can notify every client before stopping.
+    @Override
+    public void close() {
+        closing = true;
+        schedule();
+        try {
+            closed.await(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Closes the socket without writing anything else
+    private void abort() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already gone
+        }
+        queue.clear();
+        closed.countDown();
+    }
+}
@@ -0,0 +1,504 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * TLS server on non-blocking channels: a few I/O threads, each with its own Selector,
+ * serve every client instead of one thread per client.
+ *
+ * The accepting thread hands new channels to the I/O loops in turn. Each connection has an
+ * SSLEngine; the direct buffers for the encrypted bytes in both directions and for the
+ * decrypted input belong to its loop, whose thread is the only one that uses them, and are
+ * lent to one connection at a time. What a connection leaves in them (part of a TLS record
+ * read, or output the socket did not take) is kept in a small heap buffer of its own until
+ * the next time, so an idle connection holds no buffer at all. An InputDecoder cuts the decrypted bytes into lines (or frames of the
+ * binary protocol) and passes them to the connection's LineHandler on its I/O thread, as
+ * ClientHandler would have read them. send() can be called from any thread: the message
+ * is queued and the connection's loop is woken up to encrypt and write it, in the
+ * protocol the client uses at that point of the queue. Everything queued is encrypted together, up to a
+ * full TLS record, and written at once; a client with more than MAX_QUEUED_BYTES waiting
+ * is dropped. Engines allow what the TlsProfile allows, and every handshake is counted in
+ * HandshakeStats.
+ */
+public class SslEventLoop {
+    // Longest line accepted from a client
+    public static final int MAX_LINE = 64 * 1024;
+
+    // Receives the lines (or frames) of one connection, on its I/O thread
+    public interface LineHandler {
+        // Returns false when the connection should be closed after this line
+        boolean onLine(String line);
+
+        // True once the client switched to the binary protocol; asked after every line
+        default boolean isBinary() {
+            return false;
+        }
+
+        // One frame of the binary protocol, from its opcode to the buffer's limit. The
+        // buffer is only valid during the call. Returns false to close the connection.
+        default boolean onFrame(ByteBuffer frame) {
+            return false;
+        }
+
+        void onClose();
+    }
+
+    public interface HandlerFactory {
+        LineHandler create(ClientConnection connection);
+    }
+
+    private final SSLContext context;
+    private final TlsProfile profile;
+    private final HandshakeStats handshakes;
+    private final HandlerFactory factory;
+    private final ServerSocketChannel server;
+    private final Loop[] loops;
+    private volatile boolean running = true;
+
+    public SslEventLoop(SSLContext context, TlsProfile profile, HandshakeStats handshakes, int port, int ioThreads,
+                        HandlerFactory factory) throws IOException {
+        if (ioThreads <= 0) ioThreads = Runtime.getRuntime().availableProcessors();
+        this.context = context;
+        this.profile = profile;
+        this.handshakes = handshakes;
+        this.factory = factory;
+        this.server = ServerSocketChannel.open();
+        this.server.bind(new InetSocketAddress(port), 1024);
+        this.loops = new Loop[ioThreads];
+        for (int i = 0; i < ioThreads; i++) loops[i] = new Loop(i);
+    }
+
+    public int getIoThreads() {
+        return loops.length;
+    }
+
+    // Accepts connections in the calling thread until close() is called
+    public void run() throws IOException {
+        for (Loop loop : loops) loop.thread.start();
+        int next = 0;
+        try {
+            while (running) {
+                SocketChannel channel = server.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                Loop loop = loops[next++ % loops.length];
+                loop.execute(() -> loop.register(channel));
+            }
+        } catch (IOException e) {
+            if (running) throw e;
+        }
+    }
+
+    public void close() throws IOException {
+        running = false;
+        server.close();
+        for (Loop loop : loops) loop.selector.wakeup();
+    }
+
+    // ---------------------------------------------------------------- I/O threads
+
+    private final class Loop implements Runnable {
+        final Selector selector;
+        final Thread thread;
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // Lent to the connection being processed; replaced when one of them has to grow
+        ByteBuffer netIn, netOut, appIn;
+
+        Loop(int index) throws IOException {
+            SSLSession session = context.createSSLEngine().getSession();
+            netIn = ByteBuffer.allocateDirect(session.getPacketBufferSize());
+            netOut = ByteBuffer.allocateDirect(session.getPacketBufferSize());
+            appIn = ByteBuffer.allocateDirect(session.getApplicationBufferSize());
+            selector = Selector.open();
+            thread = new Thread(this, "io-" + index);
+            thread.setDaemon(true);
+        }
+
+        // Runs the task on this loop's thread
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void register(SocketChannel channel) {
+            try {
+                SSLEngine engine = context.createSSLEngine();
+                engine.setUseClientMode(false);
+                profile.configure(engine);
+                SslConnection connection = new SslConnection(this, channel, engine, handshakes);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                connection.handler = factory.create(connection);
+                connection.decoder = new InputDecoder(connection.handler);
+                engine.beginHandshake();
+            } catch (IOException | RuntimeException | OutOfMemoryError e) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // Already gone
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    System.out.println("Selector failed: " + e.getMessage());
+                    return;
+                }
+
+                // A failing task or connection must not stop the loop and its other connections
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException | OutOfMemoryError e) {
+                        System.out.println("I/O task failed: " + e);
+                    }
+                }
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    SslConnection connection = (SslConnection)key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) connection.onReadable();
+                        if (key.isValid() && key.isWritable()) connection.process();
+                    } catch (IOException | RuntimeException | OutOfMemoryError e) {
+                        connection.abort();
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------- connections
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    // Most queued messages encrypted by one wrap
+    private static final int GATHER = 16;
+
+    private static final class SslConnection implements ClientConnection {
+        final Loop loop;
+        final SocketChannel channel;
+        final SSLEngine engine;
+        SelectionKey key;
+        LineHandler handler;
+        InputDecoder decoder;
+
+        // Encrypted input and output, and decrypted input: the loop's buffers, set only while
+        // the connection is processed (all in fill mode)
+        ByteBuffer netIn, netOut, appIn;
+        // Encrypted input and output left over from the last time, null when there is none
+        ByteBuffer inCarry, outCarry;
+        final Queue<Message> outbox = new ConcurrentLinkedQueue<>();
+        // Taken from the outbox by the loop, encoded for the client's protocol at that
+        // point, with the messages they came from
+        final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+        final ArrayDeque<Message> pendingMessages = new ArrayDeque<>();
+        boolean binary = false;
+        final AtomicInteger queuedBytes = new AtomicInteger();
+        final AtomicBoolean scheduled = new AtomicBoolean(false);
+        final AtomicBoolean dropped = new AtomicBoolean(false);
+        final ByteBuffer[] gathered = new ByteBuffer[GATHER];
+
+        final CountDownLatch done = new CountDownLatch(1);
+
+        boolean closing = false;
+        boolean closed = false;
+        final HandshakeStats handshakes;
+        final long handshakeNanos = System.nanoTime();
+        final long handshakeMillis = System.currentTimeMillis();
+        boolean handshaken = false;
+
+        SslConnection(Loop loop, SocketChannel channel, SSLEngine engine, HandshakeStats handshakes) {
+            this.loop = loop;
+            this.handshakes = handshakes;
+            this.channel = channel;
+            this.engine = engine;
+        }
+
+        @Override
+        public void send(Message message) {
+            if (dropped.get()) return;
+            if (queuedBytes.addAndGet(message.length()) > MAX_QUEUED_BYTES) {
+                if (dropped.compareAndSet(false, true)) {
+                    System.out.println("Dropping slow client " + channel.socket().getRemoteSocketAddress());
+                    loop.execute(this::abort);
+                }
+                return;
+            }
+            outbox.add(message);
+            schedule();
+        }
+
+        // Sends what is queued and close_notify, then closes. Other threads wait (up to a
+        // second) for that to finish, so "exit" can notify every client before stopping.
+        @Override
+        public void close() {
+            loop.execute(() -> {
+                closing = true;
+                processSafely();
+            });
+            if (Thread.currentThread() != loop.thread) {
+                try {
+                    done.await(1, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        // Wakes the loop once for any number of println calls
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                loop.execute(() -> {
+                    scheduled.set(false);
+                    processSafely();
+                });
+            }
+        }
+
+        private void processSafely() {
+            try {
+                process();
+            } catch (IOException | RuntimeException | OutOfMemoryError e) {
+                abort();
+            }
+        }
+
+        void onReadable() throws IOException {
+            if (closed) return;
+            attach();
+            try {
+                int read = channel.read(netIn);
+                if (read < 0) {
+                    try {
+                        engine.closeInbound();
+                    } catch (SSLException e) {
+                        // Peer closed without close_notify
+                    }
+                    abort();
+                    return;
+                }
+                advance();
+            } finally {
+                detach();
+            }
+        }
+
+        void process() throws IOException {
+            if (closed) return;
+            attach();
+            try {
+                advance();
+            } finally {
+                detach();
+            }
+        }
+
+        // Borrows the loop's buffers, with what was left in them last time
+        private void attach() {
+            netIn = restore(loop.netIn, inCarry);
+            netOut = restore(loop.netOut, outCarry);
+            appIn = loop.appIn;
+            appIn.clear();
+            inCarry = null;
+            outCarry = null;
+        }
+
+        // Gives the buffers back (grown ones replace the loop's) and keeps what is left
+        private void detach() {
+            loop.netIn = netIn;
+            loop.netOut = netOut;
+            loop.appIn = appIn;
+            if (!closed) {
+                inCarry = carry(netIn);
+                outCarry = carry(netOut);
+            }
+            netIn = netOut = appIn = null;
+        }
+
+        private static ByteBuffer restore(ByteBuffer buffer, ByteBuffer carry) {
+            buffer.clear();
+            if (carry != null) {
+                carry.flip();
+                buffer.put(carry);
+            }
+            return buffer;
+        }
+
+        private static ByteBuffer carry(ByteBuffer buffer) {
+            if (buffer.position() == 0) return null;
+            buffer.flip();
+            ByteBuffer carry = ByteBuffer.allocate(buffer.remaining());
+            carry.put(buffer);
+            return carry;
+        }
+
+        // Advances the handshake, decrypts what was read, encrypts what is queued and writes
+        private void advance() throws IOException {
+            boolean progress = true;
+            while (progress && !closed) {
+                progress = false;
+                switch (engine.getHandshakeStatus()) {
+                    case NEED_TASK:
+                        Runnable task;
+                        while ((task = engine.getDelegatedTask()) != null) task.run();
+                        progress = true;
+                        break;
+                    case NEED_WRAP:
+                        progress = wrap();
+                        break;
+                    case NEED_UNWRAP:
+                    case NEED_UNWRAP_AGAIN:
+                        progress = unwrap();
+                        break;
+                    default:
+                        progress = unwrap() | wrap();
+                        if (!progress && closing && outbox.isEmpty() && pending.isEmpty() && !engine.isOutboundDone()) {
+                            engine.closeOutbound();
+                            progress = true;
+                        }
+                }
+            }
+            if (closed) return;
+            writeOut();
+
+            if (engine.isOutboundDone() && netOut.position() == 0) abort();
+        }
+
+        private boolean unwrap() throws IOException {
+            if (netIn.position() == 0) return false;
+            netIn.flip();
+            SSLEngineResult result = engine.unwrap(netIn, appIn);
+            netIn.compact();
+            checkHandshake(result);
+
+            switch (result.getStatus()) {
+                case BUFFER_OVERFLOW:
+                    if (appIn.position() == 0) appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+                    deliver();
+                    return true;
+                case BUFFER_UNDERFLOW:
+                    if (netIn.position() == netIn.capacity()) netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+                    return false;
+                case CLOSED:
+                    closing = true;
+                    deliver();
+                    return result.bytesConsumed() > 0;
+                default:
+                    deliver();
+                    return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+            }
+        }
+
+        private boolean wrap() throws IOException {
+            if (engine.isOutboundDone()) return false;
+            if (netOut.remaining() < engine.getSession().getPacketBufferSize()) {
+                writeOut();
+                if (netOut.remaining() < engine.getSession().getPacketBufferSize()) return false;
+            }
+
+            // Application data only once the handshake is done
+            boolean handshaking = engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING;
+            int count = 0;
+            if (!handshaking) {
+                Message message;
+                while (pending.size() < GATHER && (message = outbox.poll()) != null) {
+                    if (message == Message.BINARY) {
+                        binary = true;
+                        continue;
+                    }
+                    pending.add(binary ? message.frame().buffer() : message.buffer());
+                    pendingMessages.add(message);
+                }
+                for (ByteBuffer queued : pending) {
+                    gathered[count++] = queued;
+                    if (count == GATHER) break;
+                }
+            }
+            if (count == 0 && !handshaking && !closing) return false;
+
+            SSLEngineResult result = count == 0 ? engine.wrap(EMPTY, netOut) : engine.wrap(gathered, 0, count, netOut);
+            for (int i = 0; i < count && !gathered[i].hasRemaining(); i++) {
+                pending.poll();
+                queuedBytes.addAndGet(-pendingMessages.poll().length());
+            }
+            java.util.Arrays.fill(gathered, 0, count, null);
+            checkHandshake(result);
+
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                netOut = grow(netOut, engine.getSession().getPacketBufferSize());
+                return true;
+            }
+            return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+        }
+
+        private void checkHandshake(SSLEngineResult result) {
+            if (!handshaken && result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) {
+                handshaken = true;
+                handshakes.record(engine.getSession(), handshakeNanos, handshakeMillis);
+            }
+        }
+
+        // Writes as much encrypted output as the socket takes, and asks for OP_WRITE if
+        // some is left
+        private void writeOut() throws IOException {
+            netOut.flip();
+            channel.write(netOut);
+            netOut.compact();
+            if (key.isValid()) {
+                int ops = SelectionKey.OP_READ;
+                if (netOut.position() > 0) ops |= SelectionKey.OP_WRITE;
+                if (key.interestOps() != ops) key.interestOps(ops);
+            }
+        }
+
+        // Hands the decrypted bytes to the decoder
+        private void deliver() {
+            appIn.flip();
+            if (!closing && !closed && !decoder.feed(appIn)) closing = true;
+            appIn.clear();
+        }
+
+        private static ByteBuffer grow(ByteBuffer buffer, int size) {
+            ByteBuffer bigger = ByteBuffer.allocateDirect(Math.max(size, buffer.capacity() * 2));
+            buffer.flip();
+            bigger.put(buffer);
+            return bigger;
+        }
+
+        // Closes the channel without waiting for anything else
+        void abort() {
+            if (closed) return;
+            closed = true;
+            if (!handshaken) handshakes.failed();
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Already gone
+            }
+            done.countDown();
+            if (handler != null) handler.onClose();
+        }
+    }
+}
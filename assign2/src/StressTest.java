@@ -0,0 +1,137 @@
+import java.io.*;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.*;
+
+/**
+ * Stress test for the client registry and the simple queue: many clients connect, then
+ * all send their username at the same moment and join a simple game right away.
+ *
+ * Some usernames are sent by two connections at once, and exactly one of them must be
+ * let in. Every client that is let in must get a game, as the number of clients is made a
+ * multiple of four, and no client may be told twice that a game starts. The clients
+ * never play, so the server ends with clients / 4 rooms ("stats" on its console).
+ */
+public class StressTest {
+    private static final String TRUSTSTORE_PATH = "../doc/file_trust.jks";
+    private static final String TRUSTSTORE_PASSWORD = "password";
+    private static final int TIMEOUT_SECONDS = 120;
+
+    private final String host;
+    private final int port;
+    private final SSLSocketFactory factory;
+
+    private final Map<String, AtomicInteger> welcomed = new ConcurrentHashMap<>();
+    private final AtomicInteger refused = new AtomicInteger();
+    private final AtomicInteger started = new AtomicInteger();
+    private final AtomicInteger startedTwice = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    public StressTest(String host, int port) throws Exception {
+        this.host = host;
+        this.port = port;
+
+        KeyStore trustStore = KeyStore.getInstance("JKS");
+        try (FileInputStream file = new FileInputStream(TRUSTSTORE_PATH)) {
+            trustStore.load(file, TRUSTSTORE_PASSWORD.toCharArray());
+        }
+        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(trustStore);
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(null, trustManagerFactory.getTrustManagers(), null);
+        this.factory = sslContext.getSocketFactory();
+    }
+
+    // Logs in when go opens and joins a simple game if let in. The socket stays open until
+    // every client is done, otherwise a duplicate could log in after the first one left.
+    private void client(SSLSocket socket, String username, CountDownLatch go) {
+        try {
+            socket.setSoTimeout(TIMEOUT_SECONDS * 1000);
+            OutputStream output = socket.getOutputStream();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()), 256);
+            go.await();
+            output.write((username + "\n").getBytes());
+
+            String line = reader.readLine();
+            if (line == null) throw new EOFException();
+            if (line.startsWith("This player is already connected")) {
+                refused.incrementAndGet();
+                return;
+            }
+            welcomed.computeIfAbsent(username, k -> new AtomicInteger()).incrementAndGet();
+            for (int i = 0; i < 4; i++) reader.readLine();
+
+            output.write("S\n".getBytes());
+            boolean inGame = false;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("Starting a")) {
+                    if (inGame) startedTwice.incrementAndGet();
+                    inGame = true;
+                    started.incrementAndGet();
+                } else if (line.startsWith("You are in team")) {
+                    return;
+                }
+            }
+            throw new EOFException();
+        } catch (IOException | InterruptedException e) {
+            failed.incrementAndGet();
+        }
+    }
+
+    public void run(int clients, int duplicates) throws Exception {
+        String tag = Long.toString(System.currentTimeMillis() % 100000);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        CountDownLatch go = new CountDownLatch(1);
+        List<Future<?>> running = new ArrayList<>();
+        List<SSLSocket> sockets = new ArrayList<>();
+
+        // Connect (and finish the TLS handshakes) first, so the logins really are concurrent
+        long start = System.nanoTime();
+        for (int i = 0; i < clients + duplicates; i++) {
+            String username = "stress-" + tag + "-" + (i < clients ? i : i - clients);
+            SSLSocket socket = (SSLSocket) factory.createSocket(host, port);
+            socket.startHandshake();
+            sockets.add(socket);
+            running.add(executor.submit(() -> client(socket, username, go)));
+        }
+        System.out.printf("%d connections in %.1f s\n", clients + duplicates, (System.nanoTime() - start) / 1e9);
+
+        start = System.nanoTime();
+        go.countDown();
+        for (Future<?> client : running) client.get();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        for (SSLSocket socket : sockets) socket.close();
+        executor.shutdown();
+
+        int loggedIn = 0;
+        int welcomedTwice = 0;
+        for (AtomicInteger count : welcomed.values()) {
+            loggedIn += count.get();
+            if (count.get() > 1) welcomedTwice++;
+        }
+        boolean ok = loggedIn == clients && refused.get() == duplicates && welcomedTwice == 0
+                && started.get() == clients && startedTwice.get() == 0 && failed.get() == 0;
+
+        System.out.printf("%d logins and queue joins in %.2f s (%.0f per second)\n", loggedIn, seconds, loggedIn / seconds);
+        System.out.println("Refused duplicate logins: " + refused.get() + " of " + duplicates);
+        System.out.println("Usernames let in twice: " + welcomedTwice);
+        System.out.println("Clients given a game: " + started.get() + " of " + clients + ", twice: " + startedTwice.get());
+        System.out.println("Failed clients: " + failed.get());
+        System.out.println(ok ? "OK, the server should have " + clients / 4 + " more rooms" : "FAILED");
+    }
+
+    // java StressTest <host> <port> <clients> [duplicate logins]
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.out.println("Usage: java StressTest <host> <port> <clients> [duplicate logins]");
+            return;
+        }
+        int clients = Integer.parseInt(args[2]) / 4 * 4;
+        int duplicates = args.length > 3 ? Math.min(clients, Integer.parseInt(args[3])) : clients / 10;
+        new StressTest(args[0], Integer.parseInt(args[1])).run(clients, duplicates);
+    }
+}
@@ -1,6 +1,10 @@
 import java.net.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Scanner;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import javax.net.ssl.*;
 import java.security.KeyStore;
 
@@ -8,18 +12,36 @@ import java.security.KeyStore;
  * This program demonstrates a simple TCP/IP socket client.
  */
 public class TimeClient {
-    private static final String KEYSTORE_PATH = "../doc/file_key.jks";
-    private static final String KEYSTORE_PASSWORD = "server_password";
     private static final String TRUSTSTORE_PATH = "../doc/file_trust.jks";
     private static final String TRUSTSTORE_PASSWORD = "password";
-    private static final String KEY_ALIAS = "client_alias";
-    private static final String KEY_PASSWORD = "client_password";
-
+    // Attempts to connect again after the connection is lost, one second apart
+    private static final int RECONNECT_ATTEMPTS = 5;
+    // How long what the user types waits for the answer to the binary protocol offer
+    private static final int NEGOTIATION_SECONDS = 5;
+    // What a server answers to a line it does not know, such as an offer it does not speak
+    private static final String NOT_AN_OPTION = "Thats not an option";
+
+    private static SSLSocketFactory factory;
+    private static volatile PrintWriter writer;
+    private static volatile OutputStream output;
+
+    // With "binary" the client asks for the binary protocol (BinaryProtocol) after its
+    // username, and turns what the user types into frames and the frames it gets into text
+    private static boolean binary;
+    // Opened when the server answered the offer, framed if it agreed; a server that answers
+    // something else (or nothing) leaves the client in text mode
+    private static volatile CountDownLatch negotiated = new CountDownLatch(0);
+    private static volatile boolean framed;
+    // The username was taken, the next line typed is another one (and the offer is made again)
+    private static volatile boolean loginRefused;
+
+    // java TimeClient <host> <port> [binary]
     public static void main(String[] args) {
         if (args.length < 2) return;
 
         String hostname = args[0];
         int port = Integer.parseInt(args[1]);
+        binary = args.length > 2 && args[2].equals("binary");
 
         Scanner scanner = new Scanner(System.in);
 
@@ -36,77 +58,195 @@ public class TimeClient {
                 } else {
                     System.out.println("Bash script execution failed for client " + clientIndex);
                 }
+            } catch (IOException | InterruptedException ex) {
+                System.out.println("Could not run the Bash script for client " + clientIndex);
             }
+        }
 
         try {
-            // Generate the client's self-signed certificate
-    
-            
+            // The SSLContext is created once: connecting again with it resumes the TLS
+            // session instead of doing a full handshake
             KeyStore trustStore = KeyStore.getInstance("JKS");
             FileInputStream file1 = new FileInputStream(TRUSTSTORE_PATH);
             trustStore.load(file1, TRUSTSTORE_PASSWORD.toCharArray());
 
-            KeyStore keyStore = KeyStore.getInstance("JKS");
-            FileInputStream file2 = new FileInputStream(KEYSTORE_PATH);
-            keyStore.load(file2, KEYSTORE_PASSWORD.toCharArray());
-
             TrustManagerFactory  trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
             trustManagerFactory.init(trustStore);
 
-            KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
-            keyManagerFactory.init(keyStore, KEY_PASSWORD.toCharArray());
-
-            // Create SSLContext and initialize it with the TrustManagerFactory
-            SSLContext sslContext = SSLContext.getInstance("TLS");
-            sslContext.init(keyManagerFactory.getKeyManagers(), trustManagerFactory.getTrustManagers(), null);
-
-            try (Socket socket = sslContext.getSocketFactory().createSocket(hostname, port)) {
-                SSLSocket sslSocket = (SSLSocket) socket;
-
-                OutputStream output = socket.getOutputStream();
-                PrintWriter writer = new PrintWriter(output, true);
-
-                System.out.print("Enter your username: ");
-                String username = scanner.nextLine();
-                writer.println(username);
-
-                Thread serverListener = new Thread(() -> {
-                    try {
-                        InputStream input = sslSocket.getInputStream();
-                        BufferedReader reader = new BufferedReader(new InputStreamReader(input));
-
-                        String serverResponse;
-                        while ((serverResponse = reader.readLine()) != null) {
-                            System.out.println(serverResponse);
-                            if (serverResponse.equals("Server is shutting down. Goodbye!") || serverResponse.equals("Good bye!")) {
-                                System.exit(0); // Shut down the program
-                            }
-                        }
-                        sslSocket.close();
-                    } catch (IOException ex) {
-                        System.out.println("Error reading from server");
-                        System.exit(0); // Shut down the program
-                    }
-                });
+            SSLContext sslContext = TlsProfile.current().createClientContext(trustManagerFactory.getTrustManagers());
+            factory = sslContext.getSocketFactory();
 
-                serverListener.start();
+            System.out.print("Enter your username: ");
+            String username = scanner.nextLine();
+            connect(hostname, port, username);
 
-                while (true) {
-                    String userInput = scanner.nextLine();
+            while (true) {
+                String userInput = scanner.nextLine();
+                CountDownLatch offered = negotiated;
+                if (!offered.await(NEGOTIATION_SECONDS, TimeUnit.SECONDS)) {
+                    System.out.println("The server did not answer the binary protocol offer, using text");
+                    offered.countDown();
+                }
+                if (framed) {
+                    sendFrame(userInput);
+                } else {
                     writer.println(userInput);
+                    if (binary && loginRefused) offer();
                 }
-            } catch (UnknownHostException ex) {
-                System.out.println("Server not found: " + ex.getMessage());
-            } catch (IOException ex) {
-                System.out.println("I/O error: " + ex.getMessage());
             }
-
+        } catch (UnknownHostException ex) {
+            System.out.println("Server not found: " + ex.getMessage());
+        } catch (IOException ex) {
+            System.out.println("I/O error: " + ex.getMessage());
         } catch (Exception ex) {
             ex.printStackTrace();
         } finally {
             scanner.close();
         }
-    
     }
-   
+
+    // Connects, logs in with the username and starts a thread that prints what the server
+    // sends. If the connection is lost, that thread connects again and logs in again.
+    private static void connect(String hostname, int port, String username) throws IOException {
+        SSLSocket sslSocket = (SSLSocket) factory.createSocket(hostname, port);
+        TlsProfile.current().configure(sslSocket);
+
+        output = sslSocket.getOutputStream();
+        writer = new PrintWriter(output, true);
+        framed = false;
+        writer.println(username);
+        if (binary) offer();
+
+        Thread serverListener = new Thread(() -> {
+            try {
+                // Read as bytes: after the answer to the offer come frames
+                InputStream input = new BufferedInputStream(sslSocket.getInputStream());
+
+                String serverResponse;
+                while ((serverResponse = readLine(input)) != null) {
+                    if (binary && serverResponse.startsWith(BinaryProtocol.OFFER)) {
+                        framed = true;
+                        negotiated.countDown();
+                        readFrames(new DataInputStream(input));
+                        break;
+                    }
+                    if (binary && negotiated.getCount() > 0 && serverResponse.equals(NOT_AN_OPTION)) {
+                        // The server does not speak the binary protocol
+                        System.out.println("The server refused the binary protocol, using text");
+                        negotiated.countDown();
+                        continue;
+                    }
+                    System.out.println(serverResponse);
+                    if (serverResponse.equals("Server is shutting down. Goodbye!") || serverResponse.equals("Good bye!")) {
+                        System.exit(0); // Shut down the program
+                    }
+                    if (serverResponse.equals("This player is already connected to the server.")) {
+                        loginRefused = true;
+                        negotiated.countDown();
+                    }
+                }
+                sslSocket.close();
+            } catch (IOException ex) {
+                System.out.println("Error reading from server");
+            }
+            reconnect(hostname, port, username);
+        });
+
+        serverListener.start();
+    }
+
+    private static void offer() {
+        loginRefused = false;
+        negotiated = new CountDownLatch(1);
+        writer.println(BinaryProtocol.OFFER + BinaryProtocol.VERSION);
+    }
+
+    private static String readLine(InputStream input) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = input.read()) >= 0 && b != '\n') {
+            if (b != '\r') line.write(b);
+        }
+        if (b < 0 && line.size() == 0) return null;
+        return new String(line.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    // Sends what the user typed as a frame
+    private static void sendFrame(String userInput) throws IOException {
+        ByteBuffer frame = ByteBuffer.allocate(8);
+        if (userInput.equalsIgnoreCase("S")) {
+            BinaryProtocol.putJoinQueue(frame, false);
+        } else if (userInput.equalsIgnoreCase("R")) {
+            BinaryProtocol.putJoinQueue(frame, true);
+        } else if (userInput.equalsIgnoreCase("I")) {
+            BinaryProtocol.putInfo(frame);
+        } else if (userInput.equalsIgnoreCase("Q")) {
+            BinaryProtocol.putQuit(frame);
+        } else {
+            try {
+                BinaryProtocol.putSubmitNumber(frame, Integer.parseInt(userInput.trim()));
+            } catch (NumberFormatException e) {
+                System.out.println("Thats not an option");
+                return;
+            }
+        }
+        output.write(frame.array(), 0, frame.position());
+        output.flush();
+    }
+
+    // Shows the frames from the server as the text protocol would
+    private static void readFrames(DataInputStream input) throws IOException {
+        while (true) {
+            byte[] bytes = new byte[input.readUnsignedShort()];
+            input.readFully(bytes);
+            ByteBuffer frame = ByteBuffer.wrap(bytes);
+            switch (frame.get()) {
+                case BinaryProtocol.TEXT:
+                    String text = BinaryProtocol.readText(frame);
+                    System.out.print(text);
+                    if (text.startsWith("Server is shutting down. Goodbye!")) System.exit(0); // Shut down the program
+                    break;
+                case BinaryProtocol.QUEUED:
+                    System.out.println(frame.get() == BinaryProtocol.RANKED ? "Searching for ranked game..." : "Searching for normal game...");
+                    break;
+                case BinaryProtocol.GAME_START:
+                    System.out.println(frame.get() == BinaryProtocol.RANKED ? "Starting a ranked game" : "Starting a simple game");
+                    System.out.println("You are in team " + frame.get());
+                    break;
+                case BinaryProtocol.TURN:
+                    System.out.println("Its your turn");
+                    break;
+                case BinaryProtocol.SCORE:
+                    System.out.println("Score Team 1 is " + frame.getInt());
+                    System.out.println("Score Team 2 is " + frame.getInt());
+                    break;
+                case BinaryProtocol.RESULT:
+                    System.out.println(frame.get() == BinaryProtocol.WON ? "Your team won the game!" : "Your team lost the game!");
+                    System.out.println("Going back to game menu...");
+                    break;
+                case BinaryProtocol.BYE:
+                    System.out.println("Good bye!");
+                    System.exit(0); // Shut down the program
+                    break;
+                default:
+                    // Newer than this client
+            }
+        }
+    }
+
+    private static void reconnect(String hostname, int port, String username) {
+        for (int attempt = 1; attempt <= RECONNECT_ATTEMPTS; attempt++) {
+            System.out.println("Connection lost, reconnecting (" + attempt + "/" + RECONNECT_ATTEMPTS + ")...");
+            try {
+                Thread.sleep(1000);
+                connect(hostname, port, username);
+                return;
+            } catch (IOException ex) {
+                System.out.println("I/O error: " + ex.getMessage());
+            } catch (InterruptedException ex) {
+                break;
+            }
+        }
+        System.exit(0); // Shut down the program
+    }
 }
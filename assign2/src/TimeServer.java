@@ -1,8 +1,18 @@
 import java.io.*;
+import com.sun.management.GcInfo;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
 import java.util.*;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 import javax.net.ssl.*;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
@@ -12,9 +22,12 @@ import java.security.UnrecoverableKeyException;
 
 /**
  * This program demonstrates a simple TCP/IP socket server.
- * It uses a thread pool to handle multiple clients connected at the same time.
+ * It serves many clients connected at the same time in one of three modes: "nio" (the default)
+ * runs them all on a few I/O threads, each one driving many TLS connections through a selector
+ * (SslEventLoop); "threads" gives each client a thread of its own; "virtual" gives each client a
+ * virtual thread on Java 21, and a platform thread on older versions.
  * Each client needs to write their username upon connection to save it on the server.
- * Every message sent by the client will be displayed on the server terminal.
+ * With -Dverbose=true, every message sent by the client is displayed on the server terminal.
  * The server will save the client's username, rank, position x, and position y.
  * If the client disconnects and reconnects, the server will still have their information.
  *
@@ -29,26 +42,52 @@ public class TimeServer {
     private static final String TRUSTSTORE_PATH = "../doc/file_trust.jks";
     private static final String TRUSTSTORE_PASSWORD = "password";
     
-    private static HashMap<String, ClientInfo> clients = new HashMap<>();
-    private static Lock clientsLock = new ReentrantLock(); // Lock for clients HashMap
-    private static List<ClientInfo> searchSimple = new ArrayList<>();
-    private static List<ClientInfo> searchRanked = new ArrayList<>();
-    private static List<ClientInfo> playSimple = new ArrayList<>();
-    private static List<ClientInfo> playRanked = new ArrayList<>();
-    public static boolean gameSimple_playing = false;
-    public static boolean gameRanked_playing = false;
-    public static Game simple = null;
-    public static Game ranked = null;
-
+    private static ConcurrentHashMap<String, ClientInfo> clients = new ConcurrentHashMap<>();
+    private static RoomManager rooms = new RoomManager(); // Every game being played
+    private static PlayerStore store; // Players' stats, kept across restarts
+    private static final TlsProfile tlsProfile = TlsProfile.current();
+    private static final HandshakeStats handshakes = new HandshakeStats();
+    private static final String DATA_PATH = "../data";
+
+    private static final Metrics metrics = new Metrics(); // "metrics" on the console, or MetricsServer
+    private static final LongAdder connectionsAccepted = new LongAdder();
+    private static final LongAdder connectionsActive = new LongAdder();
+    // Client handlers running on a thread of their own, platform or virtual
+    private static final LongAdder handlersLive = new LongAdder();
+    // From telling a player it is their turn to getting their number, and the server's
+    // work on that number (microseconds)
+    private static final Metrics.Histogram turnResponse = new Metrics.Histogram();
+    private static final Metrics.Histogram turnProcessing = new Metrics.Histogram();
+    // Printing each message holds up the I/O threads on System.out; the metrics count them
+    private static final boolean VERBOSE = Boolean.getBoolean("verbose");
+
+    // java [-Dverbose=true] TimeServer <port> [nio|threads|virtual] [I/O threads]
+    // The metrics are served on 127.0.0.1, port <port> + 1 or -Dmetrics.port (0 for none)
     public static void main(String[] args) {
         if (args.length < 1) return;
 
         int port = Integer.parseInt(args[0]);
+        String mode = args.length > 1 ? args[1] : "nio";
+        int ioThreads = args.length > 2 ? Integer.parseInt(args[2]) : 0;
 
         AtomicBoolean isRunning = new AtomicBoolean(true);
         Thread consoleThread = null;
 
     try {
+            store = new PlayerStore(DATA_PATH, clients);
+            System.out.println("Player store: " + store.getStats());
+
+            registerMetrics();
+            int metricsPort = Integer.getInteger("metrics.port", port + 1);
+            if (metricsPort > 0) {
+                try {
+                    MetricsServer metricsServer = new MetricsServer(metricsPort, metrics);
+                    System.out.println("Metrics on http://127.0.0.1:" + metricsServer.getPort() + "/metrics");
+                } catch (IOException ex) {
+                    System.out.println("Metrics are not served: " + ex.getMessage());
+                }
+            }
+
             // Generate the server's self-signed certificate
             //generateSelfSignedCertificate(KEYSTORE_PATH, KEYSTORE_PASSWORD, KEY_ALIAS, KEY_PASSWORD);
 
@@ -69,60 +108,42 @@ public class TimeServer {
             trustManagerFactory.init(trustStore);
 
 
-            // Create SSLContext and initialize it with the KeyManagerFactory
-            SSLContext sslContext = SSLContext.getInstance("TLS");
-            sslContext.init(keyManagerFactory.getKeyManagers(), trustManagerFactory.getTrustManagers(), null);
+            // Create SSLContext with the KeyManagerFactory, its session cache and tickets
+            SSLContext sslContext = tlsProfile.createServerContext(keyManagerFactory.getKeyManagers(), trustManagerFactory.getTrustManagers());
+            System.out.println("TLS profile: " + tlsProfile);
 
 
-        try (SSLServerSocket serverSocket = (SSLServerSocket) sslContext.getServerSocketFactory().createServerSocket(port)) {
+            if (mode.equals("nio")) {
+                startConsole(isRunning);
+                SslEventLoop loop = new SslEventLoop(sslContext, tlsProfile, handshakes, port, ioThreads, ClientHandler::new);
+                System.out.println("Server is listening on port " + port + " with " + loop.getIoThreads() + " I/O threads");
+                loop.run();
+                return;
+            }
+
+            // One virtual thread per client, or one platform thread per client. The writers
+            // (SocketConnection) run on the same kind of thread as the clients.
+            ExecutorService executor = mode.equals("virtual") ? newVirtualThreadExecutor() : null;
+            ExecutorService writers = executor != null ? executor : newWriterPool();
+
+        try (SSLServerSocket serverSocket = (SSLServerSocket) sslContext.getServerSocketFactory().createServerSocket(port, 1024)) {
+            tlsProfile.configure(serverSocket); // Accepted sockets allow what the profile allows
 
             System.out.println("Server is listening on port " + port);
 
             // Listen for console input to gracefully stop the server
-            consoleThread = new Thread(() -> {
-                BufferedReader consoleReader = new BufferedReader(new InputStreamReader(System.in));
-                while (isRunning.get()) {
-                    try {
-                        String input = consoleReader.readLine();
-                        if (input.equalsIgnoreCase("exit")) {
-                            System.out.println("Shutting down server...");
-                            isRunning.set(false);
-
-                            // Notify all connected clients before shutting down
-                            clientsLock.lock(); // Acquire lock before modifying clients HashMap
-                            try {
-                                for (ClientInfo client : clients.values()) {
-                                    try {
-                                        PrintWriter clientWriter = new PrintWriter(client.getSocket().getOutputStream(), true);
-                                        clientWriter.println("Server is shutting down. Goodbye!");
-                                        client.getSocket().close();
-                                    } catch (IOException ex) {
-                                        System.out.println("Error notifying client " + client.getUsername());
-                                        ex.printStackTrace();
-                                    }
-                                }
-                            } finally {
-                                clientsLock.unlock(); // Release lock after modifying clients HashMap
-                            }
-                            System.exit(0); // Shut down the program
-                        }
-
-                    } catch (IOException ex) {
-                        ex.printStackTrace();
-                    }
-                }
-            });
-            consoleThread.start();
+            consoleThread = startConsole(isRunning);
 
             while (isRunning.get()) {
                 SSLSocket socket = (SSLSocket) serverSocket.accept();
-    
-                // Perform SSL/TLS configuration
-                socket.setEnabledCipherSuites(socket.getSupportedCipherSuites());
-                
 
-                Thread clientThread = new Thread(new ClientHandler(socket));
-                clientThread.start();
+                ClientHandler handler = new ClientHandler(socket, writers);
+                if (executor != null) {
+                    executor.execute(handler);
+                } else {
+                    Thread clientThread = new Thread(handler);
+                    clientThread.start();
+                }
             }
 
         } catch (IOException ex) {
@@ -147,6 +168,157 @@ public class TimeServer {
     }finally {
     }
 }
+
+    // Executors.newVirtualThreadPerTaskExecutor() needs Java 21, so it is looked up at run time
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads need Java 21, using a thread per client");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    // Platform threads for the writers of a thread-per-client server
+    private static ExecutorService newWriterPool() {
+        return Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static void registerMetrics() {
+        metrics.counter("summing_connections_accepted_total", "", "Connections accepted", connectionsAccepted::sum);
+        metrics.gauge("summing_connections_active", "", "Connections open", connectionsActive::sum);
+        metrics.gauge("summing_players_known", "", "Players known to the server, connected or not", () -> clients.size());
+        metrics.gauge("summing_threads_live", "", "Live platform threads", () -> ManagementFactory.getThreadMXBean().getThreadCount());
+        metrics.gauge("summing_handlers_live", "", "Clients served by a platform or virtual thread of their own", handlersLive::sum);
+        metrics.gauge("summing_heap_used_bytes", "", "Heap in use, garbage included", () -> Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory());
+        metrics.gauge("summing_heap_after_gc_bytes", "", "Heap the last collection of each pool left, close to the live data", TimeServer::heapAfterGc);
+        metrics.gauge("summing_heap_max_bytes", "", "Largest heap the JVM may use", () -> Runtime.getRuntime().maxMemory());
+        metrics.counter("summing_gc_collections_total", "", "Garbage collections, young or not", TimeServer::gcCount);
+        metrics.gauge("summing_direct_bytes", "", "Direct buffers in use, outside the heap", TimeServer::directMemory);
+        metrics.gauge("summing_rooms_active", "", "Games being played", () -> rooms.getRoomCount());
+        metrics.counter("summing_matches_started_total", "", "Games started", rooms::getMatchesStarted);
+        metrics.counter("summing_matches_finished_total", "", "Games finished", rooms::getMatchesFinished);
+        metrics.gauge("summing_queue_depth", "mode=\"simple\"", "Players waiting for a game", () -> rooms.getSimpleWaiting());
+        metrics.gauge("summing_queue_depth", "mode=\"ranked\"", "Players waiting for a game", () -> rooms.getRankedWaiting());
+        metrics.histogram("summing_time_to_match_seconds", "mode=\"simple\"", "Time from joining a queue to getting a game", rooms.getMatchWait(false));
+        metrics.histogram("summing_time_to_match_seconds", "mode=\"ranked\"", "Time from joining a queue to getting a game", rooms.getMatchWait(true));
+        metrics.histogram("summing_turn_response_seconds", "", "Time from telling a player it is their turn to getting their number", turnResponse);
+        metrics.histogram("summing_turn_processing_seconds", "", "Time the server takes to play a number", turnProcessing);
+        metrics.histogram("summing_broadcast_seconds", "", "Time to queue a message for every player of a game", Game.BROADCAST);
+        metrics.histogram("summing_tls_handshake_seconds", "kind=\"full\"", "TLS handshake time", handshakes.getFull());
+        metrics.histogram("summing_tls_handshake_seconds", "kind=\"resumed\"", "TLS handshake time", handshakes.getResumed());
+        metrics.counter("summing_tls_handshake_failures_total", "", "Connections closed before their TLS handshake was done", handshakes::getFailed);
+    }
+
+    // Clients, rooms, threads and heap in use, to check the server's footprint under load
+    private static void printStats() {
+        int connected = 0;
+        int total = clients.size();
+        for (ClientInfo client : clients.values()) {
+            if (client.getConnection()) connected++;
+        }
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        System.out.println("Clients: " + connected + " connected, " + total + " known");
+        System.out.println("Connections: " + connectionsActive.sum() + " open, " + connectionsAccepted.sum() + " accepted");
+        System.out.println("Rooms: " + rooms.getRoomCount() + " playing, " + rooms.getMatchesFinished() + " matches finished, "
+                + String.format("%.2f", rooms.getMatchesPerSecond()) + " matches/s in the last minute");
+        System.out.println("Simple queue: " + rooms.getSimpleWaiting() + " waiting");
+        System.out.println("Ranked queue: " + rooms.getRankedStats());
+        System.out.println("Time to match: simple " + rooms.getMatchWait(false).getSummary() + "; ranked " + rooms.getMatchWait(true).getSummary());
+        System.out.println("Turns: response " + turnResponse.getSummary() + "; processing " + turnProcessing.getSummary());
+        System.out.println("Broadcasts: " + Game.BROADCAST.getSummary());
+        System.out.println("Player store: " + store.getStats());
+        System.out.println("TLS: " + handshakes.getStats());
+        System.out.println("Threads: " + ManagementFactory.getThreadMXBean().getThreadCount() + " platform, "
+                + handlersLive.sum() + " client handlers");
+        System.out.println("Heap: " + used / (1024 * 1024) + " MB used, " + heapAfterGc() / (1024 * 1024) + " MB after the last GC, of "
+                + runtime.maxMemory() / (1024 * 1024) + " MB; direct buffers: " + directMemory() / (1024 * 1024) + " MB");
+    }
+
+    static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, collector.getCollectionCount());
+        }
+        return count;
+    }
+
+    // Memory of the direct buffers (the TLS buffers of the nio mode and the JDK's socket I/O)
+    static long directMemory() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) return pool.getMemoryUsed();
+        }
+        return 0;
+    }
+
+    // Heap in use right after the latest collection, young or not: close to the live data,
+    // without forcing a full GC on a running server (0 until the first collection)
+    static long heapAfterGc() {
+        GcInfo last = null;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (!(collector instanceof com.sun.management.GarbageCollectorMXBean)) continue;
+            GcInfo info = ((com.sun.management.GarbageCollectorMXBean) collector).getLastGcInfo();
+            if (info != null && (last == null || info.getEndTime() > last.getEndTime())) last = info;
+        }
+        if (last == null) return 0;
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            MemoryUsage usage = last.getMemoryUsageAfterGc().get(pool.getName());
+            if (pool.getType() == MemoryType.HEAP && usage != null) used += usage.getUsed();
+        }
+        return used;
+    }
+
+    // Listens on the console for "stats", "metrics" (all of them, as served over HTTP), or
+    // "exit" to notify the clients and stop the server
+    private static Thread startConsole(AtomicBoolean isRunning) {
+        Thread consoleThread = new Thread(() -> {
+            BufferedReader consoleReader = new BufferedReader(new InputStreamReader(System.in));
+            while (isRunning.get()) {
+                try {
+                    String input = consoleReader.readLine();
+                    if (input == null) return; // No console
+                    if (input.equalsIgnoreCase("stats")) {
+                        printStats();
+                        continue;
+                    }
+                    if (input.equalsIgnoreCase("metrics")) {
+                        System.out.print(metrics.toPrometheus());
+                        continue;
+                    }
+                    if (input.equalsIgnoreCase("exit")) {
+                        System.out.println("Shutting down server...");
+                        isRunning.set(false);
+
+                        // Notify all connected clients before shutting down
+                        for (ClientInfo client : clients.values()) {
+                            if (client.getClientConnection() == null) continue; // Restored, never connected
+                            try {
+                                client.send("Server is shutting down. Goodbye!");
+                                client.getClientConnection().close();
+                            } catch (IOException ex) {
+                                System.out.println("Error notifying client " + client.getUsername());
+                                ex.printStackTrace();
+                            }
+                        }
+                        store.close(); // Commits the last stats
+                        System.exit(0); // Shut down the program
+                    }
+
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        });
+        consoleThread.start();
+        return consoleThread;
+    }
+
    /*  private static void generateSelfSignedCertificate(String keystorePath, String keystorePassword, String keyAlias, String keyPassword) throws Exception {
         // Generate a self-signed certificate using the 'keytool' utility
         ProcessBuilder processBuilder = new ProcessBuilder (
@@ -173,170 +345,266 @@ public class TimeServer {
 
 
 
-    private static class ClientHandler implements Runnable {
-        private SSLSocket socket;
+    /**
+     * Handles the lines of one client. With a thread per client, run() reads the lines from
+     * the socket; with the event loop, SslEventLoop calls onLine for every line it decodes.
+     */
+    private static class ClientHandler implements Runnable, SslEventLoop.LineHandler {
+        private final SSLSocket socket;
+        private final ClientConnection writer;
+        private String username = null;
+        // False when the username was already connected, so this handler does not own the client
+        private boolean registered = false;
+        // True once the client switched to the binary protocol
+        private boolean binary = false;
 
-        public ClientHandler(SSLSocket socket) {
+        // Commands, from a text line or a frame
+        private static final int JOIN_SIMPLE = 0, JOIN_RANKED = 1, INFO = 2, QUIT = 3, NUMBER = 4, OTHER = 5;
+
+        // Answers every client gets, encoded once in both protocols
+        private static final Message SEARCHING_SIMPLE = Message.of("Searching for normal game...").withFrame(BinaryProtocol.queued(false));
+        private static final Message SEARCHING_RANKED = Message.of("Searching for ranked game...").withFrame(BinaryProtocol.queued(true));
+        private static final Message GAME_INFO = Message.of("The game consists of adding up numbers entered by players, in order to guess a random number.\nIf the sum goes beyond the elected number, a message will be displayed.\nIt has two distinct modes, Simple and Rank and it was designed to be played in two teams of two players each.\nThe game only ends when one of the teams guesses the number.");
+        private static final Message GOOD_BYE = Message.of("Good bye!").withFrame(BinaryProtocol.bye());
+
+        public ClientHandler(SSLSocket socket, Executor writers) throws IOException {
             this.socket = socket;
+            this.writer = new SocketConnection(socket, writers);
+            connectionsAccepted.increment();
+            connectionsActive.increment();
+        }
+
+        public ClientHandler(ClientConnection connection) {
+            this.socket = null;
+            this.writer = connection;
+            connectionsAccepted.increment();
+            connectionsActive.increment();
         }
 
         @Override
         public void run() {
+            handlersLive.increment();
             try {
-                InputStream input = socket.getInputStream();
-                BufferedReader reader = new BufferedReader(new InputStreamReader(input));
-                OutputStream output = socket.getOutputStream();
-                PrintWriter writer = new PrintWriter(output, true);
+                serve();
+            } finally {
+                handlersLive.decrement();
+            }
+        }
 
-                // Get client username
-                String username = reader.readLine();
-                if (username == null) {
+        private void serve() {
+            try {
+                // The handshake runs here, not in the accept loop, so it can be timed
+                long startNanos = System.nanoTime();
+                long startMillis = System.currentTimeMillis();
+                try {
+                    socket.startHandshake();
+                } catch (IOException ex) {
+                    handshakes.failed();
+                    writer.close();
+                    onClose();
                     return;
                 }
+                handshakes.record(socket.getSession(), startNanos, startMillis);
 
-            clientsLock.lock(); // Acquire lock before modifying clients HashMap
+                InputStream input = socket.getInputStream();
+                InputDecoder decoder = new InputDecoder(this);
+                // Lines are short, a small buffer keeps idle clients cheap
+                byte[] buffer = new byte[256];
+                java.nio.ByteBuffer bytes = java.nio.ByteBuffer.wrap(buffer);
+
+                int read;
+                while ((read = input.read(buffer)) >= 0) {
+                    bytes.limit(read).position(0);
+                    if (!decoder.feed(bytes)) break;
+                }
+            } catch (IOException ex) {
+                System.out.println("Error handling client: " + ex.getMessage());
+                ex.printStackTrace();
+            }
             try {
-                // urreCheck if client is already connected
-                if (!clients.containsKey(username)) {
-                    // Add client to HashMap
-                    ClientInfo clientInfo = new ClientInfo(username, socket, Thread.currentThread());
-                    clients.put(username, clientInfo);
-                    System.out.println("New client connected: " + username);
-                    clients.get(username).updateConnection();
-                    
-                    writer.println("Welcome to Summing " + username);
-                    writer.println("Write 'S' to inicialize a normal game");
-                    writer.println("Write 'R' to inicialize a ranked game");
-                    writer.println("Write 'I' to learn about the game");
-                    writer.println("Write 'Q' to quit the game");
-                }else if(clients.containsKey(username) && !clients.get(username).getConnection()){
-                    System.out.println("Client " + username + " has reconnected.");
-                    writer.println("Welcome back " + username);
-                    if(clients.get(username).getStatus()){
-                        writer.println("You were in game when you disconnected");
-                    }else if(!clients.get(username).getStatus() && searchSimple.contains(username)){
-                        writer.println("You were searching for a simple game when you disconnected");
-                    }else if(!clients.get(username).getStatus() && searchRanked.contains(username)){
-                        writer.println("You were searching for a ranked game when you disconnected");
-                    }else{
-                        writer.println("Welcome back to Summing " + username);
-                        writer.println("Write 'S' to inicialize a normal game");
-                        writer.println("Write 'R' to inicialize a ranked game");
-                        writer.println("Write 'I' to learn about the game");
-                        writer.println("Write 'Q' to quit the game");
-                    }
+                writer.close();
+            } catch (IOException ex) {
+                // Already closed
+            }
+            onClose();
+        }
+
+        @Override
+        public void onClose() {
+            connectionsActive.decrement();
+            if (username == null) return;
+            if (registered) clients.get(username).disconnect();
+            System.out.println("Client disconnected: " + username);
+        }
+
+        // The first line is the username
+        private void login(String name) {
+            username = name;
+
+            // putIfAbsent and connect() decide atomically which connection owns the username
+            ClientInfo fresh = new ClientInfo(username, writer);
+            ClientInfo client = clients.putIfAbsent(username, fresh);
+            ClientInfo player = client == null ? fresh : client;
+            if (!player.connect(writer)) {
+                writer.println("This player is already connected to the server.");
+                // The next line is another username
+                username = null;
+            } else if (client == null || player.takeRestored()) {
+                // Players restored from the store are new to this server run
+                System.out.println("New client connected: " + username);
+                registered = true;
+
+                writer.send(Message.of("Welcome to Summing " + username,
+                        "Write 'S' to inicialize a normal game",
+                        "Write 'R' to inicialize a ranked game",
+                        "Write 'I' to learn about the game",
+                        "Write 'Q' to quit the game"));
+            }else{
+                System.out.println("Client " + username + " has reconnected.");
+                registered = true;
+                String welcome = "Welcome back " + username;
+                if(client.getStatus()){
+                    writer.send(Message.of(welcome, "You were in game when you disconnected"));
+                }else if(rooms.isSearching(client, false)){
+                    writer.send(Message.of(welcome, "You were searching for a simple game when you disconnected"));
+                }else if(rooms.isSearching(client, true)){
+                    writer.send(Message.of(welcome, "You were searching for a ranked game when you disconnected"));
                 }else{
-                    writer.println("This player is already connected to the server.");
-                    /*username = reader.readLine();
-                    if (username == null) {
-                        return;
-                    }*/
+                    writer.send(Message.of(welcome,
+                            "Welcome back to Summing " + username,
+                            "Write 'S' to inicialize a normal game",
+                            "Write 'R' to inicialize a ranked game",
+                            "Write 'I' to learn about the game",
+                            "Write 'Q' to quit the game"));
                 }
-            } finally {
-                clientsLock.unlock(); // Release lock after modifying clients HashMap
             }
+        }
 
-            // Listen for messages from client
-            String message;
-            while ((message = reader.readLine()) != null) {
+        // Handles one line from the client; returns false when the client quits
+        @Override
+        public boolean onLine(String message) {
+            if (username == null) {
+                // An offer sent after a username that was refused is not a username
+                if (!message.startsWith(BinaryProtocol.OFFER)) login(message);
+                return true;
+            }
+            if (message.startsWith(BinaryProtocol.OFFER)) {
+                negotiate(message);
+                return true;
+            }
 
-                System.out.println("Message from " + username + ": " + message);
+            if (VERBOSE) System.out.println("Message from " + username + ": " + message);
 
-                if(!clients.get(username).getStatus() && !clients.get(username).getSearching()){
-                    if(message.equalsIgnoreCase("S") || message.equalsIgnoreCase("s")){
-                        searchSimple.add(clients.get(username));
-                        clients.get(username).updateSearching();
-                        if(gameSimple_playing){
-                            writer.println("A normal game is taking place. The queue could take some time");
-                        }
-                        writer.println("Searching for normal game...");
-                        if(searchSimple.size() >= 4 && !gameSimple_playing){
-                            for (ClientInfo p : searchSimple.subList(0, 4)) {
-                                playSimple.add(p);
-                            }
-                            simple = new Game(playSimple, false);
-                            for (ClientInfo p : playSimple) {
-                                p.setGame(simple);
-                            }
-                            gameSimple_playing = true;
-                            simple.start();
-                        }
-                    }else if(message.equalsIgnoreCase("R") || message.equalsIgnoreCase("r")){
-                        searchRanked.add(clients.get(username));
-                        clients.get(username).updateSearching();
-                        if(gameRanked_playing){
-                            writer.println("A ranked game is taking place. The queue could take some time");
-                        }
-                        writer.println("Searching for ranked game...");
-                        if(searchRanked.size() >= 4 && !gameRanked_playing){
-                            for (ClientInfo p : searchRanked.subList(0, 4)) {
-                                playRanked.add(p);
-                            }
-                            ranked = new Game(playRanked, true);
-                            for (ClientInfo p : playRanked) {
-                                p.setGame(ranked);
-                            }
-                            gameRanked_playing = true;
-                            ranked.start();
-                        }        
-                    }else if(message.equalsIgnoreCase("I") || message.equalsIgnoreCase("i")){
-                        writer.println("The game consists of adding up numbers entered by players, in order to guess a random number.\nIf the sum goes beyond the elected number, a message will be displayed.\nIt has two distinct modes, Simple and Rank and it was designed to be played in two teams of two players each.\nThe game only ends when one of the teams guesses the number.");
-                    }else if(message.equals("Q") || message.equals("q")){
-                        writer.println("Good bye!");
+            if(message.equalsIgnoreCase("S")){
+                return handle(JOIN_SIMPLE, 0);
+            }else if(message.equalsIgnoreCase("R")){
+                return handle(JOIN_RANKED, 0);
+            }else if(message.equalsIgnoreCase("I")){
+                return handle(INFO, 0);
+            }else if(message.equalsIgnoreCase("Q")){
+                return handle(QUIT, 0);
+            }
+            try {
+                return handle(NUMBER, Integer.parseInt(message));
+            } catch (NumberFormatException e) {
+                return handle(OTHER, 0);
+            }
+        }
+
+        // Handles one frame from a client that switched to the binary protocol
+        @Override
+        public boolean onFrame(java.nio.ByteBuffer frame) {
+            byte opcode = frame.get();
+            switch (opcode) {
+                case BinaryProtocol.JOIN_QUEUE:
+                    return handle(frame.get() == BinaryProtocol.RANKED ? JOIN_RANKED : JOIN_SIMPLE, 0);
+                case BinaryProtocol.SUBMIT_NUMBER:
+                    return handle(NUMBER, frame.getInt());
+                case BinaryProtocol.INFO:
+                    return handle(INFO, 0);
+                case BinaryProtocol.QUIT:
+                    return handle(QUIT, 0);
+                default:
+                    return handle(OTHER, 0);
+            }
+        }
+
+        @Override
+        public boolean isBinary() {
+            return binary;
+        }
+
+        // The client offers the binary protocol: the answer (in text) is the version both
+        // speak, and what follows is framed
+        private void negotiate(String offer) {
+            int version;
+            try {
+                version = Integer.parseInt(offer.substring(BinaryProtocol.OFFER.length()).trim());
+            } catch (NumberFormatException e) {
+                version = 0;
+            }
+            if (binary || version < 1) {
+                writer.println("Thats not an option");
+                return;
+            }
+            writer.println(BinaryProtocol.OFFER + Math.min(version, BinaryProtocol.VERSION));
+            writer.useBinary();
+            binary = true;
+        }
+
+        // Runs a command of either protocol; returns false when the client quits
+        private boolean handle(int command, int number) {
+            ClientInfo client = clients.get(username);
+            if(!client.getStatus() && !client.getSearching()){
+                switch (command) {
+                    case JOIN_SIMPLE:
+                        writer.send(SEARCHING_SIMPLE);
+                        rooms.join(client, false);
                         break;
-                    }else{
+                    case JOIN_RANKED:
+                        writer.send(SEARCHING_RANKED);
+                        rooms.join(client, true);
+                        break;
+                    case INFO:
+                        writer.send(GAME_INFO);
+                        break;
+                    case QUIT:
+                        writer.send(GOOD_BYE);
+                        return false;
+                    default:
                         writer.println("Thats not an option");
+                }
+            }else if(client.getSearching()){
+                writer.println("You are searching for a game. Be patient!");
+            }else if(client.getTurn()){
+                if (command != NUMBER) {
+                    writer.println("Write a number.");
+                    return true;
+                }
+                Game game = client.getGame();
+                long start = System.nanoTime();
+                game.locale.lock(); // Rooms are played at the same time, each by its own players
+                try {
+                    turnResponse.record((start - game.turnSince) / 1000);
+                    client.setNumber(number);
+                    client.updateTurn();
+                    game.stuff(client, number);
+                    if (game.checkWinner()) {
+                        rooms.finish(game);
+                        for (ClientInfo player : game.players) store.save(player);
+                    }else{
+                        game.changeTurn();
                     }
-                }else if(clients.get(username).getSearching()){
-                    writer.println("You are searching for a game. Be patient!");
-                }else if(clients.get(username).getTurn()){
-                    try {
-                        int num = Integer.parseInt(message);
-                        clients.get(username).setNumber(num);
-                        clients.get(username).updateTurn();
-                        if(simple.players.contains(clients.get(username))){
-                            simple.stuff(clients.get(username), num);
-                            if (simple.checkWinner()) {
-                                gameSimple_playing = false;
-                                playSimple.clear();
-                                searchSimple.removeAll(searchSimple.subList(0, 4));
-                                simple = null;
-                            }else{
-                                simple.changeTurn();
-                                simple.players.get(simple.playerTurn).updateTurn();
-                            }
-
-                        }else{
-                            ranked.stuff(clients.get(username), num);
-                            if (ranked.checkWinner()) {
-                                gameRanked_playing = false;
-                                searchRanked.removeAll(searchRanked.subList(0, 4));
-                                ranked = null;
-                            }else{
-                                ranked.changeTurn();
-                                ranked.players.get(ranked.playerTurn).updateTurn();
-                            }
-                        
-                        }
-                    } catch (NumberFormatException e) {
-                        writer.println("Write a number.");
-                    }
-                }else if(clients.get(username).getStatus()){
-                    writer.println("Its not your turn");
-                }else{
-                    writer.println("ERROR");
+                } finally {
+                    game.locale.unlock();
                 }
-
-                // TODO: Process client message here
+                turnProcessing.recordSince(start);
+            }else if(client.getStatus()){
+                writer.println("Its not your turn");
+            }else{
+                writer.println("ERROR");
             }
-
-            clients.get(username).updateConnection();
-            System.out.println("Client disconnected: " + username);
-
-        } catch (IOException ex) {
-            System.out.println("Error handling client: " + ex.getMessage());
-            ex.printStackTrace();
+            return true;
         }
     }
 }
-}
\ No newline at end of file
@@ -0,0 +1,97 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+
+/**
+ * The TLS versions and cipher suites the server and the clients allow, and how sessions
+ * are kept so a client that reconnects resumes its session instead of doing a full
+ * handshake (no certificate, no signature).
+ *
+ * MODERN, the default, is TLS 1.3 with AES-GCM or ChaCha20-Poly1305 only. COMPAT also
+ * allows TLS 1.2 with ECDHE and the same ciphers, for clients without TLS 1.3. Choose it
+ * with -Dtls.profile=compat.
+ *
+ * The server keeps up to SESSION_CACHE_SIZE sessions for SESSION_TIMEOUT_SECONDS and, as
+ * the JDK does by default since Java 13, gives TLS 1.3 clients session tickets. A client
+ * resumes when it connects again with the same SSLContext, so clients create theirs once.
+ */
+public enum TlsProfile {
+    MODERN(new String[]{"TLSv1.3"}, new String[]{
+            "TLS_AES_128_GCM_SHA256",
+            "TLS_AES_256_GCM_SHA384",
+            "TLS_CHACHA20_POLY1305_SHA256"}),
+    COMPAT(new String[]{"TLSv1.3", "TLSv1.2"}, new String[]{
+            "TLS_AES_128_GCM_SHA256",
+            "TLS_AES_256_GCM_SHA384",
+            "TLS_CHACHA20_POLY1305_SHA256",
+            "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256",
+            "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256",
+            "TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384",
+            "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384",
+            "TLS_ECDHE_ECDSA_WITH_CHACHA20_POLY1305_SHA256",
+            "TLS_ECDHE_RSA_WITH_CHACHA20_POLY1305_SHA256"});
+
+    public static final int SESSION_CACHE_SIZE = 100_000;
+    public static final int SESSION_TIMEOUT_SECONDS = 24 * 60 * 60;
+
+    private final String[] protocols;
+    private final String[] cipherSuites;
+
+    TlsProfile(String[] protocols, String[] cipherSuites) {
+        this.protocols = protocols;
+        this.cipherSuites = cipherSuites;
+    }
+
+    // The profile named by -Dtls.profile, MODERN if there is none
+    public static TlsProfile current() {
+        return valueOf(System.getProperty("tls.profile", "modern").toUpperCase());
+    }
+
+    public SSLContext createServerContext(KeyManager[] keyManagers, TrustManager[] trustManagers) throws Exception {
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagers, trustManagers, null);
+        SSLSessionContext sessions = context.getServerSessionContext();
+        sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+        sessions.setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+        return context;
+    }
+
+    public SSLContext createClientContext(TrustManager[] trustManagers) throws Exception {
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, trustManagers, null);
+        return context;
+    }
+
+    public void configure(SSLServerSocket socket) {
+        socket.setEnabledProtocols(supported(protocols, socket.getSupportedProtocols()));
+        socket.setEnabledCipherSuites(supported(cipherSuites, socket.getSupportedCipherSuites()));
+    }
+
+    public void configure(SSLSocket socket) {
+        socket.setEnabledProtocols(supported(protocols, socket.getSupportedProtocols()));
+        socket.setEnabledCipherSuites(supported(cipherSuites, socket.getSupportedCipherSuites()));
+    }
+
+    public void configure(SSLEngine engine) {
+        engine.setEnabledProtocols(supported(protocols, engine.getSupportedProtocols()));
+        engine.setEnabledCipherSuites(supported(cipherSuites, engine.getSupportedCipherSuites()));
+    }
+
+    // The wanted names this JDK has, in the profile's order of preference
+    private static String[] supported(String[] wanted, String[] available) {
+        List<String> availableList = Arrays.asList(available);
+        List<String> names = new ArrayList<>();
+        for (String name : wanted) {
+            if (availableList.contains(name)) names.add(name);
+        }
+        if (names.isEmpty()) throw new IllegalStateException("This JDK supports none of " + Arrays.toString(wanted));
+        return names.toArray(new String[0]);
+    }
+}